@@ -5,242 +5,999 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
+import com.poseidon.db.compaction.Compactor;
+import com.poseidon.db.hash.Hash;
+import com.poseidon.db.hash.SimpleModuloHash;
+import com.poseidon.db.io.Block;
 import com.poseidon.db.io.CommitLog;
+import com.poseidon.db.io.Manifest;
+import com.poseidon.db.io.MergingIterator;
+import com.poseidon.db.io.RangeTombstoneSplitter;
 import com.poseidon.db.io.SSTable;
+import com.poseidon.db.io.SSTableIterator;
+import com.poseidon.db.io.ValueLog;
+import com.poseidon.db.io.Version;
+import com.poseidon.db.io.VersionSet;
 import com.poseidon.db.io.access.FileAccessChoice;
 import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
+import com.poseidon.db.utils.BlockCache;
 
 public class KeyValueStore {
 
 	private final static Logger logger = Logger.getLogger(KeyValueStore.class);
 	public static final int MEM_TO_SSTABLE_THRESHOLD = 128 * 1024 * 1024;
+	public static final int DEFAULT_MAX_IMMUTABLE_MEMTABLES = 4;
+	public static final int DEFAULT_FLUSH_THREADS = 2;
+	// Delay of a write once the flush queue is half full, doubled for every memtable more
+	private static final long WRITE_SLOWDOWN_MICROS = 1000;
+	private static final int MAX_VALUE_LOG_READ_ATTEMPTS = 3;
+	// A failed flush is tried again after this, doubled for every failure in a row
+	private static final long FLUSH_RETRY_MILLIS = 100;
+	private static final long MAX_FLUSH_RETRY_MILLIS = 10 * 1000;
+	private static final DataItem TOMBSTONE_VALUE = new DataItem(new byte[] { Memtable.TOMBSTONE });
+
+	// A memtable that takes no more writes, from the time it is switched out until its
+	// sstable is in the version set
+	private static class ImmutableMemtable {
+		private final Memtable memtable;
+		private boolean flushing;
+		private boolean written;
+		private SSTable sstable;
+		private IOException failure;
+		private int failedAttempts;
+
+		ImmutableMemtable(Memtable memtable) {
+			this.memtable = memtable;
+		}
+	}
 
 	private static class MemtableSelector {
-		private Memtable primaryMemtable;
-		private Memtable secondaryMemtable;
+		private volatile Memtable primaryMemtable;
+		// Newest first. Replaced as a whole under the write lock, so readers walk it without one.
+		private volatile List<ImmutableMemtable> immutableMemtables;
 		private ReentrantReadWriteLock rwLock;
 		private String dataDir;
+		private StoreOptions options;
+		private Manifest manifest;
+		private CommitLog.SyncListener syncListener;
 
-		public MemtableSelector(ReentrantReadWriteLock rwLock, String dataDir) {
-			primaryMemtable = Memtable.createNewMemtable(rwLock, dataDir);
-			secondaryMemtable = Memtable.createNewMemtable(rwLock, dataDir);
-			this.rwLock = rwLock;
-			this.dataDir = dataDir;
-		}
-
-		public MemtableSelector(ReentrantReadWriteLock rwLock, String dataDir, Memtable primaryMemtable,
-				Memtable secondaryMemtable) {
-			this.primaryMemtable = primaryMemtable;
-			this.secondaryMemtable = secondaryMemtable;
+		public MemtableSelector(ReentrantReadWriteLock rwLock, String dataDir, StoreOptions options,
+				Manifest manifest, CommitLog.SyncListener syncListener) {
 			this.rwLock = rwLock;
 			this.dataDir = dataDir;
+			this.options = options;
+			this.manifest = manifest;
+			this.syncListener = syncListener;
+			primaryMemtable = createMemtable();
+			immutableMemtables = Collections.emptyList();
 		}
 
 		public Memtable getPrimaryMemtable() {
 			return primaryMemtable;
 		}
 
-		public Memtable getSecondaryMemtable() {
-			return secondaryMemtable;
+		public List<ImmutableMemtable> getImmutableMemtables() {
+			return immutableMemtables;
 		}
 
-		public void switchPrimaryMemtable() {
+		// The primary memtable stops taking writes once it holds minBytes, a fresh one
+		// takes its place. Null when it was still smaller, or empty.
+		public ImmutableMemtable switchPrimaryMemtable(long minBytes) {
 			rwLock.writeLock().lock();
 			try {
-				if (!secondaryMemtable.empty()) {
-					logger.warn("Secondary memtable is expected to be empty but not");
-				} else {
-					Memtable tempMemtable = secondaryMemtable;
-					secondaryMemtable = primaryMemtable;
-					primaryMemtable = tempMemtable;
+				if (primaryMemtable.empty() || primaryMemtable.getMemoryBytes() < minBytes) {
+					return null;
 				}
+
+				ImmutableMemtable switched = new ImmutableMemtable(primaryMemtable);
+				List<ImmutableMemtable> immutables = new ArrayList<ImmutableMemtable>(immutableMemtables.size() + 1);
+				immutables.add(switched);
+				immutables.addAll(immutableMemtables);
+				immutableMemtables = immutables;
+				primaryMemtable = createMemtable();
+				return switched;
 			} finally {
 				rwLock.writeLock().unlock();
 			}
 		}
 
-		public void resetSecondaryMemtable() {
+		public void removeImmutableMemtable(ImmutableMemtable flushed) {
 			rwLock.writeLock().lock();
 			try {
-				secondaryMemtable.destroyCommitLog();
-				secondaryMemtable = Memtable.createNewMemtable(rwLock, dataDir);
+				List<ImmutableMemtable> immutables = new ArrayList<ImmutableMemtable>(immutableMemtables);
+				immutables.remove(flushed);
+				immutableMemtables = immutables;
 			} finally {
 				rwLock.writeLock().unlock();
 			}
+			// Off heap, the arena goes back here unless a scan still reads it
+			flushed.memtable.release();
+
+			// A log the manifest still lists is replayed again on the next start, which does no harm
+			try {
+				manifest.removeCommitLog(flushed.memtable.getLogFilePath());
+			} catch (IOException e) {
+				logger.error("Failed to remove commit log from manifest - " + flushed.memtable.getLogFilePath());
+				flushed.memtable.cleanUp();
+				return;
+			}
+			flushed.memtable.destroyCommitLog();
 		}
 
 		public ReentrantReadWriteLock getLock() {
 			return rwLock;
 		}
+
+		// The log is in the manifest before the memtable takes its first write
+		private Memtable createMemtable() {
+			Memtable mem = Memtable.createNewMemtable(rwLock, dataDir, options.getDurability(),
+					options.getSyncIntervalMillis(), options.getMemtableStorage());
+			mem.getCommitLog().setSyncListener(syncListener);
+			try {
+				manifest.addCommitLog(mem.getLogFilePath());
+			} catch (IOException e) {
+				mem.destroyCommitLog();
+				throw new RuntimeException("Failed to add commit log to manifest - " + mem.getLogFilePath(), e);
+			}
+			return mem;
+		}
 	}
 
-	private MemtableSelector memtableSelector;
-	private ReentrantReadWriteLock rwLock;
+	private MemtableSelector[] partitions;
+	private Hash partitionHash;
 	private String dataDir;
 	private ScheduledExecutorService executorService;
-	private FileAccessChoice fileAccessChoice;
+	private ExecutorService flushExecutor;
+	private StoreOptions options;
+	private VersionSet versionSet;
+	private Manifest manifest;
+	private Compactor compactor;
+	private ValueLog valueLog;
+	private ValueLogGarbageCollector valueLogGarbageCollector;
+
+	private AtomicLong writeStallCount = new AtomicLong(0);
+	private AtomicLong writeStallNanos = new AtomicLong(0);
 
 	public static KeyValueStore getNewInstance(String dataDir, FileAccessChoice fileAccessChoice) {
-		File dataFilesRoot = new File(dataDir);
+		return getNewInstance(dataDir, new StoreOptions().setFileAccessChoice(fileAccessChoice));
+	}
 
-		File[] commitLogFiles = dataFilesRoot.listFiles(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String name) {
-				return name.startsWith("commit-log-");
-			}
-		});
+	// The manifest names the tables, commit logs and value logs to open. A directory
+	// without one is listed once, and gets a manifest from then on.
+	public static KeyValueStore getNewInstance(String dataDir, StoreOptions options) {
+		Manifest manifest;
+		try {
+			manifest = Manifest.open(dataDir);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to open manifest in " + dataDir, e);
+		}
 
-		File[] sstableFiles = dataFilesRoot.listFiles(new FilenameFilter() {
-			@Override
-			public boolean accept(File dir, String name) {
-				return name.startsWith("sstable-");
+		VersionSet versionSet = createVersionSet(options);
+		List<File> commitLogFiles;
+		if (manifest.existed()) {
+			try {
+				versionSet.loadSSTables(manifest, options.getFileAccessChoice());
+			} catch (RuntimeException e) {
+				manifest.close();
+				throw e;
 			}
-		});
+			commitLogFiles = manifest.getCommitLogFiles();
+			manifest.deleteObsoleteFiles();
+		} else {
+			File dataFilesRoot = new File(dataDir);
+
+			File[] sstableFiles = dataFilesRoot.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith("sstable-");
+				}
+			});
+			versionSet.loadSSTables(sstableFiles, options.getFileAccessChoice());
 
-		if (commitLogFiles.length > 0) {
-			return reloadExistingData(dataDir, commitLogFiles, sstableFiles, fileAccessChoice);
+			commitLogFiles = new ArrayList<File>(Arrays.asList(dataFilesRoot.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.startsWith("commit-log-");
+				}
+			})));
+			Collections.sort(commitLogFiles, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
 		}
-		return new KeyValueStore(dataDir, fileAccessChoice);
+
+		List<File> valueLogFiles;
+		if (manifest.listsValueLogs()) {
+			valueLogFiles = manifest.getValueLogFiles();
+		} else {
+			// Also for a manifest written before it listed value logs
+			valueLogFiles = new ArrayList<File>(Arrays.asList(new File(dataDir).listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return ValueLog.isValueLogFileName(name);
+				}
+			})));
+			Collections.sort(valueLogFiles);
+		}
+
+		try {
+			manifest.writeSnapshot(versionSet.getCurrent(), commitLogFiles, valueLogFiles);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write manifest in " + dataDir, e);
+		}
+		versionSet.setManifest(manifest);
+
+		KeyValueStore store = new KeyValueStore(dataDir, options, versionSet, manifest);
+		if (!commitLogFiles.isEmpty()) {
+			store.recoverCommitLogs(commitLogFiles);
+		}
+		return store;
 	}
 
 	public void start() {
 		executorService.scheduleWithFixedDelay(() -> {
-			flushToSSTable();
-		} , 5, 5, TimeUnit.SECONDS);
+			valueLogGarbageCollector.collect();
+		} , options.getValueLogGcIntervalSeconds(), options.getValueLogGcIntervalSeconds(), TimeUnit.SECONDS);
+		compactor.maybeScheduleCompaction();
 	}
 
 	public void stop(boolean force) {
 
-		memtableSelector.getPrimaryMemtable().cleanUp();
-		memtableSelector.getSecondaryMemtable().cleanUp();
+		// Memtables still queued keep their commit logs and come back on the next start
+		if (force) {
+			flushExecutor.shutdownNow();
+		} else {
+			flushExecutor.shutdown();
+			try {
+				flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for (MemtableSelector partition : partitions) {
+			partition.getPrimaryMemtable().cleanUp();
+			for (ImmutableMemtable immutable : partition.getImmutableMemtables()) {
+				immutable.memtable.cleanUp();
+			}
+		}
 
 		if (force) {
 			executorService.shutdownNow();
 		} else {
 			executorService.shutdown();
 		}
+		compactor.stop(force);
+		versionSet.close();
+		valueLog.close();
+		manifest.close();
 	}
 
 	public byte[] get(byte[] key) {
-		DataItem foundValueDt = memtableSelector.getPrimaryMemtable().get(new DataItem(key));
+		DataItem keyDt = new DataItem(key);
+		MemtableSelector partition = partitionFor(keyDt);
 
-		if (foundValueDt == null) {
-			return getFromSecondaryData(key);
-		} else {
-			if (foundValueDt.equals(new DataItem(new byte[] { Memtable.TOMBSTONE }))) {
-				return null;
+		// Another round only when the value log file went away under the read
+		for (int attempt = 0; attempt < MAX_VALUE_LOG_READ_ATTEMPTS; attempt++) {
+			DataItem foundValueDt = partition.getPrimaryMemtable().get(keyDt);
+			byte[] value;
+
+			if (foundValueDt == null) {
+				value = getFromOlderData(partition, keyDt);
 			} else {
-				return foundValueDt.getData();
+				if (foundValueDt.equals(TOMBSTONE_VALUE)) {
+					return null;
+				} else {
+					value = foundValueDt.getData();
+				}
+			}
+
+			if (value == null) {
+				return null;
+			}
+			if (!ValueEncoding.isPointer(value)) {
+				return ValueEncoding.decode(value);
+			}
+			value = readValueLog(value);
+			if (value != null) {
+				return value;
 			}
 		}
+		throw new RuntimeException("Value of key points to a missing value log file");
 	}
 
 	public boolean put(byte[] key, byte[] value) {
-		Memtable mem = memtableSelector.getPrimaryMemtable();
-		return mem.put(new DataItem(key), new DataItem(value));
+		DataItem keyDt = new DataItem(key);
+		MemtableSelector partition = partitionFor(keyDt);
+		DataItem valueDt = separateValue(key, value);
+		stallWrites(partition);
+
+		// Shared lock only keeps the memtable from being switched under the writer
+		partition.getLock().readLock().lock();
+		try {
+			Memtable mem = partition.getPrimaryMemtable();
+			return mem.put(keyDt, valueDt);
+		} finally {
+			partition.getLock().readLock().unlock();
+			maybeFlush(partition);
+		}
 	}
 
+	// Blind, a tombstone is written whether or not older data holds the key. Reads
+	// and compactions let it shadow what is below, and the bottom level drops it.
 	public boolean delete(byte[] key) {
-		Memtable mem = memtableSelector.getPrimaryMemtable();
-		return mem.delete(new DataItem(key), (getFromSecondaryData(key) != null));
+		DataItem keyDt = new DataItem(key);
+		MemtableSelector partition = partitionFor(keyDt);
+		stallWrites(partition);
+
+		partition.getLock().readLock().lock();
+		try {
+			Memtable mem = partition.getPrimaryMemtable();
+			return mem.delete(keyDt, true);
+		} finally {
+			partition.getLock().readLock().unlock();
+			maybeFlush(partition);
+		}
 	}
 
-	public void flush() {
-		memtableSelector.switchPrimaryMemtable();
+	// Deletes every key in [startKey, endKey) with one range tombstone per partition,
+	// whatever number of keys that is. Reads and merges let it hide the older data it
+	// covers, and compactions drop that data in passing.
+	public boolean deleteRange(byte[] startKey, byte[] endKey) {
+		DataItem startDt = new DataItem(startKey);
+		DataItem endDt = new DataItem(endKey);
+		if (startDt.compareTo(endDt) >= 0) {
+			return true;
+		}
+
+		boolean success = true;
+		for (int p = 0; p < partitions.length; p++) {
+			MemtableSelector partition = partitions[p];
+			stallWrites(partition);
+
+			// Exclusive, so every entry the tombstone takes out of the memtable is older than it
+			partition.getLock().writeLock().lock();
+			try {
+				success &= partition.getPrimaryMemtable()
+						.deleteRange(new RangeTombstone(startDt, endDt, p, partitions.length));
+			} finally {
+				partition.getLock().writeLock().unlock();
+			}
+			maybeFlush(partition);
+		}
+		return success;
+	}
+
+	// Streams the live keys in [startKey, endKey), a null bound leaves that side open.
+	// The caller should close the iterator if it stops before the end.
+	public ScanIterator scan(byte[] startKey, byte[] endKey) {
+		DataItem startDt = (startKey == null) ? null : new DataItem(startKey);
+		DataItem endDt = (endKey == null) ? null : new DataItem(endKey);
+		List<Iterator<KeyValuePair>> sources = new ArrayList<Iterator<KeyValuePair>>();
+		List<List<RangeTombstone>> rangeTombstones = new ArrayList<List<RangeTombstone>>();
+		List<Memtable> memtables = new ArrayList<Memtable>();
+
+		// Memtables are taken before the version, anything flushed in between is
+		// still seen through them. Retiring one needs the write lock, so each is
+		// retained here before it can be released.
+		for (MemtableSelector partition : partitions) {
+			partition.getLock().readLock().lock();
+			try {
+				Memtable primary = partition.getPrimaryMemtable();
+				primary.retain();
+				memtables.add(primary);
+				sources.add(primary.iterator(startDt, endDt));
+				rangeTombstones.add(new ArrayList<RangeTombstone>(primary.getRangeTombstones()));
+				for (ImmutableMemtable immutable : partition.getImmutableMemtables()) {
+					immutable.memtable.retain();
+					memtables.add(immutable.memtable);
+					sources.add(immutable.memtable.iterator(startDt, endDt));
+					rangeTombstones.add(immutable.memtable.getRangeTombstones());
+				}
+			} finally {
+				partition.getLock().readLock().unlock();
+			}
+		}
+
+		Version version = versionSet.acquire();
+		List<SSTableIterator> sstableIterators = new ArrayList<SSTableIterator>();
 		try {
-			SSTable.createAndRegisterNewSSTable(memtableSelector.getSecondaryMemtable(), dataDir, fileAccessChoice);
+			List<SSTable> sstables = version.getSSTablesAtLevel(0);
+			Collections.reverse(sstables);
+			for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+				sstables.addAll(version.getSSTablesAtLevel(level));
+			}
+
+			for (SSTable sstable : sstables) {
+				if ((endDt == null || sstable.getFirstKey().compareTo(endDt) < 0)
+						&& (startDt == null || sstable.getLastKey().compareTo(startDt) >= 0)) {
+					SSTableIterator iterator = sstable.iterator(startDt);
+					sstableIterators.add(iterator);
+					sources.add(iterator);
+					rangeTombstones.add(sstable.getRangeTombstones());
+				}
+			}
 		} catch (IOException e) {
-			throw new RuntimeException("Failed to flush in-memory data to disk.", e);
+			for (SSTableIterator iterator : sstableIterators) {
+				iterator.close();
+			}
+			for (Memtable memtable : memtables) {
+				memtable.release();
+			}
+			versionSet.release(version);
+			throw new RuntimeException("Failed to open sstables for scan", e);
 		}
-		memtableSelector.resetSecondaryMemtable();
+
+		return new ScanIterator(this, versionSet, version, memtables, sources, rangeTombstones, sstableIterators,
+				startDt, endDt);
 	}
 
-	private KeyValueStore(String dataDir, FileAccessChoice fileAccessChoice) {
-		this.rwLock = new ReentrantReadWriteLock();
-		this.dataDir = dataDir;
-		this.fileAccessChoice = fileAccessChoice;
+	// The batch is logged as one record and applied under one lock acquisition. With
+	// several partitions each one gets the entries for its keys as a batch of its own,
+	// so the batch is all-or-nothing per partition.
+	public boolean write(WriteBatch batch) {
+		if (batch.isEmpty()) {
+			return true;
+		}
+		batch = separateValues(batch);
 
-		executorService = Executors.newScheduledThreadPool(1);
-		memtableSelector = new MemtableSelector(rwLock, this.dataDir);
+		if (partitions.length == 1) {
+			return apply(partitions[0], batch);
+		}
+
+		WriteBatch[] byPartition = new WriteBatch[partitions.length];
+		List<DataItem> keys = batch.getKeys();
+		List<DataItem> values = batch.getValues();
+		for (int i = 0; i < keys.size(); i++) {
+			int p = partitionHash.calculateHash(keys.get(i));
+			if (byPartition[p] == null) {
+				byPartition[p] = new WriteBatch();
+			}
+			byPartition[p].add(keys.get(i), values.get(i));
+		}
+
+		boolean success = true;
+		for (int p = 0; p < partitions.length; p++) {
+			if (byPartition[p] != null) {
+				success &= apply(partitions[p], byPartition[p]);
+			}
+		}
+		return success;
 	}
 
-	private KeyValueStore(String dataDir, MemtableSelector memtableSelector, FileAccessChoice fileAccessChoice) {
+	// Results line up with the keys, null where a key is missing
+	public List<byte[]> multiGet(List<byte[]> keys) {
+		int n = keys.size();
+		Integer[] order = new Integer[n];
+		DataItem[] keyDts = new DataItem[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			keyDts[i] = new DataItem(keys.get(i));
+		}
+		// Sorted keys let the sstables answer neighbours from one block read
+		Arrays.sort(order, (a, b) -> keyDts[a].compareTo(keyDts[b]));
+
+		DataItem[] found = new DataItem[n];
+		List<DataItem> remainingKeys = new ArrayList<DataItem>();
+		List<Integer> remainingPositions = new ArrayList<Integer>();
+
+		for (int position : order) {
+			DataItem keyDt = keyDts[position];
+			MemtableSelector partition = partitionFor(keyDt);
+			DataItem valueDt = partition.getPrimaryMemtable().get(keyDt);
+			if (valueDt == null) {
+				valueDt = getFromImmutableMemtables(partition, keyDt);
+			}
+
+			if (valueDt == null) {
+				remainingKeys.add(keyDt);
+				remainingPositions.add(position);
+			} else {
+				found[position] = valueDt;
+			}
+		}
+
+		if (!remainingKeys.isEmpty()) {
+			DataItem[] fromSSTables = versionSet.find(remainingKeys);
+			for (int i = 0; i < fromSSTables.length; i++) {
+				found[remainingPositions.get(i)] = fromSSTables[i];
+			}
+		}
+
+		List<byte[]> results = new ArrayList<byte[]>(n);
+		for (int i = 0; i < n; i++) {
+			DataItem valueDt = found[i];
+			results.add((valueDt == null || valueDt.equals(TOMBSTONE_VALUE)) ? null
+					: resolveValue(keyDts[i], valueDt));
+		}
+		return results;
+	}
+
+	public boolean multiPut(List<byte[]> keys, List<byte[]> values) {
+		if (keys.size() != values.size()) {
+			throw new IllegalArgumentException("Got " + keys.size() + " keys but " + values.size() + " values");
+		}
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < keys.size(); i++) {
+			batch.put(keys.get(i), values.get(i));
+		}
+		return write(batch);
+	}
+
+	public void flush() {
+		for (int i = 0; i < partitions.length; i++) {
+			flush(i);
+		}
+	}
+
+	// Only writers of this partition see the memtable switch. Returns once everything
+	// the partition held in memory when it was called is in sstables.
+	public void flush(int partitionIndex) {
+		MemtableSelector partition = partitions[partitionIndex];
+		partition.switchPrimaryMemtable(0);
+		List<ImmutableMemtable> waitingFor = partition.getImmutableMemtables();
+
+		synchronized (partition) {
+			// One that failed before gets another try
+			for (ImmutableMemtable immutable : waitingFor) {
+				scheduleFlush(partition, immutable);
+			}
+
+			for (ImmutableMemtable immutable : waitingFor) {
+				while (partition.getImmutableMemtables().contains(immutable)) {
+					if (immutable.failure != null) {
+						throw new RuntimeException("Failed to flush in-memory data to disk.", immutable.failure);
+					}
+					if (!immutable.flushing && !immutable.written) {
+						throw new RuntimeException("Cannot flush in-memory data to disk, the store is stopping");
+					}
+					try {
+						partition.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException("Interrupted while waiting for a flush", e);
+					}
+				}
+			}
+		}
+	}
+
+	// Memtables of all partitions waiting to be flushed
+	public int numberOfImmutableMemtables() {
+		int count = 0;
+		for (MemtableSelector partition : partitions) {
+			count += partition.getImmutableMemtables().size();
+		}
+		return count;
+	}
+
+	public long getWriteStallCount() {
+		return writeStallCount.get();
+	}
+
+	public long getWriteStallMicros() {
+		return writeStallNanos.get() / 1000;
+	}
+
+	public int numberOfPartitions() {
+		return partitions.length;
+	}
+
+	public int partitionOf(byte[] key) {
+		return partitionHash.calculateHash(new DataItem(key));
+	}
+
+	public Compactor getCompactor() {
+		return compactor;
+	}
+
+	public StoreOptions getOptions() {
+		return options;
+	}
+
+	public VersionSet getVersionSet() {
+		return versionSet;
+	}
+
+	public ValueLog getValueLog() {
+		return valueLog;
+	}
+
+	public ValueLogGarbageCollector getValueLogGarbageCollector() {
+		return valueLogGarbageCollector;
+	}
+
+	// The value as stored, a value log pointer is not followed
+	boolean isCurrentValue(DataItem key, DataItem expected) {
+		MemtableSelector partition = partitionFor(key);
+		DataItem current = partition.getPrimaryMemtable().get(key);
+		if (current == null) {
+			current = getFromImmutableMemtables(partition, key);
+		}
+		if (current == null) {
+			current = versionSet.find(key);
+		}
+		return expected.equals(current);
+	}
+
+	boolean replaceIfCurrent(DataItem key, DataItem expected, DataItem replacement) {
+		MemtableSelector partition = partitionFor(key);
+
+		// Exclusive, so no writer gets a newer value in between the check and the put
+		partition.getLock().writeLock().lock();
+		try {
+			if (!isCurrentValue(key, expected)) {
+				return false;
+			}
+			return partition.getPrimaryMemtable().put(key, replacement);
+		} finally {
+			partition.getLock().writeLock().unlock();
+		}
+	}
+
+	// The user value of a stored one, following a value log pointer. Null if the key
+	// went away while the pointer was followed.
+	byte[] resolveValue(DataItem key, DataItem value) {
+		if (!ValueEncoding.isPointer(value.getData())) {
+			return ValueEncoding.decode(value.getData());
+		}
+		byte[] resolved = readValueLog(value.getData());
+		return (resolved != null) ? resolved : get(key.getData());
+	}
+
+	private KeyValueStore(String dataDir, StoreOptions options, VersionSet versionSet, Manifest manifest) {
 		this.dataDir = dataDir;
-		this.memtableSelector = memtableSelector;
-		this.rwLock = this.memtableSelector.getLock();
-		this.fileAccessChoice = fileAccessChoice;
+		this.options = options;
+		this.versionSet = versionSet;
+		this.manifest = manifest;
+
+		partitions = new MemtableSelector[Math.max(1, options.getPartitionCount())];
+		partitionHash = new SimpleModuloHash(partitions.length);
+		for (int i = 0; i < partitions.length; i++) {
+			partitions[i] = new MemtableSelector(new ReentrantReadWriteLock(), this.dataDir, options, manifest,
+					this::syncValueLog);
+		}
 
 		executorService = Executors.newScheduledThreadPool(1);
+		flushExecutor = Executors.newFixedThreadPool(Math.max(1, options.getFlushThreads()), (r) -> {
+			Thread thread = new Thread(r, "flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor = new Compactor(dataDir, options, versionSet);
 
+		try {
+			valueLog = ValueLog.open(manifest, options.getValueLogFileSize());
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to open value log in " + dataDir, e);
+		}
+		valueLogGarbageCollector = new ValueLogGarbageCollector(this, valueLog, options.getValueLogGcDiscardRatio());
 	}
 
-	private static KeyValueStore reloadExistingData(String dataDir, File[] commitLogFiles, File[] sstableFiles,
-			FileAccessChoice fileAccessChoice) {
-		ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
-		Memtable[] memtables = createPrimaryMemtable(commitLogFiles, rwLock);
+	// Large values go to the value log and the memtable keeps a pointer, others are
+	// stored inline
+	private DataItem separateValue(byte[] key, byte[] value) {
+		if (value.length < options.getValueSeparationThreshold()) {
+			return new DataItem(ValueEncoding.encode(value));
+		}
+		return appendToValueLog(key, value);
+	}
 
-		if (memtables.length < 2) {
-			throw new RuntimeException(
-					"Needs at least 2 commit logs to reload the existing data. Found only " + memtables.length);
+	private DataItem appendToValueLog(byte[] key, byte[] value) {
+		try {
+			return new DataItem(valueLog.append(key, value));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to append to value log", e);
 		}
+	}
+
+	private WriteBatch separateValues(WriteBatch batch) {
+		List<DataItem> keys = batch.getKeys();
+		List<DataItem> values = batch.getValues();
+		WriteBatch separated = null;
+
+		// Batch values are already encoded
+		for (int i = 0; i < keys.size(); i++) {
+			DataItem value = values.get(i);
+			boolean large = value.length() >= options.getValueSeparationThreshold()
+					&& !ValueEncoding.isTombstone(value.getData());
+			if (separated == null && !large) {
+				continue;
+			}
+			if (separated == null) {
+				separated = new WriteBatch();
+				for (int j = 0; j < i; j++) {
+					separated.add(keys.get(j), values.get(j));
+				}
+			}
+			separated.add(keys.get(i),
+					large ? appendToValueLog(keys.get(i).getData(), ValueEncoding.decode(value.getData())) : value);
+		}
+
+		return (separated == null) ? batch : separated;
+	}
+
+	// Commit log records may point into the value log, so it is forced first
+	private void syncValueLog() throws IOException {
+		if (valueLog != null) {
+			valueLog.sync();
+		}
+	}
+
+	private byte[] readValueLog(byte[] pointer) {
+		try {
+			return valueLog.read(pointer);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read from value log", e);
+		}
+	}
 
-		for (File s : sstableFiles) {
+	private static VersionSet createVersionSet(StoreOptions options) {
+		if (options.getBlockCacheBytes() <= 0) {
+			return new VersionSet();
+		}
+		return new VersionSet(new BlockCache<Block>(options.getBlockCacheBytes(),
+				options.getBlockCacheShards()));
+	}
+
+	// Logs left behind are replayed oldest first and written out as sstables, so
+	// their data is safe no matter how many partitions the store now has
+	private void recoverCommitLogs(List<File> commitLogFiles) {
+		List<CommitLog> logs = new ArrayList<CommitLog>();
+		for (File commitLogFile : commitLogFiles) {
+			if (!commitLogFile.exists()) {
+				logger.warn("Commit log listed in the manifest is missing - " + commitLogFile.getAbsolutePath());
+			}
 			try {
-				SSTable.createAndRegisterNewSSTable(s.getAbsolutePath(), fileAccessChoice);
+				logs.add(new CommitLog(commitLogFile.getAbsolutePath(), new ReentrantReadWriteLock()));
 			} catch (IOException e) {
-				logger.error("Cannot load existing sstable file - " + s.getAbsolutePath());
+				logger.error("Failed to load commit log file - " + commitLogFile.getAbsolutePath());
 			}
 		}
 
-		MemtableSelector memtableSelector = new MemtableSelector(rwLock, dataDir, memtables[memtables.length - 1],
-				memtables[memtables.length - 2]);
-		return new KeyValueStore(dataDir, memtableSelector, fileAccessChoice);
-	}
+		List<Memtable> recovered = replayCommitLogs(logs);
+		List<Iterator<KeyValuePair>> sources = new ArrayList<Iterator<KeyValuePair>>();
+		List<List<RangeTombstone>> rangeTombstones = new ArrayList<List<RangeTombstone>>();
+		List<RangeTombstone> allRangeTombstones = new ArrayList<RangeTombstone>();
+		int expectedItemCount = 0;
+
+		for (Memtable mem : recovered) {
+			sources.add(0, mem.iterator());
+			rangeTombstones.add(0, mem.getRangeTombstones());
+			allRangeTombstones.addAll(mem.getRangeTombstones());
+			expectedItemCount += mem.numberOfItems();
+		}
 
-	private static Memtable[] createPrimaryMemtable(File[] commitLogFiles, ReentrantReadWriteLock rwLock) {
+		// One table for all of them, newer logs win over older ones
+		String sstableFilePath = dataDir + File.separator + SSTable.TEMP_FILENAME_PREFIX
+				+ UUID.randomUUID().toString();
+		try {
+			SSTable sstable = SSTable.writeSSTable(sstableFilePath, new MergingIterator(sources, rangeTombstones),
+					expectedItemCount, options, Long.MAX_VALUE, new RangeTombstoneSplitter(allRangeTombstones));
+			if (sstable != null) {
+				// The logs are deleted once it is in
+				sstable.sync();
+				sstable.renameTo(dataDir + File.separator + SSTable.getSSTableFileName(0));
+				versionSet.addSSTable(sstable);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to recover commit logs into " + sstableFilePath, e);
+		}
 
-		List<CommitLog> logsList = new ArrayList<CommitLog>();
-		for (int i = 0; i < commitLogFiles.length; i++) {
+		for (Memtable mem : recovered) {
 			try {
-				logsList.add(new CommitLog(commitLogFiles[i].getAbsolutePath(), rwLock));
+				manifest.removeCommitLog(mem.getLogFilePath());
 			} catch (IOException e) {
-				logger.error("Failed to load commit log file - " + commitLogFiles[i].getAbsolutePath());
+				throw new RuntimeException("Failed to remove recovered commit log from manifest", e);
 			}
+			mem.destroyCommitLog();
 		}
+	}
 
-		CommitLog[] logs = logsList.toArray(new CommitLog[logsList.size()]);
-		Memtable[] memtables = new Memtable[logs.length];
-		Arrays.sort(logs, (a, b) -> ((int) (a.getLastModifiedTime() - b.getLastModifiedTime())));
+	// Every log goes into a memtable of its own, so they are replayed side by side.
+	// The memtables come back in the order of the logs.
+	private List<Memtable> replayCommitLogs(List<CommitLog> logs) {
+		int threads = Math.max(1, Math.min(logs.size(), Runtime.getRuntime().availableProcessors()));
+		ExecutorService replayExecutor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Memtable>> futures = new ArrayList<Future<Memtable>>();
+			for (CommitLog log : logs) {
+				futures.add(replayExecutor.submit(
+						() -> Memtable.createMemtableFromCommitLog(log, options.getMemtableStorage())));
+			}
 
-		for (int i = logs.length - 1; i >= 0; i--) {
-			memtables[i] = Memtable.createMemtableFromCommitLog(logs[i]);
+			List<Memtable> recovered = new ArrayList<Memtable>();
+			for (Future<Memtable> future : futures) {
+				try {
+					recovered.add(future.get());
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Failed to replay commit logs", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while replaying commit logs", e);
+				}
+			}
+			return recovered;
+		} finally {
+			replayExecutor.shutdown();
 		}
+	}
 
-		return memtables;
+	private boolean apply(MemtableSelector partition, WriteBatch batch) {
+		stallWrites(partition);
+
+		partition.getLock().readLock().lock();
+		try {
+			return partition.getPrimaryMemtable().apply(batch);
+		} finally {
+			partition.getLock().readLock().unlock();
+			maybeFlush(partition);
+		}
 	}
 
-	private final void flushToSSTable() {
-		if (memtableSelector.getPrimaryMemtable().getTotalByteCount() >= MEM_TO_SSTABLE_THRESHOLD) {
-			logger.info("Flushing " + memtableSelector.getPrimaryMemtable().numberOfItems() + " items to sstable.");
-			flush();
+	private MemtableSelector partitionFor(DataItem key) {
+		if (partitions.length == 1) {
+			return partitions[0];
 		}
+		return partitions[partitionHash.calculateHash(key)];
 	}
 
-	private final byte[] getFromSecondaryData(byte[] key) {
-		DataItem keyDt = new DataItem(key);
-		DataItem foundValueDt = memtableSelector.getSecondaryMemtable().get(keyDt);
+	// Right after the write that filled the memtable, rather than on a timer
+	private void maybeFlush(MemtableSelector partition) {
+		long threshold = options.getMemtableFlushBytes() / partitions.length;
+		if (partition.getPrimaryMemtable().getMemoryBytes() < threshold) {
+			return;
+		}
+
+		ImmutableMemtable switched = partition.switchPrimaryMemtable(threshold);
+		if (switched != null) {
+			logger.info("Flushing " + switched.memtable.numberOfItems() + " items to sstable.");
+			synchronized (partition) {
+				scheduleFlush(partition, switched);
+			}
+		}
+	}
+
+	// Called holding the partition's monitor
+	private void scheduleFlush(MemtableSelector partition, ImmutableMemtable immutable) {
+		if (immutable.flushing || immutable.written) {
+			return;
+		}
+		immutable.flushing = true;
+		immutable.failure = null;
+
+		try {
+			flushExecutor.submit(() -> writeSSTable(partition, immutable));
+		} catch (RejectedExecutionException e) {
+			// Stopping, the commit log brings it back on the next start
+			immutable.flushing = false;
+		}
+	}
+
+	// Memtables of a partition are written at the same time, but each waits for the
+	// older ones before it goes into the version set
+	private void writeSSTable(MemtableSelector partition, ImmutableMemtable immutable) {
+		SSTable sstable = null;
+		IOException failure = null;
+		try {
+			sstable = SSTable.createNewSSTable(immutable.memtable, dataDir, options);
+		} catch (IOException e) {
+			logger.error("Failed to flush memtable to sstable - " + e);
+			failure = e;
+		}
+
+		synchronized (partition) {
+			immutable.flushing = false;
+			immutable.written = (failure == null);
+			immutable.sstable = sstable;
+			immutable.failure = failure;
+			if (failure != null) {
+				// Younger memtables wait on this one to go into the version set
+				retryFlush(partition, immutable);
+			}
+
+			List<ImmutableMemtable> immutables = partition.getImmutableMemtables();
+			for (int i = immutables.size() - 1; i >= 0 && immutables.get(i).written; i--) {
+				ImmutableMemtable oldest = immutables.get(i);
+				if (oldest.sstable != null) {
+					versionSet.addSSTable(oldest.sstable);
+				}
+				compactor.recordFlush(oldest.sstable);
+				partition.removeImmutableMemtable(oldest);
+			}
+			partition.notifyAll();
+		}
+		compactor.maybeScheduleCompaction();
+	}
+
+	// Called holding the partition's monitor
+	private void retryFlush(MemtableSelector partition, ImmutableMemtable immutable) {
+		long delayMillis = Math.min(MAX_FLUSH_RETRY_MILLIS,
+				FLUSH_RETRY_MILLIS << Math.min(20, immutable.failedAttempts));
+		immutable.failedAttempts++;
+
+		try {
+			executorService.schedule(() -> {
+				synchronized (partition) {
+					scheduleFlush(partition, immutable);
+				}
+			} , delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Stopping, the commit log brings it back on the next start
+		}
+	}
+
+	// Slows the write down while the partition's flush queue is over half full, and
+	// holds it while the queue is full, so memory stays bounded when flushes fall behind.
+	// A full queue whose last flush failed fails the write instead of holding it until
+	// a retry gets through.
+	private void stallWrites(MemtableSelector partition) {
+		int maxImmutables = Math.max(1, options.getMaxImmutableMemtables());
+		int slowdownFrom = (maxImmutables + 1) / 2;
+		int queued = partition.getImmutableMemtables().size();
+		if (queued < slowdownFrom) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		if (queued < maxImmutables) {
+			long delayMicros = WRITE_SLOWDOWN_MICROS << Math.min(20, queued - slowdownFrom);
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(delayMicros));
+		} else {
+			synchronized (partition) {
+				while (partition.getImmutableMemtables().size() >= maxImmutables && !flushExecutor.isShutdown()) {
+					for (ImmutableMemtable immutable : partition.getImmutableMemtables()) {
+						if (immutable.failure != null) {
+							throw new RuntimeException("Failed to flush in-memory data to disk.", immutable.failure);
+						}
+					}
+					try {
+						partition.wait(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+		}
+
+		writeStallCount.incrementAndGet();
+		writeStallNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	private DataItem getFromImmutableMemtables(MemtableSelector partition, DataItem keyDt) {
+		for (ImmutableMemtable immutable : partition.getImmutableMemtables()) {
+			DataItem foundValueDt = immutable.memtable.get(keyDt);
+			if (foundValueDt != null) {
+				return foundValueDt;
+			}
+		}
+		return null;
+	}
+
+	private final byte[] getFromOlderData(MemtableSelector partition, DataItem keyDt) {
+		DataItem foundValueDt = getFromImmutableMemtables(partition, keyDt);
 
 		if (foundValueDt == null) {
-			foundValueDt = SSTable.find(keyDt);
+			foundValueDt = versionSet.find(keyDt);
 		}
 
-		if (foundValueDt == null || foundValueDt.equals(new DataItem(new byte[] { Memtable.TOMBSTONE }))) {
+		if (foundValueDt == null || foundValueDt.equals(TOMBSTONE_VALUE)) {
 			return null;
 		}
 		return foundValueDt.getData();
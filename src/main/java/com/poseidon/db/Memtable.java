@@ -2,258 +2,426 @@ package com.poseidon.db;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
-import com.poseidon.db.hash.Hash;
-import com.poseidon.db.hash.SimpleModuloHash;
 import com.poseidon.db.io.CommitLog;
 import com.poseidon.db.io.CommitLog.LogOperation;
 import com.poseidon.db.representation.DataItem;
 import com.poseidon.db.representation.KeyValuePair;
-import com.poseidon.db.utils.Pair;
+import com.poseidon.db.representation.RangeTombstone;
+import com.poseidon.db.utils.ArenaSkipList;
 
 public class Memtable {
 
 	private final static Logger logger = Logger.getLogger(Memtable.class);
-	public static final int INITIAL_CAPACITY = 16;
 	public static final byte TOMBSTONE = 0;
-	public static final double LOAD_FACTOR = 0.75;
+	private static final DataItem TOMBSTONE_VALUE = new DataItem(new byte[] { TOMBSTONE });
+	private static final int WRITE_STRIPES = 64;
 
-	private int capacity;
-	private int itemCount;
 	private String identity;
-	private KeyValuePair[] kvPairs;
-	private Hash hashFunction;
+	private ConcurrentNavigableMap<DataItem, DataItem> kvPairs;
+	private ArenaSkipList arena;
+	private List<RangeTombstone> rangeTombstones;
 	private CommitLog commitLog;
 	private ReentrantReadWriteLock rwLock;
-	private int totalByteCount;
+	private AtomicInteger itemCount;
+	private AtomicLong totalByteCount;
+	// A write holds the stripe of its key from the log append until the map has it,
+	// so writes to one key reach the map in the order they are in the log
+	private ReentrantLock[] writeStripes;
+	// One for the store that owns it, one for every scan reading it. The arena goes
+	// back when the last one is released.
+	private AtomicInteger refCount;
 
 	public static Memtable createNewMemtable(ReentrantReadWriteLock rwLock, String logFilePath) {
-		return new Memtable(rwLock, logFilePath);
+		return createNewMemtable(rwLock, logFilePath, CommitLog.Durability.NONE, CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+	}
+
+	public static Memtable createNewMemtable(ReentrantReadWriteLock rwLock, String logFilePath,
+			CommitLog.Durability durability, long syncIntervalMillis) {
+		return createNewMemtable(rwLock, logFilePath, durability, syncIntervalMillis, MemtableStorage.HEAP);
+	}
+
+	public static Memtable createNewMemtable(ReentrantReadWriteLock rwLock, String logFilePath,
+			CommitLog.Durability durability, long syncIntervalMillis, MemtableStorage storage) {
+		return new Memtable(rwLock, logFilePath, durability, syncIntervalMillis, storage);
 	}
 
 	public static Memtable createMemtableFromCommitLog(CommitLog commitLog) {
-		Memtable mem = new Memtable(commitLog.getLock(), commitLog);
+		return createMemtableFromCommitLog(commitLog, MemtableStorage.HEAP);
+	}
 
-		for (Pair<Byte, KeyValuePair> pair : commitLog.getAllUnsavedOperations()) {
-			if (pair.getLeft().equals(LogOperation.PUT.getnumericValue())) {
-				mem.put(pair.getRight().getKey(), pair.getRight().getValue(), false);
-			} else if (pair.getLeft().equals(LogOperation.DELETE.getnumericValue())) {
-				mem.delete(pair.getRight().getKey(), false);
-			}
+	public static Memtable createMemtableFromCommitLog(CommitLog commitLog, MemtableStorage storage) {
+		Memtable mem = new Memtable(commitLog.getLock(), commitLog, storage);
+
+		try {
+			commitLog.replay((op, key, value) -> {
+				if (op == LogOperation.PUT.getnumericValue()) {
+					mem.put(key, value, false);
+				} else if (op == LogOperation.DELETE.getnumericValue()) {
+					mem.remove(key);
+				} else if (op == LogOperation.DELETE_RANGE.getnumericValue()) {
+					mem.addRangeTombstone(RangeTombstone.fromByteArray(value.getData()));
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to replay commit log file - " + commitLog.getLogFilePath(), e);
 		}
 
 		return mem;
 	}
 
-	public Hash getHashFunction() {
-		return hashFunction;
+	// A tombstone for a key only a range tombstone of this memtable deletes
+	public DataItem get(DataItem key) {
+		DataItem value;
+		if (arena != null) {
+			byte[] data = arena.get(key.getData());
+			value = (data == null) ? null : new DataItem(data);
+		} else {
+			value = kvPairs.get(key);
+		}
+		return (value == null && isDeletedByRange(key)) ? TOMBSTONE_VALUE : value;
 	}
 
-	public DataItem get(DataItem key) {
-		rwLock.readLock().lock();
+	public boolean put(DataItem key, DataItem value) {
+		return put(key, value, true);
+	}
 
+	public boolean put(DataItem key, DataItem value, boolean shouldLog) {
+		ReentrantLock stripe = stripeFor(key);
+		stripe.lock();
 		try {
-			int index = calculateIndex(key);
-
-			KeyValuePair kvp = kvPairs[index];
-			while (kvp != null) {
-				if (kvp.getKey().equals(key)) {
-					return kvp.getValue();
+			if (shouldLog) {
+				try {
+					commitLog.writeToLog(CommitLog.LogOperation.PUT, new KeyValuePair(key, value));
+				} catch (IOException e) {
+					logger.error("Failed to write to commit log file - " + commitLog.getLogFilePath());
+					return false;
 				}
-				kvp = kvp.getNext();
 			}
-
+			apply(key, value);
+			return true;
 		} finally {
-			rwLock.readLock().unlock();
+			stripe.unlock();
 		}
-
-		return null;
 	}
 
-	public boolean put(DataItem key, DataItem value) {
-		return put(key, value, true);
+	private void apply(DataItem key, DataItem value) {
+		int oldLength;
+		if (arena != null) {
+			oldLength = arena.put(key.getData(), value.getData());
+		} else {
+			DataItem oldValue = kvPairs.put(key, value);
+			oldLength = (oldValue == null) ? -1 : oldValue.length();
+		}
+
+		if (oldLength < 0) {
+			itemCount.incrementAndGet();
+			totalByteCount.addAndGet(key.length() + value.length());
+		} else {
+			totalByteCount.addAndGet(value.length() - oldLength);
+		}
 	}
 
-	public boolean put(DataItem key, DataItem value, boolean shouldLog) {
-		rwLock.writeLock().lock();
+	// One log record for the whole batch, then every entry goes in without logging.
+	// The stripes of all its keys are taken in index order, like any other writer would.
+	public boolean apply(WriteBatch batch) {
+		List<DataItem> keys = batch.getKeys();
+		List<DataItem> values = batch.getValues();
 
+		boolean[] needed = new boolean[WRITE_STRIPES];
+		for (DataItem key : keys) {
+			needed[stripeIndex(key)] = true;
+		}
+		int locked = 0;
 		try {
-			int index = calculateIndex(key);
-			KeyValuePair kvpFound = kvPairs[index];
-
-			while (kvpFound != null) {
-				if (kvpFound.getKey().equals(key)) {
-					
-					totalByteCount -= kvpFound.getValue().getData().length;
-					totalByteCount += value.getData().length;
-					
-					kvpFound.setValue(value);
-
-					if (shouldLog) {
-						commitLog.writeToLog(CommitLog.LogOperation.PUT, kvpFound);
-					}
-
-					return true;
+			for (; locked < WRITE_STRIPES; locked++) {
+				if (needed[locked]) {
+					writeStripes[locked].lock();
 				}
-				kvpFound = kvpFound.getNext();
 			}
 
-			KeyValuePair kvpCurrent = new KeyValuePair(key, value);
-			kvpCurrent.setNext(kvPairs[index]);
-			kvPairs[index] = kvpCurrent;
-			
-			totalByteCount += kvpCurrent.getKey().getData().length;
-			totalByteCount += kvpCurrent.getValue().getData().length;
-
-			if (shouldLog) {
-				commitLog.writeToLog(CommitLog.LogOperation.PUT, kvpCurrent);
+			try {
+				commitLog.writeBatchToLog(batch.getLogRecord(), batch.getByteSize());
+			} catch (IOException e) {
+				logger.error("Failed to write batch to commit log file - " + commitLog.getLogFilePath());
+				return false;
 			}
-
-			if (needsResize()) {
-				resize();
+			for (int i = 0; i < keys.size(); i++) {
+				apply(keys.get(i), values.get(i));
 			}
-
-			itemCount++;
-
-		} catch (IOException e) {
-			logger.error("Failed to write to commit log file - " + commitLog.getLogFilePath());
-			return false;
+			return true;
 		} finally {
-			rwLock.writeLock().unlock();
+			for (int i = 0; i < locked; i++) {
+				if (needed[i]) {
+					writeStripes[i].unlock();
+				}
+			}
 		}
-		return true;
 	}
 
 	public boolean delete(DataItem key, boolean markIfNotFound) {
-		rwLock.writeLock().lock();
+		if (markIfNotFound) {
+			// Older data may still hold the key, so it has to be shadowed
+			return put(key, new DataItem(new byte[] { TOMBSTONE }));
+		}
 
+		ReentrantLock stripe = stripeFor(key);
+		stripe.lock();
 		try {
 			DataItem valueDt = get(key);
 
 			if (valueDt != null) {
-				
-				totalByteCount -= key.getData().length;
-				totalByteCount -= valueDt.getData().length;
-				
-				put(key, null, false);
-				commitLog.writeToLog(LogOperation.DELETE, new KeyValuePair(key, valueDt));
-			} else if (markIfNotFound) {
-				put(key, new DataItem(new byte[] { TOMBSTONE }));
+				try {
+					commitLog.writeToLog(LogOperation.DELETE, new KeyValuePair(key, valueDt));
+				} catch (IOException e) {
+					logger.error("Failed to write to commit log file - " + commitLog.getLogFilePath());
+					return false;
+				}
+				remove(key);
 			}
-
 			return true;
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	// The caller keeps writers out, so every entry the tombstone covers is older than it
+	public boolean deleteRange(RangeTombstone rangeTombstone) {
+		try {
+			commitLog.writeToLog(LogOperation.DELETE_RANGE,
+					new KeyValuePair(rangeTombstone.getStart(), new DataItem(rangeTombstone.toByteArray())));
 		} catch (IOException e) {
 			logger.error("Failed to write to commit log file - " + commitLog.getLogFilePath());
-		} finally {
-			rwLock.writeLock().unlock();
+			return false;
 		}
-		return false;
+		addRangeTombstone(rangeTombstone);
+		return true;
 	}
 
-	public List<KeyValuePair> getAllKeyValuePairs() {
-		List<KeyValuePair> results = new ArrayList<KeyValuePair>();
+	public List<RangeTombstone> getRangeTombstones() {
+		return rangeTombstones;
+	}
 
-		for (KeyValuePair kvp : kvPairs) {
-			if (kvp == null) {
-				continue;
-			}
-			while (kvp != null) {
-				results.add(kvp);
-				kvp = kvp.getNext();
+	public boolean isDeletedByRange(DataItem key) {
+		for (RangeTombstone rangeTombstone : rangeTombstones) {
+			if (rangeTombstone.covers(key)) {
+				return true;
 			}
 		}
+		return false;
+	}
+
+	public Iterable<Map.Entry<DataItem, DataItem>> getSortedEntries() {
+		if (arena != null) {
+			return () -> {
+				Iterator<KeyValuePair> entries = iterator();
+				return new Iterator<Map.Entry<DataItem, DataItem>>() {
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public Map.Entry<DataItem, DataItem> next() {
+						KeyValuePair kvp = entries.next();
+						return new AbstractMap.SimpleImmutableEntry<DataItem, DataItem>(kvp.getKey(), kvp.getValue());
+					}
+				};
+			};
+		}
+		return kvPairs.entrySet();
+	}
 
-		return results;
+	public Iterator<KeyValuePair> iterator() {
+		return iterator(null, null);
+	}
+
+	// Entries in [startKey, endKey), a null bound leaves that side open
+	public Iterator<KeyValuePair> iterator(DataItem startKey, DataItem endKey) {
+		if (arena != null) {
+			return arena.iterator((startKey == null) ? null : startKey.getData(),
+					(endKey == null) ? null : endKey.getData());
+		}
+
+		ConcurrentNavigableMap<DataItem, DataItem> range = kvPairs;
+		if (startKey != null) {
+			range = range.tailMap(startKey, true);
+		}
+		if (endKey != null) {
+			range = range.headMap(endKey, false);
+		}
+		Iterator<Map.Entry<DataItem, DataItem>> entries = range.entrySet().iterator();
+
+		return new Iterator<KeyValuePair>() {
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public KeyValuePair next() {
+				Map.Entry<DataItem, DataItem> entry = entries.next();
+				return new KeyValuePair(entry.getKey(), entry.getValue());
+			}
+		};
 	}
 
 	public boolean empty() {
-		rwLock.writeLock().lock();
-		try {
-			return (itemCount == 0);
-		} finally {
-			rwLock.writeLock().unlock();
+		if (!rangeTombstones.isEmpty()) {
+			return false;
 		}
+		if (arena != null) {
+			return itemCount.get() == 0;
+		}
+		return kvPairs.isEmpty();
 	}
 
 	public void destroyCommitLog() {
 		commitLog.destroy();
 	}
 
-	public int size() {
-		return capacity;
+	public int numberOfItems() {
+		return itemCount.get();
 	}
 
-	public int numberOfItems() {
-		return itemCount;
+	public long getTotalByteCount() {
+		return totalByteCount.get();
 	}
-	
-	public int getTotalByteCount() {
-		return totalByteCount;
+
+	// Native memory taken by an off-heap memtable, overwritten values included
+	public long getArenaBytes() {
+		return (arena == null) ? 0 : arena.getAllocatedBytes();
+	}
+
+	// What the memtable takes up. Off heap that includes the values it overwrote.
+	public long getMemoryBytes() {
+		return (arena == null) ? totalByteCount.get() : Math.max(totalByteCount.get(), arena.getUsedBytes());
+	}
+
+	// False once the memtable was released for good
+	public boolean retain() {
+		while (true) {
+			int count = refCount.get();
+			if (count == 0) {
+				return false;
+			}
+			if (refCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	public void release() {
+		if (refCount.decrementAndGet() == 0 && arena != null) {
+			arena.release();
+		}
 	}
 
 	public String getLogFilePath() {
 		return commitLog.getLogFilePath();
 	}
 
+	public CommitLog getCommitLog() {
+		return commitLog;
+	}
+
+	public ReentrantReadWriteLock getLock() {
+		return rwLock;
+	}
+
 	public void cleanUp() {
 		commitLog.closeLogFile();
 	}
 
-	private Memtable(ReentrantReadWriteLock rwLock) {
+	private Memtable(ReentrantReadWriteLock rwLock, MemtableStorage storage) {
 		identity = UUID.randomUUID().toString();
-		kvPairs = new KeyValuePair[INITIAL_CAPACITY];
-		hashFunction = new SimpleModuloHash(INITIAL_CAPACITY);
-		itemCount = 0;
-		totalByteCount = 0;
-		capacity = INITIAL_CAPACITY;
+		if (storage == MemtableStorage.OFF_HEAP) {
+			arena = new ArenaSkipList();
+		} else {
+			kvPairs = new ConcurrentSkipListMap<DataItem, DataItem>();
+		}
+		rangeTombstones = new CopyOnWriteArrayList<RangeTombstone>();
+		itemCount = new AtomicInteger(0);
+		totalByteCount = new AtomicLong(0);
+		refCount = new AtomicInteger(1);
+		writeStripes = new ReentrantLock[WRITE_STRIPES];
+		for (int i = 0; i < WRITE_STRIPES; i++) {
+			writeStripes[i] = new ReentrantLock();
+		}
 
 		this.rwLock = rwLock;
 	}
 
-	private Memtable(ReentrantReadWriteLock rwLock, CommitLog commitLog) {
-		this(rwLock);
+	private Memtable(ReentrantReadWriteLock rwLock, CommitLog commitLog, MemtableStorage storage) {
+		this(rwLock, storage);
 		this.commitLog = commitLog;
 	}
 
-	private Memtable(ReentrantReadWriteLock rwLock, String logFilePath) {
-		this(rwLock);
+	private Memtable(ReentrantReadWriteLock rwLock, String logFilePath, CommitLog.Durability durability,
+			long syncIntervalMillis, MemtableStorage storage) {
+		this(rwLock, storage);
 
 		String commitLogPath = logFilePath + File.separator + CommitLog.LOG_FILE_NAME_PREFIX + identity;
 		try {
-			commitLog = new CommitLog(commitLogPath, rwLock);
+			commitLog = new CommitLog(commitLogPath, rwLock, durability, syncIntervalMillis);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
-	private boolean needsResize() {
-		double loadFactor = ((double) itemCount) / capacity;
-		return (loadFactor >= LOAD_FACTOR);
+	// Entries it covers go right away, so that anything left in its range is newer than it.
+	// The tombstone goes in first, so a reader never finds a covered key missing from both.
+	private void addRangeTombstone(RangeTombstone rangeTombstone) {
+		rangeTombstones.add(rangeTombstone);
+		totalByteCount.addAndGet(rangeTombstone.getStart().length() + rangeTombstone.getEnd().length());
+
+		List<DataItem> covered = new ArrayList<DataItem>();
+		Iterator<KeyValuePair> entries = iterator(rangeTombstone.getStart(), rangeTombstone.getEnd());
+		while (entries.hasNext()) {
+			DataItem key = entries.next().getKey();
+			if (rangeTombstone.covers(key)) {
+				covered.add(key);
+			}
+		}
+
+		for (DataItem key : covered) {
+			remove(key);
+		}
 	}
 
-	private void resize() {
-		capacity = (capacity << 1);
-		KeyValuePair[] tmpKvPairs = new KeyValuePair[capacity];
-		hashFunction.setCapacity(capacity);
+	private ReentrantLock stripeFor(DataItem key) {
+		return writeStripes[stripeIndex(key)];
+	}
 
-		for (KeyValuePair kvp : kvPairs) {
-			KeyValuePair currentKvp = kvp;
-			while (currentKvp != null) {
-				int newIndex = calculateIndex(currentKvp.getKey());
-				KeyValuePair nextKvp = currentKvp.getNext();
-				currentKvp.setNext(tmpKvPairs[newIndex]);
-				tmpKvPairs[newIndex] = currentKvp;
-				currentKvp = nextKvp;
-			}
-		}
-		kvPairs = tmpKvPairs;
+	private static int stripeIndex(DataItem key) {
+		return (key.hashCode() & 0x7fffffff) % WRITE_STRIPES;
 	}
 
-	private int calculateIndex(DataItem key) {
-		return hashFunction.calculateHash(key);
+	private void remove(DataItem key) {
+		int oldLength;
+		if (arena != null) {
+			oldLength = arena.remove(key.getData());
+		} else {
+			DataItem oldValue = kvPairs.remove(key);
+			oldLength = (oldValue == null) ? -1 : oldValue.length();
+		}
+
+		if (oldLength >= 0) {
+			itemCount.decrementAndGet();
+			totalByteCount.addAndGet(-(key.length() + oldLength));
+		}
 	}
 }
@@ -0,0 +1,8 @@
+package com.poseidon.db;
+
+// Where a memtable keeps its entries. OFF_HEAP copies keys and values into large
+// direct buffer chunks, so a full memtable is a handful of objects for the GC
+// rather than several per entry.
+public enum MemtableStorage {
+	HEAP, OFF_HEAP
+}
@@ -0,0 +1,108 @@
+package com.poseidon.db;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import com.poseidon.db.io.MergingIterator;
+import com.poseidon.db.io.SSTableIterator;
+import com.poseidon.db.io.Version;
+import com.poseidon.db.io.VersionSet;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
+
+// Live keys in [startKey, endKey) in key order. The sources are merged newest
+// first, so only the latest version of a key comes out, and deleted keys are
+// skipped, those under a range tombstone of a newer source too. The version
+// and the memtables the scan reads from stay pinned until the scan is closed
+// or runs out.
+public class ScanIterator implements Iterator<KeyValuePair>, Closeable {
+
+	private static final DataItem TOMBSTONE = new DataItem(new byte[] { Memtable.TOMBSTONE });
+
+	private final KeyValueStore store;
+	private final VersionSet versionSet;
+	private final Version version;
+	private final List<Memtable> memtables;
+	private final List<SSTableIterator> sstableIterators;
+	private final MergingIterator merged;
+	private final DataItem startKey;
+	private final DataItem endKey;
+	private KeyValuePair next;
+	private boolean closed;
+
+	ScanIterator(KeyValueStore store, VersionSet versionSet, Version version, List<Memtable> memtables,
+			List<Iterator<KeyValuePair>> sourcesNewestFirst, List<List<RangeTombstone>> rangeTombstones,
+			List<SSTableIterator> sstableIterators, DataItem startKey, DataItem endKey) {
+		this.store = store;
+		this.versionSet = versionSet;
+		this.version = version;
+		this.memtables = memtables;
+		this.sstableIterators = sstableIterators;
+		this.merged = new MergingIterator(sourcesNewestFirst, rangeTombstones);
+		this.startKey = startKey;
+		this.endKey = endKey;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null && !closed) {
+			advance();
+		}
+		return next != null;
+	}
+
+	@Override
+	public KeyValuePair next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		KeyValuePair result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		for (SSTableIterator iterator : sstableIterators) {
+			iterator.close();
+		}
+		versionSet.release(version);
+		for (Memtable memtable : memtables) {
+			memtable.release();
+		}
+	}
+
+	private void advance() {
+		while (merged.hasNext()) {
+			KeyValuePair kvp = merged.next();
+
+			// Sstables start at the block holding startKey, so a few earlier keys show up
+			if (startKey != null && kvp.getKey().compareTo(startKey) < 0) {
+				continue;
+			}
+			if (endKey != null && kvp.getKey().compareTo(endKey) >= 0) {
+				break;
+			}
+			if (kvp.getValue().equals(TOMBSTONE)) {
+				continue;
+			}
+
+			// Large values are read from the value log as the scan reaches them
+			byte[] value = store.resolveValue(kvp.getKey(), kvp.getValue());
+			if (value == null) {
+				continue;
+			}
+
+			next = (value == kvp.getValue().getData()) ? kvp : new KeyValuePair(kvp.getKey(), new DataItem(value));
+			return;
+		}
+		close();
+	}
+}
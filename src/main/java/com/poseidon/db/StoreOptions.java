@@ -0,0 +1,280 @@
+package com.poseidon.db;
+
+import com.poseidon.db.compaction.CompactionStyle;
+import com.poseidon.db.compaction.LeveledCompactionStrategy;
+import com.poseidon.db.compaction.SizeTieredCompactionStrategy;
+import com.poseidon.db.compression.Compression;
+import com.poseidon.db.compression.DictionaryTrainer;
+import com.poseidon.db.io.CommitLog;
+import com.poseidon.db.io.CommitLog.Durability;
+import com.poseidon.db.io.SSTable;
+import com.poseidon.db.io.ValueLog;
+import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.utils.BlockCache;
+import com.poseidon.db.utils.BloomFilter;
+
+public class StoreOptions {
+
+	private FileAccessChoice fileAccessChoice = FileAccessChoice.SIMPLE;
+	private int partitionCount = 1;
+	private Durability durability = Durability.NONE;
+	private long syncIntervalMillis = CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS;
+	private int bloomBitsPerKey = BloomFilter.DEFAULT_BITS_PER_KEY;
+	private int blockSize = SSTable.DEFAULT_BLOCK_SIZE;
+	private Compression compression = Compression.NONE;
+	private int dictionarySize = DictionaryTrainer.DEFAULT_DICTIONARY_SIZE;
+	private MemtableStorage memtableStorage = MemtableStorage.HEAP;
+	private long memtableFlushBytes = KeyValueStore.MEM_TO_SSTABLE_THRESHOLD;
+	private int maxImmutableMemtables = KeyValueStore.DEFAULT_MAX_IMMUTABLE_MEMTABLES;
+	private int flushThreads = KeyValueStore.DEFAULT_FLUSH_THREADS;
+	private int valueSeparationThreshold = Integer.MAX_VALUE;
+	private long valueLogFileSize = ValueLog.DEFAULT_FILE_SIZE;
+	private double valueLogGcDiscardRatio = ValueLogGarbageCollector.DEFAULT_DISCARD_RATIO;
+	private long valueLogGcIntervalSeconds = 60;
+	private CompactionStyle compactionStyle = CompactionStyle.SIZE_TIERED;
+	private int compactionMinThreshold = SizeTieredCompactionStrategy.DEFAULT_MIN_THRESHOLD;
+	private int compactionMaxThreshold = SizeTieredCompactionStrategy.DEFAULT_MAX_THRESHOLD;
+	private int level0CompactionTrigger = LeveledCompactionStrategy.DEFAULT_LEVEL0_TRIGGER;
+	private int levelSizeMultiplier = LeveledCompactionStrategy.DEFAULT_LEVEL_SIZE_MULTIPLIER;
+	private long level1TargetBytes = LeveledCompactionStrategy.DEFAULT_LEVEL1_TARGET_BYTES;
+	private long targetFileSize = LeveledCompactionStrategy.DEFAULT_TARGET_FILE_SIZE;
+	private long blockCacheBytes = BlockCache.DEFAULT_CAPACITY_BYTES;
+	private int blockCacheShards = BlockCache.DEFAULT_SHARD_COUNT;
+
+	public FileAccessChoice getFileAccessChoice() {
+		return fileAccessChoice;
+	}
+
+	public StoreOptions setFileAccessChoice(FileAccessChoice fileAccessChoice) {
+		this.fileAccessChoice = fileAccessChoice;
+		return this;
+	}
+
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+
+	// Each partition has its own memtables, commit log, lock and flushes
+	public StoreOptions setPartitionCount(int partitionCount) {
+		this.partitionCount = partitionCount;
+		return this;
+	}
+
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public StoreOptions setDurability(Durability durability) {
+		this.durability = durability;
+		return this;
+	}
+
+	public long getSyncIntervalMillis() {
+		return syncIntervalMillis;
+	}
+
+	public StoreOptions setSyncIntervalMillis(long syncIntervalMillis) {
+		this.syncIntervalMillis = syncIntervalMillis;
+		return this;
+	}
+
+	public int getBloomBitsPerKey() {
+		return bloomBitsPerKey;
+	}
+
+	public StoreOptions setBloomBitsPerKey(int bloomBitsPerKey) {
+		this.bloomBitsPerKey = bloomBitsPerKey;
+		return this;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// Target size of an sstable data block, bigger blocks mean a smaller index
+	// but more bytes read per lookup
+	public StoreOptions setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+		return this;
+	}
+
+	public Compression getCompression() {
+		return compression;
+	}
+
+	// Applies to sstables written from now on, older ones keep what they were written with
+	public StoreOptions setCompression(Compression compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	public int getDictionarySize() {
+		return dictionarySize;
+	}
+
+	// Only used with Compression.DEFLATE_DICTIONARY, capped at 32 KB
+	public StoreOptions setDictionarySize(int dictionarySize) {
+		this.dictionarySize = dictionarySize;
+		return this;
+	}
+
+	public MemtableStorage getMemtableStorage() {
+		return memtableStorage;
+	}
+
+	public StoreOptions setMemtableStorage(MemtableStorage memtableStorage) {
+		this.memtableStorage = memtableStorage;
+		return this;
+	}
+
+	public long getMemtableFlushBytes() {
+		return memtableFlushBytes;
+	}
+
+	// Shared by the partitions, each one flushes its memtable once it holds its part of this
+	public StoreOptions setMemtableFlushBytes(long memtableFlushBytes) {
+		this.memtableFlushBytes = memtableFlushBytes;
+		return this;
+	}
+
+	public int getMaxImmutableMemtables() {
+		return maxImmutableMemtables;
+	}
+
+	// Per partition, the memtables waiting to be flushed. Writes slow down as the
+	// queue fills up and wait once it is full.
+	public StoreOptions setMaxImmutableMemtables(int maxImmutableMemtables) {
+		this.maxImmutableMemtables = maxImmutableMemtables;
+		return this;
+	}
+
+	public int getFlushThreads() {
+		return flushThreads;
+	}
+
+	public StoreOptions setFlushThreads(int flushThreads) {
+		this.flushThreads = flushThreads;
+		return this;
+	}
+
+	public int getValueSeparationThreshold() {
+		return valueSeparationThreshold;
+	}
+
+	// Values of at least this many bytes are kept in the value log, the memtables and
+	// sstables only hold a pointer to them. Off by default.
+	public StoreOptions setValueSeparationThreshold(int valueSeparationThreshold) {
+		this.valueSeparationThreshold = valueSeparationThreshold;
+		return this;
+	}
+
+	public long getValueLogFileSize() {
+		return valueLogFileSize;
+	}
+
+	public StoreOptions setValueLogFileSize(long valueLogFileSize) {
+		this.valueLogFileSize = valueLogFileSize;
+		return this;
+	}
+
+	public double getValueLogGcDiscardRatio() {
+		return valueLogGcDiscardRatio;
+	}
+
+	// A value log file is rewritten once at least this part of it is dead
+	public StoreOptions setValueLogGcDiscardRatio(double valueLogGcDiscardRatio) {
+		this.valueLogGcDiscardRatio = valueLogGcDiscardRatio;
+		return this;
+	}
+
+	public long getValueLogGcIntervalSeconds() {
+		return valueLogGcIntervalSeconds;
+	}
+
+	public StoreOptions setValueLogGcIntervalSeconds(long valueLogGcIntervalSeconds) {
+		this.valueLogGcIntervalSeconds = valueLogGcIntervalSeconds;
+		return this;
+	}
+
+	public CompactionStyle getCompactionStyle() {
+		return compactionStyle;
+	}
+
+	public StoreOptions setCompactionStyle(CompactionStyle compactionStyle) {
+		this.compactionStyle = compactionStyle;
+		return this;
+	}
+
+	public int getCompactionMinThreshold() {
+		return compactionMinThreshold;
+	}
+
+	public StoreOptions setCompactionMinThreshold(int compactionMinThreshold) {
+		this.compactionMinThreshold = compactionMinThreshold;
+		return this;
+	}
+
+	public int getCompactionMaxThreshold() {
+		return compactionMaxThreshold;
+	}
+
+	public StoreOptions setCompactionMaxThreshold(int compactionMaxThreshold) {
+		this.compactionMaxThreshold = compactionMaxThreshold;
+		return this;
+	}
+
+	public int getLevel0CompactionTrigger() {
+		return level0CompactionTrigger;
+	}
+
+	public StoreOptions setLevel0CompactionTrigger(int level0CompactionTrigger) {
+		this.level0CompactionTrigger = level0CompactionTrigger;
+		return this;
+	}
+
+	public int getLevelSizeMultiplier() {
+		return levelSizeMultiplier;
+	}
+
+	public StoreOptions setLevelSizeMultiplier(int levelSizeMultiplier) {
+		this.levelSizeMultiplier = levelSizeMultiplier;
+		return this;
+	}
+
+	public long getLevel1TargetBytes() {
+		return level1TargetBytes;
+	}
+
+	public StoreOptions setLevel1TargetBytes(long level1TargetBytes) {
+		this.level1TargetBytes = level1TargetBytes;
+		return this;
+	}
+
+	public long getTargetFileSize() {
+		return targetFileSize;
+	}
+
+	public StoreOptions setTargetFileSize(long targetFileSize) {
+		this.targetFileSize = targetFileSize;
+		return this;
+	}
+
+	public long getBlockCacheBytes() {
+		return blockCacheBytes;
+	}
+
+	// Zero turns the block cache off
+	public StoreOptions setBlockCacheBytes(long blockCacheBytes) {
+		this.blockCacheBytes = blockCacheBytes;
+		return this;
+	}
+
+	public int getBlockCacheShards() {
+		return blockCacheShards;
+	}
+
+	public StoreOptions setBlockCacheShards(int blockCacheShards) {
+		this.blockCacheShards = blockCacheShards;
+		return this;
+	}
+}
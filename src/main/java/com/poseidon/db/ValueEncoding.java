@@ -0,0 +1,53 @@
+package com.poseidon.db;
+
+import java.util.Arrays;
+import com.poseidon.db.io.ValueLog;
+
+// How values are stored in the memtables, commit logs and sstables. Two shapes are
+// typed markers: a single TOMBSTONE byte for a deleted key, and a value log pointer.
+// A user value that happens to have one of those shapes, or the shape of an escaped
+// one, is stored behind an ESCAPE byte, so every stored value reads back as exactly
+// one type. Any other value is stored as it is and costs nothing extra.
+public class ValueEncoding {
+
+	public static final byte ESCAPE = (byte) 0xFD;
+
+	public static boolean isTombstone(byte[] stored) {
+		return stored.length == 1 && stored[0] == Memtable.TOMBSTONE;
+	}
+
+	public static boolean isPointer(byte[] stored) {
+		return ValueLog.isPointer(stored);
+	}
+
+	public static byte[] encode(byte[] value) {
+		if (!isReserved(value)) {
+			return value;
+		}
+
+		byte[] stored = new byte[value.length + 1];
+		stored[0] = ESCAPE;
+		System.arraycopy(value, 0, stored, 1, value.length);
+		return stored;
+	}
+
+	// The user value of a stored value that is neither a tombstone nor a pointer
+	public static byte[] decode(byte[] stored) {
+		if (stored.length > 0 && stored[0] == ESCAPE && isReserved(stored)) {
+			return Arrays.copyOfRange(stored, 1, stored.length);
+		}
+		return stored;
+	}
+
+	// A marker behind any number of escape bytes
+	private static boolean isReserved(byte[] value) {
+		int offset = 0;
+		while (offset < value.length && value[offset] == ESCAPE) {
+			offset++;
+		}
+
+		int length = value.length - offset;
+		return (length == 1 && value[offset] == Memtable.TOMBSTONE)
+				|| (length == ValueLog.POINTER_SIZE && value[offset] == ValueLog.POINTER_MARKER);
+	}
+}
@@ -0,0 +1,104 @@
+package com.poseidon.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import com.poseidon.db.io.ValueLog;
+import com.poseidon.db.representation.DataItem;
+
+// Gives back the space of overwritten and deleted values. A sealed value log file
+// is checked record by record against what the store currently points to; once
+// enough of it is dead, the live values are appended again, the store is pointed
+// at the new copies and the file is dropped. Files with little garbage are left
+// alone, so a value is copied only when that frees a lot more than it costs.
+public class ValueLogGarbageCollector {
+
+	private final static Logger logger = Logger.getLogger(ValueLogGarbageCollector.class);
+	public static final double DEFAULT_DISCARD_RATIO = 0.5;
+
+	private final KeyValueStore store;
+	private final ValueLog valueLog;
+	private final double discardRatio;
+
+	private AtomicLong collectedFileCount = new AtomicLong(0);
+	private AtomicLong rewrittenBytes = new AtomicLong(0);
+
+	ValueLogGarbageCollector(KeyValueStore store, ValueLog valueLog, double discardRatio) {
+		this.store = store;
+		this.valueLog = valueLog;
+		this.discardRatio = discardRatio;
+	}
+
+	// Returns how many files were dropped
+	public synchronized int collect() {
+		int collected = 0;
+
+		for (long fileNumber : valueLog.getSealedFileNumbers()) {
+			try {
+				if (collect(fileNumber)) {
+					collected++;
+				}
+			} catch (IOException | RuntimeException e) {
+				// The file stays, it is tried again on the next round
+				logger.error("Failed to collect value log file " + fileNumber, e);
+			}
+		}
+		return collected;
+	}
+
+	public long getCollectedFileCount() {
+		return collectedFileCount.get();
+	}
+
+	public long getRewrittenBytes() {
+		return rewrittenBytes.get();
+	}
+
+	private boolean collect(long fileNumber) throws IOException {
+		long fileSize = valueLog.getFileSize(fileNumber);
+		List<ValueLog.Record> live = new ArrayList<ValueLog.Record>();
+		long liveBytes = 0;
+
+		for (ValueLog.Record record : valueLog.readRecords(fileNumber)) {
+			if (store.isCurrentValue(record.getKey(), new DataItem(record.getPointer()))) {
+				live.add(record);
+				liveBytes += record.getValueLength() + record.getKey().length();
+			}
+		}
+
+		if (fileSize > 0 && 1.0 - (double) liveBytes / fileSize < discardRatio) {
+			return false;
+		}
+
+		long moved = 0;
+		for (ValueLog.Record record : live) {
+			byte[] value = valueLog.read(record.getPointer());
+			if (value == null) {
+				continue;
+			}
+			byte[] pointer = valueLog.append(record.getKey().getData(), value);
+
+			// Lost to a newer write in the meantime, the new copy is garbage from the start
+			if (store.replaceIfCurrent(record.getKey(), new DataItem(record.getPointer()), new DataItem(pointer))) {
+				moved += value.length;
+			}
+		}
+
+		// The new pointers must survive a restart before the old values go. A flush
+		// forces its tables before the manifest lists them and the commit logs holding
+		// the pointers are deleted, and throws if any of that fails.
+		if (!live.isEmpty()) {
+			valueLog.sync();
+			store.flush();
+		}
+		valueLog.deleteFile(fileNumber);
+
+		collectedFileCount.incrementAndGet();
+		rewrittenBytes.addAndGet(moved);
+		logger.info("Collected value log file " + fileNumber + " (" + fileSize + " bytes), moved " + live.size()
+				+ " live values (" + moved + " bytes)");
+		return true;
+	}
+}
@@ -0,0 +1,113 @@
+package com.poseidon.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import com.poseidon.db.io.CommitLog;
+import com.poseidon.db.representation.DataItem;
+
+// Puts and deletes that are logged as one commit log record and applied together.
+// Entries are encoded as they are added, straight into one buffer that already
+// has room for the record header, so logging the batch is a single write.
+//
+// Record: [crc int][BATCH op][bodyLength int][count int] then per entry the
+// [op][recordLength][keyLength][key][value] layout of a single record. The crc
+// is left for the commit log to fill in.
+public class WriteBatch {
+
+	private static final int HEADER_SIZE = CommitLog.CHECKSUM_SIZE + 1 + 4 + 4;
+	private static final int ENTRY_HEADER_SIZE = 1 + 4 + 4;
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private byte[] buffer;
+	private int length;
+	private List<DataItem> keys;
+	private List<DataItem> values;
+
+	public WriteBatch() {
+		buffer = new byte[INITIAL_CAPACITY];
+		length = HEADER_SIZE;
+		keys = new ArrayList<DataItem>();
+		values = new ArrayList<DataItem>();
+	}
+
+	public WriteBatch put(byte[] key, byte[] value) {
+		add(new DataItem(key), new DataItem(ValueEncoding.encode(value)));
+		return this;
+	}
+
+	// Always a tombstone, the batch does not look at older data to find out if one is needed
+	public WriteBatch delete(byte[] key) {
+		add(new DataItem(key), new DataItem(new byte[] { Memtable.TOMBSTONE }));
+		return this;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public boolean isEmpty() {
+		return keys.isEmpty();
+	}
+
+	public int getByteSize() {
+		return length;
+	}
+
+	public void clear() {
+		length = HEADER_SIZE;
+		keys.clear();
+		values.clear();
+	}
+
+	List<DataItem> getKeys() {
+		return keys;
+	}
+
+	List<DataItem> getValues() {
+		return values;
+	}
+
+	// The encoded record is the first getByteSize() bytes of the returned array
+	byte[] getLogRecord() {
+		int bodyLength = length - CommitLog.CHECKSUM_SIZE - 1 - 4;
+
+		buffer[CommitLog.CHECKSUM_SIZE] = CommitLog.LogOperation.BATCH.getnumericValue();
+		putInt(CommitLog.CHECKSUM_SIZE + 1, bodyLength);
+		putInt(CommitLog.CHECKSUM_SIZE + 5, keys.size());
+		return buffer;
+	}
+
+	void add(DataItem key, DataItem value) {
+		byte[] keyData = key.getData();
+		byte[] valueData = value.getData();
+		ensureCapacity(ENTRY_HEADER_SIZE + keyData.length + valueData.length);
+
+		// Deletes are tombstone puts, so every entry replays the same way
+		buffer[length] = CommitLog.LogOperation.PUT.getnumericValue();
+		putInt(length + 1, keyData.length + valueData.length);
+		putInt(length + 5, keyData.length);
+		length += ENTRY_HEADER_SIZE;
+
+		System.arraycopy(keyData, 0, buffer, length, keyData.length);
+		length += keyData.length;
+		System.arraycopy(valueData, 0, buffer, length, valueData.length);
+		length += valueData.length;
+
+		keys.add(key);
+		values.add(value);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+	}
+
+	private void putInt(int position, int value) {
+		buffer[position] = (byte) (value >>> 24);
+		buffer[position + 1] = (byte) (value >>> 16);
+		buffer[position + 2] = (byte) (value >>> 8);
+		buffer[position + 3] = (byte) value;
+	}
+}
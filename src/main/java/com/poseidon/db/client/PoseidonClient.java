@@ -1,6 +1,7 @@
 package com.poseidon.db.client;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface PoseidonClient {
 	public byte[] get(byte[] key) throws IOException;
@@ -8,4 +9,8 @@ public interface PoseidonClient {
 	public boolean put(byte[] key, byte[] value) throws IOException;
 	
 	public boolean delete(byte[] key) throws IOException;
+
+	public List<byte[]> multiGet(List<byte[]> keys) throws IOException;
+
+	public boolean multiPut(List<byte[]> keys, List<byte[]> values) throws IOException;
 }
@@ -0,0 +1,255 @@
+package com.poseidon.db.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import com.poseidon.db.services.NioSocketServer;
+
+// Client for the NIO socket server. It keeps one connection open and does not
+// wait for an answer before sending the next request; a reader thread matches
+// responses to requests by id. The async methods let callers keep many requests
+// in flight, the blocking ones are there to fit PoseidonClient.
+public class PoseidonPipelinedClient implements PoseidonClient, Closeable {
+
+	private final static Logger logger = Logger.getLogger(PoseidonPipelinedClient.class);
+
+	private static class Response {
+		private final byte status;
+		private final byte[] value;
+
+		Response(byte status, byte[] value) {
+			this.status = status;
+			this.value = value;
+		}
+	}
+
+	private final Socket socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final AtomicLong nextRequestId = new AtomicLong(0);
+	private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<Long, CompletableFuture<Response>>();
+	private final Thread reader;
+	private volatile boolean closed;
+
+	public PoseidonPipelinedClient(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+		reader = new Thread(this::readResponses, "poseidon-client-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public CompletableFuture<byte[]> getAsync(byte[] key) {
+		return send(NioSocketServer.GET_REQUEST, key, null).thenApply(response -> {
+			checkError(response);
+			return (response.status == NioSocketServer.STATUS_OK) ? response.value : null;
+		});
+	}
+
+	public CompletableFuture<Boolean> putAsync(byte[] key, byte[] value) {
+		return send(NioSocketServer.PUT_REQUEST, key, value).thenApply(response -> {
+			checkError(response);
+			return response.status == NioSocketServer.STATUS_OK;
+		});
+	}
+
+	public CompletableFuture<Boolean> deleteAsync(byte[] key) {
+		return send(NioSocketServer.DELETE_REQUEST, key, null).thenApply(response -> {
+			checkError(response);
+			return response.status == NioSocketServer.STATUS_OK;
+		});
+	}
+
+	public CompletableFuture<List<byte[]>> multiGetAsync(List<byte[]> keys) {
+		int size = 4;
+		for (byte[] key : keys) {
+			size += 4 + key.length;
+		}
+
+		ByteBuffer batch = ByteBuffer.allocate(size);
+		batch.putInt(keys.size());
+		for (byte[] key : keys) {
+			batch.putInt(key.length);
+			batch.put(key);
+		}
+
+		return send(NioSocketServer.MULTI_GET_REQUEST, new byte[0], batch.array()).thenApply(response -> {
+			checkError(response);
+			ByteBuffer encoded = ByteBuffer.wrap(response.value);
+			List<byte[]> values = new ArrayList<byte[]>(keys.size());
+			while (encoded.hasRemaining()) {
+				int length = encoded.getInt();
+				if (length < 0) {
+					values.add(null);
+				} else {
+					byte[] value = new byte[length];
+					encoded.get(value);
+					values.add(value);
+				}
+			}
+			return values;
+		});
+	}
+
+	public CompletableFuture<Boolean> multiPutAsync(List<byte[]> keys, List<byte[]> values) {
+		if (keys.size() != values.size()) {
+			throw new IllegalArgumentException("Got " + keys.size() + " keys but " + values.size() + " values");
+		}
+
+		int size = 4;
+		for (int i = 0; i < keys.size(); i++) {
+			size += 8 + keys.get(i).length + values.get(i).length;
+		}
+
+		ByteBuffer batch = ByteBuffer.allocate(size);
+		batch.putInt(keys.size());
+		for (int i = 0; i < keys.size(); i++) {
+			batch.putInt(keys.get(i).length);
+			batch.put(keys.get(i));
+			batch.putInt(values.get(i).length);
+			batch.put(values.get(i));
+		}
+
+		return send(NioSocketServer.MULTI_PUT_REQUEST, new byte[0], batch.array()).thenApply(response -> {
+			checkError(response);
+			return response.status == NioSocketServer.STATUS_OK;
+		});
+	}
+
+	@Override
+	public byte[] get(byte[] key) throws IOException {
+		return await(getAsync(key));
+	}
+
+	@Override
+	public boolean put(byte[] key, byte[] value) throws IOException {
+		return await(putAsync(key, value));
+	}
+
+	@Override
+	public boolean delete(byte[] key) throws IOException {
+		return await(deleteAsync(key));
+	}
+
+	@Override
+	public List<byte[]> multiGet(List<byte[]> keys) throws IOException {
+		return await(multiGetAsync(keys));
+	}
+
+	@Override
+	public boolean multiPut(List<byte[]> keys, List<byte[]> values) throws IOException {
+		return await(multiPutAsync(keys, values));
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		socket.close();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private CompletableFuture<Response> send(byte op, byte[] key, byte[] value) {
+		long requestId = nextRequestId.incrementAndGet();
+		CompletableFuture<Response> future = new CompletableFuture<Response>();
+		int valueLength = (value == null) ? 0 : value.length;
+
+		pending.put(requestId, future);
+		try {
+			synchronized (out) {
+				out.writeInt(NioSocketServer.REQUEST_HEADER_SIZE + key.length + valueLength);
+				out.writeLong(requestId);
+				out.writeByte(op);
+				out.writeInt(key.length);
+				out.write(key);
+				if (value != null) {
+					out.write(value);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			pending.remove(requestId);
+			future.completeExceptionally(e);
+		}
+
+		// The reader may have given up between the put and the write
+		if (closed && pending.remove(requestId) != null) {
+			future.completeExceptionally(new IOException("Connection is closed"));
+		}
+		return future;
+	}
+
+	private void readResponses() {
+		IOException failure = null;
+
+		try {
+			while (true) {
+				int frameLength = in.readInt();
+				long requestId = in.readLong();
+				byte status = in.readByte();
+				byte[] value = new byte[frameLength - NioSocketServer.RESPONSE_HEADER_SIZE];
+				in.readFully(value);
+
+				CompletableFuture<Response> future = pending.remove(requestId);
+				if (future == null) {
+					logger.warn("Response for unknown request " + requestId);
+				} else {
+					future.complete(new Response(status, value));
+				}
+			}
+		} catch (IOException e) {
+			failure = closed ? new IOException("Connection is closed") : e;
+		}
+
+		closed = true;
+		for (Long requestId : pending.keySet()) {
+			CompletableFuture<Response> future = pending.remove(requestId);
+			if (future != null) {
+				future.completeExceptionally(failure);
+			}
+		}
+	}
+
+	private static void checkError(Response response) {
+		if (response.status == NioSocketServer.STATUS_ERROR) {
+			throw new RuntimeException("Server failed to serve the request");
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+}
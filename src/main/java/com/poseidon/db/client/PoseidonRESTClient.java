@@ -8,6 +8,8 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.poseidon.db.utils.RESTUtils.DataFormat.DeleteRequest;
 import com.poseidon.db.utils.RESTUtils.DataFormat.GetResult;
@@ -157,4 +159,23 @@ public class PoseidonRESTClient implements PoseidonClient {
 
 		return success;
 	}
+
+	// The REST API has no batch endpoint, so batches go one key at a time
+	@Override
+	public List<byte[]> multiGet(List<byte[]> keys) throws IOException {
+		List<byte[]> values = new ArrayList<byte[]>(keys.size());
+		for (byte[] key : keys) {
+			values.add(get(key));
+		}
+		return values;
+	}
+
+	@Override
+	public boolean multiPut(List<byte[]> keys, List<byte[]> values) throws IOException {
+		boolean success = true;
+		for (int i = 0; i < keys.size(); i++) {
+			success &= put(keys.get(i), values.get(i));
+		}
+		return success;
+	}
 }
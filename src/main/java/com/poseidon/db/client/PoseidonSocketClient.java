@@ -1,9 +1,19 @@
 package com.poseidon.db.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
 import com.poseidon.db.utils.DataConversion;
 import com.poseidon.db.utils.IOUtils;
 
@@ -17,6 +27,66 @@ public class PoseidonSocketClient implements PoseidonClient {
 		public Object call(byte[] key, byte[] value) throws IOException;
 	}
 
+	// Reads a scan answer chunk by chunk as the caller walks through it, so only
+	// one chunk is held at a time. Closing early drops the connection.
+	public static class ScanStream implements Iterator<KeyValuePair>, Closeable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private int remainingInChunk;
+		private boolean finished;
+
+		ScanStream(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (remainingInChunk == 0 && !finished) {
+				try {
+					remainingInChunk = in.readInt();
+				} catch (IOException e) {
+					close();
+					throw new UncheckedIOException(e);
+				}
+				if (remainingInChunk == 0) {
+					close();
+				}
+			}
+			return remainingInChunk > 0;
+		}
+
+		@Override
+		public KeyValuePair next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			try {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				remainingInChunk--;
+				return new KeyValuePair(new DataItem(key), new DataItem(value));
+			} catch (IOException e) {
+				close();
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+			finished = true;
+			remainingInChunk = 0;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing more to read from it anyway
+			}
+		}
+	}
+
 	private String host;
 	private int port;
 	private int numOfRetry;
@@ -48,6 +118,45 @@ public class PoseidonSocketClient implements PoseidonClient {
 		return (boolean) retryLoop(this::deleteData, key, null);
 	}
 
+	@Override
+	public List<byte[]> multiGet(List<byte[]> keys) throws IOException {
+		@SuppressWarnings("unchecked")
+		List<byte[]> values = (List<byte[]>) retryLoop((_key, _value) -> multiGetData(keys), null, null);
+		return values;
+	}
+
+	@Override
+	public boolean multiPut(List<byte[]> keys, List<byte[]> values) throws IOException {
+		return (boolean) retryLoop((_key, _value) -> multiPutData(keys, values), null, null);
+	}
+
+	// Keys in [startKey, endKey), null leaves a side open
+	public ScanStream scan(byte[] startKey, byte[] endKey) throws IOException {
+		Socket socket = new Socket(host, port);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			out.writeByte(5);
+			writeOptionalBytes(out, startKey);
+			writeOptionalBytes(out, endKey);
+			out.flush();
+
+			return new ScanStream(socket);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static void writeOptionalBytes(DataOutputStream out, byte[] data) throws IOException {
+		if (data == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
 	private Object retryLoop(Function func, byte[] key, byte[] value) throws IOException {
 		for (int i = 0; i < numOfRetry;) {
 			try {
@@ -112,6 +221,59 @@ public class PoseidonSocketClient implements PoseidonClient {
 		return successBuf[0] == 1;
 	}
 
+	private Object multiGetData(List<byte[]> keys) throws IOException {
+		List<byte[]> values = new ArrayList<byte[]>(keys.size());
+
+		try (Socket socket = new Socket(host, port)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			out.writeByte(3);
+			out.writeInt(keys.size());
+			for (byte[] key : keys) {
+				out.writeInt(key.length);
+				out.write(key);
+			}
+			out.flush();
+
+			for (int i = 0; i < keys.size(); i++) {
+				int length = in.readInt();
+				if (length < 0) {
+					values.add(null);
+				} else {
+					byte[] value = new byte[length];
+					in.readFully(value);
+					values.add(value);
+				}
+			}
+		}
+
+		return values;
+	}
+
+	private Object multiPutData(List<byte[]> keys, List<byte[]> values) throws IOException {
+		if (keys.size() != values.size()) {
+			throw new IllegalArgumentException("Got " + keys.size() + " keys but " + values.size() + " values");
+		}
+
+		try (Socket socket = new Socket(host, port)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+
+			out.writeByte(4);
+			out.writeInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				out.writeInt(keys.get(i).length);
+				out.write(keys.get(i));
+				out.writeInt(values.get(i).length);
+				out.write(values.get(i));
+			}
+			out.flush();
+
+			return in.readByte() == 1;
+		}
+	}
+
 	private Object deleteData(byte[] key, byte[] _dummy) throws IOException {
 		byte[] successBuf = new byte[1];
 
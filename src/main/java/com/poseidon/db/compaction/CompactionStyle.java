@@ -0,0 +1,5 @@
+package com.poseidon.db.compaction;
+
+public enum CompactionStyle {
+	NONE, SIZE_TIERED, LEVELED
+}
@@ -0,0 +1,448 @@
+package com.poseidon.db.compaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.log4j.Logger;
+import com.poseidon.db.Memtable;
+import com.poseidon.db.StoreOptions;
+import com.poseidon.db.io.MergingIterator;
+import com.poseidon.db.io.RangeTombstoneSplitter;
+import com.poseidon.db.io.SSTable;
+import com.poseidon.db.io.SSTableIterator;
+import com.poseidon.db.io.Version;
+import com.poseidon.db.io.VersionSet;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
+
+// Merges sstables in the background. Foreground reads keep using the input tables
+// until the merged table is swapped into the registry in a single step.
+public class Compactor {
+
+	private final static Logger logger = Logger.getLogger(Compactor.class);
+	public static final String COMPACTION_FILENAME_PREFIX = "compaction-";
+
+	private static final DataItem TOMBSTONE_VALUE = new DataItem(new byte[] { Memtable.TOMBSTONE });
+
+	private String dataDir;
+	private StoreOptions options;
+	private VersionSet versionSet;
+	private SizeTieredCompactionStrategy strategy;
+	private LeveledCompactionStrategy leveledStrategy;
+	private ExecutorService executorService;
+	private AtomicBoolean queued;
+	private volatile boolean stopping;
+
+	private AtomicLong compactionCount;
+	private AtomicLong bytesRead;
+	private AtomicLong bytesWritten;
+	private AtomicLong bytesFlushed;
+	// Indexed by level, what compactions read out of and wrote into each level
+	private AtomicLongArray levelBytesRead;
+	private AtomicLongArray levelBytesWritten;
+
+	public Compactor(String dataDir, StoreOptions options, VersionSet versionSet) {
+		this.dataDir = dataDir;
+		this.options = options;
+		this.versionSet = versionSet;
+		this.strategy = new SizeTieredCompactionStrategy(options.getCompactionMinThreshold(),
+				options.getCompactionMaxThreshold());
+		this.leveledStrategy = new LeveledCompactionStrategy(options.getLevel0CompactionTrigger(),
+				options.getLevelSizeMultiplier(), options.getLevel1TargetBytes());
+		this.queued = new AtomicBoolean(false);
+		this.compactionCount = new AtomicLong(0);
+		this.bytesRead = new AtomicLong(0);
+		this.bytesWritten = new AtomicLong(0);
+		this.bytesFlushed = new AtomicLong(0);
+		this.levelBytesRead = new AtomicLongArray(SSTable.MAX_LEVELS);
+		this.levelBytesWritten = new AtomicLongArray(SSTable.MAX_LEVELS);
+
+		executorService = Executors.newSingleThreadExecutor((r) -> {
+			Thread thread = new Thread(r, "compactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void maybeScheduleCompaction() {
+		if (options.getCompactionStyle() == CompactionStyle.NONE) {
+			return;
+		}
+
+		if (queued.compareAndSet(false, true)) {
+			executorService.submit(() -> {
+				queued.set(false);
+				runCompactions();
+			});
+		}
+	}
+
+	public void recordFlush(SSTable sstable) {
+		if (sstable != null) {
+			bytesFlushed.addAndGet(sstable.getFileSize());
+			levelBytesWritten.addAndGet(0, sstable.getFileSize());
+		}
+	}
+
+	public boolean compactOnce() throws IOException {
+		// Holding the version keeps the input files open until the merge is done
+		Version version = versionSet.acquire();
+		try {
+			if (options.getCompactionStyle() == CompactionStyle.LEVELED) {
+				return compactLeveledOnce(version);
+			}
+
+			List<SSTable> sstables = version.getSSTablesAtLevel(0);
+			List<SSTable> picked = strategy.pickCompaction(sstables);
+
+			if (picked == null) {
+				return false;
+			}
+
+			// Tombstones can only go once nothing older than the merged run is left
+			compact(picked, picked.get(0) == sstables.get(0) && !hasDeeperLevels(version, 0));
+			return true;
+		} finally {
+			versionSet.release(version);
+		}
+	}
+
+	// Write amplification of a level is what was written into it per byte flushed
+	public double getWriteAmplification(int level) {
+		long flushed = bytesFlushed.get();
+		return (flushed == 0) ? 0 : (double) levelBytesWritten.get(level) / flushed;
+	}
+
+	public double getWriteAmplification() {
+		long flushed = bytesFlushed.get();
+		return (flushed == 0) ? 0 : (double) (flushed + bytesWritten.get()) / flushed;
+	}
+
+	// Read amplification of a level is the number of its tables probed per lookup
+	public double getReadAmplification(int level) {
+		long lookups = versionSet.getLookupCount();
+		return (lookups == 0) ? 0 : (double) versionSet.getProbeCount(level) / lookups;
+	}
+
+	public long getBytesFlushed() {
+		return bytesFlushed.get();
+	}
+
+	public long getBytesReadFromLevel(int level) {
+		return levelBytesRead.get(level);
+	}
+
+	public long getBytesWrittenToLevel(int level) {
+		return levelBytesWritten.get(level);
+	}
+
+	public String describeLevels() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-6s %6s %14s %14s %8s %8s %8s%n", "level", "files", "bytes", "target", "w-amp",
+				"r-amp", "c-ratio"));
+
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			List<SSTable> sstables = versionSet.getSSTablesAtLevel(level);
+			if (sstables.isEmpty() && levelBytesWritten.get(level) == 0) {
+				continue;
+			}
+			long uncompressedBytes = 0;
+			long storedBytes = 0;
+			for (SSTable sstable : sstables) {
+				uncompressedBytes += sstable.getUncompressedDataBytes();
+				storedBytes += sstable.getStoredDataBytes();
+			}
+
+			sb.append(String.format("L%-5d %6d %14d %14d %8.2f %8.2f %8.2f%n", level, sstables.size(),
+					LeveledCompactionStrategy.totalBytes(sstables), leveledStrategy.getTargetBytes(level),
+					getWriteAmplification(level), getReadAmplification(level),
+					(storedBytes == 0) ? 1.0 : (double) uncompressedBytes / storedBytes));
+		}
+		sb.append(String.format("total write amplification %.2f", getWriteAmplification()));
+		return sb.toString();
+	}
+
+	// Without force, a merge that is running is finished first, so no file of this
+	// store is changed once it returns
+	public void stop(boolean force) {
+		stopping = true;
+		if (force) {
+			executorService.shutdownNow();
+			return;
+		}
+
+		executorService.shutdown();
+		try {
+			executorService.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public long getCompactionCount() {
+		return compactionCount.get();
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	private void runCompactions() {
+		try {
+			while (!stopping && compactOnce()) {
+				// Keep going while the strategy still finds work
+			}
+		} catch (IOException | UncheckedIOException e) {
+			logger.error("Failed to compact sstables - " + e);
+		}
+	}
+
+	private boolean compactLeveledOnce(Version version) throws IOException {
+		List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			levels.add(version.getSSTablesAtLevel(level));
+		}
+
+		LeveledCompactionStrategy.Compaction compaction = leveledStrategy.pickCompaction(levels);
+		if (compaction == null) {
+			return false;
+		}
+
+		if (compaction.getLevel() > 0 && compaction.getOverlapping().isEmpty()) {
+			SSTable sstable = compaction.getInputs().get(0);
+			versionSet.moveToLevel(sstable, compaction.getOutputLevel());
+			logger.info("Moved " + sstable.getSSTableFilePath() + " to level " + compaction.getOutputLevel());
+			return true;
+		}
+
+		compactIntoLevel(version, compaction);
+		return true;
+	}
+
+	private boolean hasDeeperLevels(Version version, int level) {
+		for (int deeper = level + 1; deeper < SSTable.MAX_LEVELS; deeper++) {
+			if (!version.getSSTablesAtLevel(deeper).isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean overlapsDeeperLevels(Version version, int level, DataItem smallestKey, DataItem largestKey) {
+		for (int deeper = level + 1; deeper < SSTable.MAX_LEVELS; deeper++) {
+			for (SSTable sstable : version.getSSTablesAtLevel(deeper)) {
+				if (sstable.overlaps(smallestKey, largestKey)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void compactIntoLevel(Version version, LeveledCompactionStrategy.Compaction compaction)
+			throws IOException {
+		List<SSTable> sourceTables = compaction.getSourcesNewestFirst();
+		List<SSTableIterator> sources = new ArrayList<SSTableIterator>();
+		List<SSTable> outputs = new ArrayList<SSTable>();
+		int outputLevel = compaction.getOutputLevel();
+		long inputBytes = 0;
+		long outputBytes = 0;
+
+		try {
+			for (SSTable sstable : sourceTables) {
+				sources.add(sstable.iterator());
+			}
+
+			// Older versions of a key can only sit in deeper levels
+			Iterator<KeyValuePair> merged = new MergingIterator(sources, rangeTombstonesOf(sourceTables));
+			RangeTombstoneSplitter rangeTombstones = new RangeTombstoneSplitter(allRangeTombstones(sourceTables));
+			if (!overlapsDeeperLevels(version, outputLevel, compaction.getSmallestKey(), compaction.getLargestKey())) {
+				merged = withoutTombstones(merged);
+				rangeTombstones = RangeTombstoneSplitter.none();
+			}
+
+			// Outputs are cut at the target file size, and since the merge is in key
+			// order they cover disjoint ranges. The first one is written even when the
+			// merge is empty, it may still have range tombstones to keep.
+			int expectedItemCount = expectedItemsPerOutput(sourceTables, options.getTargetFileSize());
+			do {
+				String outputPath = dataDir + File.separator + COMPACTION_FILENAME_PREFIX
+						+ UUID.randomUUID().toString();
+				SSTable output = SSTable.writeSSTable(outputPath, merged, expectedItemCount, options,
+						options.getTargetFileSize(), rangeTombstones);
+
+				if (output != null) {
+					// The inputs are deleted once the outputs are in
+					output.sync();
+					output.renameTo(dataDir + File.separator + SSTable.getSSTableFileName(outputLevel));
+					outputs.add(output);
+					outputBytes += output.getFileSize();
+				}
+			} while (merged.hasNext());
+
+			versionSet.replaceSSTables(compaction.getAllTables(), outputs);
+		} catch (IOException | UncheckedIOException e) {
+			for (SSTable output : outputs) {
+				output.closeSSTableFile();
+				new File(output.getSSTableFilePath()).delete();
+			}
+			throw e;
+		} finally {
+			for (SSTableIterator source : sources) {
+				source.close();
+			}
+		}
+
+		long levelInputBytes = LeveledCompactionStrategy.totalBytes(compaction.getInputs());
+		long overlappingBytes = LeveledCompactionStrategy.totalBytes(compaction.getOverlapping());
+		inputBytes = levelInputBytes + overlappingBytes;
+
+		compactionCount.incrementAndGet();
+		bytesRead.addAndGet(inputBytes);
+		bytesWritten.addAndGet(outputBytes);
+		levelBytesRead.addAndGet(compaction.getLevel(), levelInputBytes);
+		levelBytesRead.addAndGet(outputLevel, overlappingBytes);
+		levelBytesWritten.addAndGet(outputLevel, outputBytes);
+
+		logger.info("Compacted " + compaction.getInputs().size() + " sstables from level " + compaction.getLevel()
+				+ " with " + compaction.getOverlapping().size() + " from level " + outputLevel + " (" + inputBytes
+				+ " bytes) into " + outputs.size() + " sstables (" + outputBytes + " bytes)");
+		logger.info("Level summary\n" + describeLevels());
+	}
+
+	// Items an output of at most targetFileSize bytes gets from the inputs, which sizes
+	// its filter. Input files carry an index and filter too, so an eighth on top keeps
+	// the estimate from falling short.
+	static int expectedItemsPerOutput(List<SSTable> inputs, long targetFileSize) {
+		long items = 0;
+		long bytes = 0;
+		for (SSTable sstable : inputs) {
+			items += sstable.numberOfItems();
+			bytes += sstable.getFileSize();
+		}
+
+		long expected = items;
+		if (bytes > targetFileSize) {
+			expected = Math.min(items, items * targetFileSize / bytes + items * targetFileSize / bytes / 8);
+		}
+		return (int) Math.max(1, Math.min(expected, Integer.MAX_VALUE));
+	}
+
+	private void compact(List<SSTable> inputsOldestFirst, boolean dropTombstones) throws IOException {
+		List<SSTable> inputsNewestFirst = new ArrayList<SSTable>();
+		List<SSTableIterator> sources = new ArrayList<SSTableIterator>();
+		int expectedItemCount = 0;
+		long inputBytes = 0;
+
+		try {
+			for (int i = inputsOldestFirst.size() - 1; i >= 0; i--) {
+				SSTable sstable = inputsOldestFirst.get(i);
+				inputsNewestFirst.add(sstable);
+				sources.add(sstable.iterator());
+				expectedItemCount += sstable.numberOfItems();
+				inputBytes += sstable.getFileSize();
+			}
+
+			Iterator<KeyValuePair> merged = new MergingIterator(sources, rangeTombstonesOf(inputsNewestFirst));
+			RangeTombstoneSplitter rangeTombstones = new RangeTombstoneSplitter(
+					allRangeTombstones(inputsNewestFirst));
+			if (dropTombstones) {
+				merged = withoutTombstones(merged);
+				rangeTombstones = RangeTombstoneSplitter.none();
+			}
+
+			String outputPath = dataDir + File.separator + COMPACTION_FILENAME_PREFIX + UUID.randomUUID().toString();
+			SSTable output = SSTable.writeSSTable(outputPath, merged, expectedItemCount, options, Long.MAX_VALUE,
+					rangeTombstones);
+
+			List<SSTable> outputs = new ArrayList<SSTable>();
+			if (output != null) {
+				// Named after the newest input so that a reload still finds it between
+				// the tables that were older and newer than the merged run
+				long unixTime = inputsOldestFirst.get(inputsOldestFirst.size() - 1).getUnixTime();
+				output.sync();
+				output.renameTo(dataDir + File.separator + SSTable.getSSTableFileName(0, unixTime));
+				outputs.add(output);
+			}
+			versionSet.replaceSSTables(inputsOldestFirst, outputs);
+
+			long outputBytes = (output == null) ? 0 : output.getFileSize();
+			compactionCount.incrementAndGet();
+			bytesRead.addAndGet(inputBytes);
+			bytesWritten.addAndGet(outputBytes);
+			levelBytesRead.addAndGet(0, inputBytes);
+			levelBytesWritten.addAndGet(0, outputBytes);
+
+			logger.info("Compacted " + inputsOldestFirst.size() + " sstables (" + inputBytes + " bytes) into "
+					+ ((output == null) ? "nothing" : output.getSSTableFilePath()) + " (" + outputBytes + " bytes)");
+		} finally {
+			for (SSTableIterator source : sources) {
+				source.close();
+			}
+		}
+	}
+
+	private static List<List<RangeTombstone>> rangeTombstonesOf(List<SSTable> sstables) {
+		List<List<RangeTombstone>> results = new ArrayList<List<RangeTombstone>>();
+		for (SSTable sstable : sstables) {
+			results.add(sstable.getRangeTombstones());
+		}
+		return results;
+	}
+
+	// Kept in the output for what is older than the merged tables
+	private static List<RangeTombstone> allRangeTombstones(List<SSTable> sstables) {
+		List<RangeTombstone> results = new ArrayList<RangeTombstone>();
+		for (SSTable sstable : sstables) {
+			results.addAll(sstable.getRangeTombstones());
+		}
+		return results;
+	}
+
+	private static Iterator<KeyValuePair> withoutTombstones(Iterator<KeyValuePair> kvps) {
+		return new Iterator<KeyValuePair>() {
+			private KeyValuePair nextKvp = advance();
+
+			@Override
+			public boolean hasNext() {
+				return nextKvp != null;
+			}
+
+			@Override
+			public KeyValuePair next() {
+				if (nextKvp == null) {
+					throw new NoSuchElementException();
+				}
+				KeyValuePair current = nextKvp;
+				nextKvp = advance();
+				return current;
+			}
+
+			private KeyValuePair advance() {
+				while (kvps.hasNext()) {
+					KeyValuePair kvp = kvps.next();
+					if (!kvp.getValue().equals(TOMBSTONE_VALUE)) {
+						return kvp;
+					}
+				}
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,173 @@
+package com.poseidon.db.compaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.poseidon.db.io.SSTable;
+import com.poseidon.db.representation.DataItem;
+
+// Level 0 holds flushed tables whose key ranges may overlap. Every deeper level
+// is a set of tables with disjoint key ranges, allowed to grow about ten times
+// larger than the level above it. A compaction merges some tables of one level
+// into the tables they overlap in the next level.
+public class LeveledCompactionStrategy {
+
+	public static final int DEFAULT_LEVEL0_TRIGGER = 4;
+	public static final int DEFAULT_LEVEL_SIZE_MULTIPLIER = 10;
+	public static final long DEFAULT_LEVEL1_TARGET_BYTES = 10L * 1024 * 1024;
+	public static final long DEFAULT_TARGET_FILE_SIZE = 2L * 1024 * 1024;
+
+	public static class Compaction {
+		private int level;
+		private List<SSTable> inputs;
+		private List<SSTable> overlapping;
+
+		Compaction(int level, List<SSTable> inputs, List<SSTable> overlapping) {
+			this.level = level;
+			this.inputs = inputs;
+			this.overlapping = overlapping;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public int getOutputLevel() {
+			return level + 1;
+		}
+
+		// Tables of the compacted level, oldest first
+		public List<SSTable> getInputs() {
+			return inputs;
+		}
+
+		// Tables of the output level sharing keys with the inputs, in key order
+		public List<SSTable> getOverlapping() {
+			return overlapping;
+		}
+
+		// Newest data comes first, which is the order the merge expects
+		public List<SSTable> getSourcesNewestFirst() {
+			List<SSTable> sources = new ArrayList<SSTable>(inputs);
+			Collections.reverse(sources);
+			sources.addAll(overlapping);
+			return sources;
+		}
+
+		public List<SSTable> getAllTables() {
+			List<SSTable> tables = new ArrayList<SSTable>(inputs);
+			tables.addAll(overlapping);
+			return tables;
+		}
+
+		public DataItem getSmallestKey() {
+			return smallestKey(getAllTables());
+		}
+
+		public DataItem getLargestKey() {
+			return largestKey(getAllTables());
+		}
+	}
+
+	private int level0Trigger;
+	private int levelSizeMultiplier;
+	private long level1TargetBytes;
+	// Where the last compaction of each level stopped, so every key range gets its turn
+	private DataItem[] compactPointers;
+
+	public LeveledCompactionStrategy(int level0Trigger, int levelSizeMultiplier, long level1TargetBytes) {
+		this.level0Trigger = Math.max(1, level0Trigger);
+		this.levelSizeMultiplier = Math.max(2, levelSizeMultiplier);
+		this.level1TargetBytes = level1TargetBytes;
+		this.compactPointers = new DataItem[SSTable.MAX_LEVELS];
+	}
+
+	public long getTargetBytes(int level) {
+		if (level == 0) {
+			return 0;
+		}
+
+		long target = level1TargetBytes;
+		for (int i = 1; i < level; i++) {
+			target *= levelSizeMultiplier;
+		}
+		return target;
+	}
+
+	// Takes the tables of every level, indexed by level
+	public Compaction pickCompaction(List<List<SSTable>> levels) {
+		List<SSTable> level0 = levels.get(0);
+
+		if (level0.size() >= level0Trigger) {
+			List<SSTable> inputs = new ArrayList<SSTable>(level0);
+			return new Compaction(0, inputs,
+					overlapping(levelAt(levels, 1), smallestKey(inputs), largestKey(inputs)));
+		}
+
+		// The last level has nowhere to go, so it is allowed to grow without bound
+		for (int level = 1; level < SSTable.MAX_LEVELS - 1; level++) {
+			List<SSTable> tables = levelAt(levels, level);
+			if (totalBytes(tables) <= getTargetBytes(level)) {
+				continue;
+			}
+
+			SSTable picked = tables.get(0);
+			for (SSTable sstable : tables) {
+				if (compactPointers[level] == null || sstable.getFirstKey().compareTo(compactPointers[level]) > 0) {
+					picked = sstable;
+					break;
+				}
+			}
+			compactPointers[level] = picked.getLastKey();
+
+			List<SSTable> inputs = new ArrayList<SSTable>();
+			inputs.add(picked);
+			return new Compaction(level, inputs,
+					overlapping(levelAt(levels, level + 1), picked.getFirstKey(), picked.getLastKey()));
+		}
+
+		return null;
+	}
+
+	public static long totalBytes(List<SSTable> sstables) {
+		long total = 0;
+		for (SSTable sstable : sstables) {
+			total += sstable.getFileSize();
+		}
+		return total;
+	}
+
+	private static List<SSTable> levelAt(List<List<SSTable>> levels, int level) {
+		return (level < levels.size()) ? levels.get(level) : new ArrayList<SSTable>();
+	}
+
+	private static List<SSTable> overlapping(List<SSTable> sstables, DataItem smallestKey, DataItem largestKey) {
+		List<SSTable> results = new ArrayList<SSTable>();
+		for (SSTable sstable : sstables) {
+			if (sstable.overlaps(smallestKey, largestKey)) {
+				results.add(sstable);
+			}
+		}
+		return results;
+	}
+
+	private static DataItem smallestKey(List<SSTable> sstables) {
+		DataItem smallest = null;
+		for (SSTable sstable : sstables) {
+			if (smallest == null || sstable.getFirstKey().compareTo(smallest) < 0) {
+				smallest = sstable.getFirstKey();
+			}
+		}
+		return smallest;
+	}
+
+	private static DataItem largestKey(List<SSTable> sstables) {
+		DataItem largest = null;
+		for (SSTable sstable : sstables) {
+			if (largest == null || sstable.getLastKey().compareTo(largest) > 0) {
+				largest = sstable.getLastKey();
+			}
+		}
+		return largest;
+	}
+}
@@ -0,0 +1,56 @@
+package com.poseidon.db.compaction;
+
+import java.util.List;
+import com.poseidon.db.io.SSTable;
+
+// Picks a run of sstables that are adjacent in age and similar in size. Keeping
+// the run adjacent means the merged table can take the place of its inputs
+// without reordering newer and older data.
+public class SizeTieredCompactionStrategy {
+
+	public static final int DEFAULT_MIN_THRESHOLD = 4;
+	public static final int DEFAULT_MAX_THRESHOLD = 32;
+	public static final double BUCKET_LOW = 0.5;
+	public static final double BUCKET_HIGH = 1.5;
+	// Tables below this size are considered similar no matter how they compare
+	public static final long SMALL_SSTABLE_SIZE = 8 * 1024 * 1024;
+
+	private int minThreshold;
+	private int maxThreshold;
+
+	public SizeTieredCompactionStrategy(int minThreshold, int maxThreshold) {
+		this.minThreshold = Math.max(2, minThreshold);
+		this.maxThreshold = Math.max(this.minThreshold, maxThreshold);
+	}
+
+	public List<SSTable> pickCompaction(List<SSTable> sstablesOldestFirst) {
+		int n = sstablesOldestFirst.size();
+
+		for (int start = 0; start + minThreshold <= n; start++) {
+			long totalSize = sstablesOldestFirst.get(start).getFileSize();
+			int end = start + 1;
+
+			while (end < n && (end - start) < maxThreshold) {
+				long size = sstablesOldestFirst.get(end).getFileSize();
+				if (!isSimilar(size, totalSize / (end - start))) {
+					break;
+				}
+				totalSize += size;
+				end++;
+			}
+
+			if (end - start >= minThreshold) {
+				return sstablesOldestFirst.subList(start, end);
+			}
+		}
+
+		return null;
+	}
+
+	private boolean isSimilar(long size, long averageSize) {
+		if (size < SMALL_SSTABLE_SIZE && averageSize < SMALL_SSTABLE_SIZE) {
+			return true;
+		}
+		return size >= averageSize * BUCKET_LOW && size <= averageSize * BUCKET_HIGH;
+	}
+}
@@ -0,0 +1,37 @@
+package com.poseidon.db.compression;
+
+// The id is what an sstable stores next to each compressed block, so it must
+// never change for an existing codec. DEFLATE_DICTIONARY has no shared codec,
+// every sstable trains and keeps its own dictionary.
+public enum Compression {
+	NONE(0, null), DEFLATE(1, new DeflateCodec()), LZ(2, new LZCodec()), DEFLATE_DICTIONARY(3, null);
+
+	private final byte id;
+	private final CompressionCodec codec;
+
+	Compression(int id, CompressionCodec codec) {
+		this.id = (byte) id;
+		this.codec = codec;
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	public CompressionCodec getCodec() {
+		return codec;
+	}
+
+	public boolean usesDictionary() {
+		return this == DEFLATE_DICTIONARY;
+	}
+
+	public static Compression fromId(byte id) {
+		for (Compression compression : values()) {
+			if (compression.id == id) {
+				return compression;
+			}
+		}
+		throw new IllegalArgumentException("Unknown compression id " + id);
+	}
+}
@@ -0,0 +1,8 @@
+package com.poseidon.db.compression;
+
+public interface CompressionCodec {
+	byte[] compress(byte[] input, int offset, int length);
+
+	// The caller knows the original length, codecs do not store it
+	byte[] decompress(byte[] input, int offset, int length, int uncompressedLength);
+}
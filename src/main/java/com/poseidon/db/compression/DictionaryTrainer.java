@@ -0,0 +1,107 @@
+package com.poseidon.db.compression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Builds a preset dictionary for DeflateCodec out of sample values. Short values
+// with a common structure (field names, punctuation, enum strings) barely compress
+// on their own, but compress well against a dictionary that already holds the
+// pieces they repeat.
+//
+// Every 8 byte gram is counted once per sample it appears in. Fixed size segments
+// of the samples are scored by how common their grams are, and the best segments
+// that add something new go into the dictionary. Deflate finds nearer matches
+// cheaper, so the best segment ends up last.
+public class DictionaryTrainer {
+
+	public static final int DEFAULT_DICTIONARY_SIZE = 8 * 1024;
+	// Deflate cannot look back further than its 32 KB window
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+	private static final int GRAM = 8;
+	private static final int SEGMENT = 32;
+	private static final int STEP = 4;
+
+	public static byte[] train(List<byte[]> samples, int dictionarySize) {
+		dictionarySize = Math.min(dictionarySize, MAX_DICTIONARY_SIZE);
+		Map<Long, Integer> frequencies = new HashMap<Long, Integer>();
+
+		for (byte[] sample : samples) {
+			Set<Long> seen = new HashSet<Long>();
+			for (int i = 0; i + GRAM <= sample.length; i++) {
+				Long gram = gramAt(sample, i);
+				if (seen.add(gram)) {
+					frequencies.merge(gram, 1, Integer::sum);
+				}
+			}
+		}
+
+		List<long[]> candidates = new ArrayList<long[]>();
+		for (int s = 0; s < samples.size(); s++) {
+			byte[] sample = samples.get(s);
+			for (int i = 0; i + SEGMENT <= sample.length; i += STEP) {
+				long score = 0;
+				for (int g = i; g + GRAM <= i + SEGMENT; g++) {
+					int frequency = frequencies.get(gramAt(sample, g));
+					// A gram seen in one sample says nothing about the others
+					if (frequency > 1) {
+						score += frequency;
+					}
+				}
+				if (score > 0) {
+					candidates.add(new long[] { score, s, i });
+				}
+			}
+		}
+		candidates.sort((a, b) -> Long.compare(b[0], a[0]));
+
+		List<byte[]> chosen = new ArrayList<byte[]>();
+		Set<Long> covered = new HashSet<Long>();
+		int size = 0;
+
+		for (long[] candidate : candidates) {
+			if (size + SEGMENT > dictionarySize) {
+				break;
+			}
+			byte[] sample = samples.get((int) candidate[1]);
+			int offset = (int) candidate[2];
+
+			// Skipped when most of it is already in the dictionary
+			int fresh = 0;
+			for (int g = offset; g + GRAM <= offset + SEGMENT; g++) {
+				if (!covered.contains(gramAt(sample, g))) {
+					fresh++;
+				}
+			}
+			if (fresh * 2 < SEGMENT - GRAM + 1) {
+				continue;
+			}
+			for (int g = offset; g + GRAM <= offset + SEGMENT; g++) {
+				covered.add(gramAt(sample, g));
+			}
+
+			chosen.add(Arrays.copyOfRange(sample, offset, offset + SEGMENT));
+			size += SEGMENT;
+		}
+
+		byte[] dictionary = new byte[size];
+		int position = size;
+		for (byte[] segment : chosen) {
+			position -= SEGMENT;
+			System.arraycopy(segment, 0, dictionary, position, SEGMENT);
+		}
+		return dictionary;
+	}
+
+	private static Long gramAt(byte[] data, int offset) {
+		long gram = 0;
+		for (int i = 0; i < GRAM; i++) {
+			gram = (gram << 8) | (data[offset + i] & 0xFF);
+		}
+		return gram;
+	}
+}
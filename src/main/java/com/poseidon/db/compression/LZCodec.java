@@ -0,0 +1,152 @@
+package com.poseidon.db.compression;
+
+import java.util.Arrays;
+
+// A byte oriented LZ77 in the LZ4 block layout, in plain Java. Matches are found
+// through a hash of the next 4 bytes, so it is fast and gives up early on data
+// that does not repeat itself.
+//
+// Sequence: [token: literal length << 4 | match length - 4][more literal length]*
+//           [literals][offset, 2 bytes little-endian][more match length]*
+// Lengths of 15 and up continue in extra bytes of up to 255 each. The last
+// sequence has literals only.
+public class LZCodec implements CompressionCodec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 12;
+	private static final int MAX_OFFSET = 65535;
+	// The last match stops this far from the end, the rest are literals
+	private static final int LAST_LITERALS = 5;
+	private static final int MATCH_FIND_LIMIT = 12;
+	private static final int SKIP_TRIGGER = 6;
+
+	@Override
+	public byte[] compress(byte[] input, int offset, int length) {
+		byte[] output = new byte[length + length / 255 + 16];
+		int[] table = new int[1 << HASH_BITS];
+		int end = offset + length;
+		int anchor = offset;
+		int position = offset;
+		int written = 0;
+
+		Arrays.fill(table, -1);
+
+		while (position < end - MATCH_FIND_LIMIT) {
+			int sequence = readInt(input, position);
+			int hash = hash(sequence);
+			int candidate = table[hash];
+			table[hash] = position;
+
+			if (candidate < 0 || position - candidate > MAX_OFFSET || readInt(input, candidate) != sequence) {
+				// Steps get longer the longer nothing matches
+				position += 1 + ((position - anchor) >>> SKIP_TRIGGER);
+				continue;
+			}
+
+			while (position > anchor && candidate > offset && input[position - 1] == input[candidate - 1]) {
+				position--;
+				candidate--;
+			}
+
+			int matchLength = MIN_MATCH;
+			while (position + matchLength < end - LAST_LITERALS
+					&& input[position + matchLength] == input[candidate + matchLength]) {
+				matchLength++;
+			}
+
+			written = writeLiterals(output, written, input, anchor, position - anchor, matchLength - MIN_MATCH);
+			output[written++] = (byte) (position - candidate);
+			output[written++] = (byte) ((position - candidate) >>> 8);
+			if (matchLength - MIN_MATCH >= 15) {
+				written = writeLength(output, written, matchLength - MIN_MATCH - 15);
+			}
+
+			position += matchLength;
+			anchor = position;
+		}
+
+		written = writeLiterals(output, written, input, anchor, end - anchor, 0);
+		return Arrays.copyOf(output, written);
+	}
+
+	@Override
+	public byte[] decompress(byte[] input, int offset, int length, int uncompressedLength) {
+		byte[] output = new byte[uncompressedLength];
+		int position = offset;
+		int end = offset + length;
+		int written = 0;
+
+		while (position < end) {
+			int token = input[position++] & 0xFF;
+
+			int literalLength = token >>> 4;
+			if (literalLength == 15) {
+				int b;
+				do {
+					b = input[position++] & 0xFF;
+					literalLength += b;
+				} while (b == 255);
+			}
+			System.arraycopy(input, position, output, written, literalLength);
+			position += literalLength;
+			written += literalLength;
+
+			if (position == end) {
+				break;
+			}
+
+			int matchOffset = (input[position] & 0xFF) | ((input[position + 1] & 0xFF) << 8);
+			position += 2;
+
+			int matchLength = token & 0x0F;
+			if (matchLength == 15) {
+				int b;
+				do {
+					b = input[position++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+
+			// Byte by byte, a match may overlap the bytes it is copying
+			int from = written - matchOffset;
+			for (int i = 0; i < matchLength; i++) {
+				output[written + i] = output[from + i];
+			}
+			written += matchLength;
+		}
+
+		if (written != uncompressedLength) {
+			throw new IllegalStateException("Decompressed " + written + " bytes, expected " + uncompressedLength);
+		}
+		return output;
+	}
+
+	private static int writeLiterals(byte[] output, int written, byte[] input, int from, int literalLength,
+			int matchLengthCode) {
+		output[written++] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(matchLengthCode, 15));
+		if (literalLength >= 15) {
+			written = writeLength(output, written, literalLength - 15);
+		}
+		System.arraycopy(input, from, output, written, literalLength);
+		return written + literalLength;
+	}
+
+	private static int writeLength(byte[] output, int written, int length) {
+		while (length >= 255) {
+			output[written++] = (byte) 255;
+			length -= 255;
+		}
+		output[written++] = (byte) length;
+		return written;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_BITS);
+	}
+
+	private static int readInt(byte[] data, int position) {
+		return (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8) | ((data[position + 2] & 0xFF) << 16)
+				| ((data[position + 3] & 0xFF) << 24);
+	}
+}
@@ -0,0 +1,267 @@
+package com.poseidon.db.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.utils.Pair;
+
+// Read side of a block written by BlockBuilder. A lookup binary searches the
+// restart points, whose keys are stored whole and compared in place, then
+// decodes forward from the closest one. Reads are absolute, so one block can be
+// shared by any number of threads, e.g. through the block cache.
+public class Block {
+
+	// Rough cost of the object and its buffer on top of the block bytes
+	private static final int OVERHEAD = 96;
+	// Up to this many bytes are copied out of a direct buffer one by one rather than through a view
+	private static final int SMALL_COPY = 64;
+
+	private final ByteBuffer data;
+	private final int restartsOffset;
+	private final int restartCount;
+
+	public Block(ByteBuffer data) {
+		this.data = data;
+		this.restartCount = data.getInt(data.limit() - 4);
+		this.restartsOffset = data.limit() - 4 - 4 * restartCount;
+	}
+
+	public Block(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+
+	// Re-encodes entries read from a v1 table, so both formats share one cache
+	public static Block fromEntries(List<Pair<DataItem, DataItem>> entries) {
+		int size = 0;
+		for (Pair<DataItem, DataItem> entry : entries) {
+			size += entry.getLeft().length() + entry.getRight().length() + 3;
+		}
+
+		BlockBuilder builder = new BlockBuilder(size);
+		for (Pair<DataItem, DataItem> entry : entries) {
+			builder.add(entry.getLeft().getData(), entry.getRight().getData());
+		}
+		return new Block(builder.finish());
+	}
+
+	public DataItem get(DataItem key) {
+		return find(data, data.limit(), key);
+	}
+
+	// Looks the key up in the block held by data[0, limit) without building a Block.
+	// Keys are compared where they lie: only the bytes a key does not share with the
+	// one before it are read, against the part of the target the earlier keys have
+	// not matched yet. Nothing is allocated but the value that is found.
+	static DataItem find(ByteBuffer data, int limit, DataItem key) {
+		byte[] target = key.getData();
+		int restartCount = data.getInt(limit - 4);
+		int restartsOffset = limit - 4 - 4 * restartCount;
+
+		// Last restart point whose key is not greater than the target
+		int left = 0;
+		int right = restartCount - 1;
+		while (left < right) {
+			int mid = (left + right + 1) >>> 1;
+			if (compareRestartKey(data, data.getInt(restartsOffset + 4 * mid), target) <= 0) {
+				left = mid;
+			} else {
+				right = mid - 1;
+			}
+		}
+
+		int offset = data.getInt(restartsOffset + 4 * left);
+		// The next restart key is past the target, and it does not store what it shares
+		int end = (left + 1 < restartCount) ? data.getInt(restartsOffset + 4 * (left + 1)) : restartsOffset;
+		// How many leading bytes of the key before this one equal the target
+		int matched = 0;
+
+		while (offset < end) {
+			int shared = readVarint(data, offset);
+			offset = skipVarint(data, offset);
+			int unshared = readVarint(data, offset);
+			offset = skipVarint(data, offset);
+			int valueLength = readVarint(data, offset);
+			offset = skipVarint(data, offset);
+
+			if (shared < matched) {
+				// Differs from the previous key before the target did, so it is past the target
+				return null;
+			}
+
+			if (shared == matched) {
+				int i = 0;
+				while (i < unshared && matched < target.length && data.get(offset + i) == target[matched]) {
+					i++;
+					matched++;
+				}
+
+				if (i < unshared && matched < target.length) {
+					if (data.get(offset + i) > target[matched]) {
+						return null;
+					}
+				} else if (i < unshared) {
+					// The target is a prefix of this key
+					return null;
+				} else if (matched == target.length) {
+					return new DataItem(copy(data, offset + unshared, valueLength));
+				}
+			}
+			offset += unshared + valueLength;
+		}
+		return null;
+	}
+
+	public Iterator<KeyValuePair> iterator() {
+		Cursor cursor = new Cursor(0);
+
+		return new Iterator<KeyValuePair>() {
+			private boolean ready;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				if (!ready && !done) {
+					ready = cursor.advance();
+					done = !ready;
+				}
+				return ready;
+			}
+
+			@Override
+			public KeyValuePair next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return new KeyValuePair(new DataItem(Arrays.copyOf(cursor.key, cursor.keyLength)),
+						new DataItem(copy(cursor.valueOffset, cursor.valueLength)));
+			}
+		};
+	}
+
+	public DataItem getLastKey() {
+		Cursor cursor = new Cursor(restartOffset(restartCount - 1));
+		while (cursor.advance()) {
+			// Walks to the end of the last restart run
+		}
+		return new DataItem(Arrays.copyOf(cursor.key, cursor.keyLength));
+	}
+
+	public int getWeight() {
+		return data.limit() + OVERHEAD;
+	}
+
+	// Read straight out of a mapped file rather than off the heap
+	boolean isMapped() {
+		return data.isDirect();
+	}
+
+	// Decodes entries one after the other, rebuilding each key from the one before
+	private final class Cursor {
+		private int offset;
+		private byte[] key = new byte[32];
+		private int keyLength;
+		private int valueOffset;
+		private int valueLength;
+
+		Cursor(int offset) {
+			this.offset = offset;
+		}
+
+		boolean advance() {
+			if (offset >= restartsOffset) {
+				return false;
+			}
+
+			int shared = readVarint();
+			int unshared = readVarint();
+			valueLength = readVarint();
+
+			if (shared + unshared > key.length) {
+				key = Arrays.copyOf(key, Math.max(key.length * 2, shared + unshared));
+			}
+			for (int i = 0; i < unshared; i++) {
+				key[shared + i] = data.get(offset + i);
+			}
+			keyLength = shared + unshared;
+			valueOffset = offset + unshared;
+			offset = valueOffset + valueLength;
+			return true;
+		}
+
+		private int readVarint() {
+			int result = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = data.get(offset++);
+				result |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+		}
+	}
+
+	private int restartOffset(int index) {
+		return data.getInt(restartsOffset + 4 * index);
+	}
+
+	// A restart entry shares nothing with the key before it, its key is read in place
+	private static int compareRestartKey(ByteBuffer data, int offset, byte[] target) {
+		offset = skipVarint(data, offset);
+		int keyLength = readVarint(data, offset);
+		offset = skipVarint(data, offset);
+		offset = skipVarint(data, offset);
+
+		int n = Math.min(keyLength, target.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = Byte.compare(data.get(offset + i), target[i]);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return keyLength - target.length;
+	}
+
+	private static int readVarint(ByteBuffer data, int offset) {
+		int result = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = data.get(offset++);
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+	}
+
+	private static int skipVarint(ByteBuffer data, int offset) {
+		while ((data.get(offset) & 0x80) != 0) {
+			offset++;
+		}
+		return offset + 1;
+	}
+
+	private byte[] copy(int offset, int length) {
+		return copy(data, offset, length);
+	}
+
+	// Never moves the position, the buffer may be shared with other threads
+	private static byte[] copy(ByteBuffer data, int offset, int length) {
+		byte[] result = new byte[length];
+		if (data.hasArray()) {
+			System.arraycopy(data.array(), data.arrayOffset() + offset, result, 0, length);
+		} else if (length <= SMALL_COPY) {
+			for (int i = 0; i < length; i++) {
+				result[i] = data.get(offset + i);
+			}
+		} else {
+			ByteBuffer view = data.duplicate();
+			view.position(offset);
+			view.get(result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,115 @@
+package com.poseidon.db.io;
+
+import java.util.Arrays;
+
+// Encodes sorted entries into one data block of the v2 sstable format. A key only
+// stores the bytes it does not share with the key before it, except at every
+// RESTART_INTERVAL-th entry (a restart point) where it is stored whole, so a
+// reader can binary search the restart points and decode from there.
+//
+// Entry:   [shared varint][unshared varint][valueLength varint][unshared key bytes][value]
+// Trailer: [restart offset int]* [restart count int]
+public class BlockBuilder {
+
+	public static final int RESTART_INTERVAL = 16;
+
+	private byte[] buffer;
+	private int length;
+	private int[] restarts;
+	private int restartCount;
+	private int counter;
+	private int entryCount;
+	private byte[] lastKey;
+
+	public BlockBuilder(int expectedSize) {
+		buffer = new byte[Math.max(64, expectedSize + expectedSize / 4)];
+		restarts = new int[16];
+		reset();
+	}
+
+	public void reset() {
+		length = 0;
+		restartCount = 0;
+		counter = 0;
+		entryCount = 0;
+		lastKey = null;
+	}
+
+	// Keys must come in ascending order
+	public void add(byte[] key, byte[] value) {
+		int shared = 0;
+
+		if (counter == RESTART_INTERVAL || lastKey == null) {
+			if (restartCount == restarts.length) {
+				restarts = Arrays.copyOf(restarts, restartCount * 2);
+			}
+			restarts[restartCount++] = length;
+			counter = 0;
+		} else {
+			int max = Math.min(lastKey.length, key.length);
+			while (shared < max && lastKey[shared] == key[shared]) {
+				shared++;
+			}
+		}
+
+		int unshared = key.length - shared;
+		ensureCapacity(15 + unshared + value.length);
+		putVarint(shared);
+		putVarint(unshared);
+		putVarint(value.length);
+		System.arraycopy(key, shared, buffer, length, unshared);
+		length += unshared;
+		System.arraycopy(value, 0, buffer, length, value.length);
+		length += value.length;
+
+		lastKey = key;
+		counter++;
+		entryCount++;
+	}
+
+	public boolean isEmpty() {
+		return entryCount == 0;
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	// Size of the block if it were finished now
+	public int currentSize() {
+		return length + 4 * restartCount + 4;
+	}
+
+	public byte[] finish() {
+		byte[] block = Arrays.copyOf(buffer, currentSize());
+		int position = length;
+
+		for (int i = 0; i < restartCount; i++) {
+			putInt(block, position, restarts[i]);
+			position += 4;
+		}
+		putInt(block, position, restartCount);
+		return block;
+	}
+
+	private void putVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (length + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+		}
+	}
+
+	private static void putInt(byte[] data, int position, int value) {
+		data[position] = (byte) (value >>> 24);
+		data[position + 1] = (byte) (value >>> 16);
+		data[position + 2] = (byte) (value >>> 8);
+		data[position + 3] = (byte) value;
+	}
+}
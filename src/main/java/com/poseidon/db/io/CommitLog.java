@@ -1,27 +1,52 @@
 package com.poseidon.db.io;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 import org.apache.log4j.Logger;
 import com.poseidon.db.representation.DataItem;
 import com.poseidon.db.representation.KeyValuePair;
-import com.poseidon.db.utils.DataConversion;
 import com.poseidon.db.utils.Pair;
 
+// Header: [FORMAT_MAGIC int][formatVersion int]
+// Record: [crc int][op][recordLength int][keyLength int][key][value]
+// Batch:  [crc int][BATCH op][bodyLength int][count int] then the entries, unframed
+//
+// The crc covers everything after it up to the end of the record. Replay stops at
+// the first record that is cut short or does not match its crc, and the log is
+// truncated there. Logs written before the header existed have no crcs and are
+// still replayed, they are never appended to.
 public class CommitLog {
 
 	private final static Logger logger = Logger.getLogger(CommitLog.class);
 	public static final String LOG_FILE_NAME_PREFIX = "commit-log-";
+	public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 100;
+	public static final int FORMAT_MAGIC = 0xC0DE1065;
+	public static final int FORMAT_VERSION = 1;
+	public static final int HEADER_SIZE = 4 + 4;
+	public static final int CHECKSUM_SIZE = 4;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
 
 	public static enum LogOperation {
-		PUT(0), GET(1), DELETE(2);
+		PUT(0), GET(1), DELETE(2), BATCH(3), DELETE_RANGE(4);
 
 		private byte numericValue;
 
@@ -34,15 +59,81 @@ public class CommitLog {
 		}
 	}
 
+	// NONE - every record goes straight to the OS, never forced
+	// ASYNC - records are buffered, the flusher writes and forces them every interval
+	// BATCH - writers wait until the flusher has written and forced their batch
+	// SYNC - every record is written and forced by its own writer
+	public static enum Durability {
+		NONE, ASYNC, BATCH, SYNC
+	}
+
+	// Runs before every force of the log, so that files its records point into are
+	// never behind it on disk
+	public static interface SyncListener {
+		void beforeSync() throws IOException;
+	}
+
+	// Called for every replayed entry, the entries of a batch come as PUTs
+	public static interface Replayer {
+		void replay(byte op, DataItem key, DataItem value);
+	}
+
 	private File file;
 	private RandomAccessFile logFile;
 	private ReentrantReadWriteLock rwLock;
+	private Durability durability;
+	private long syncIntervalMillis;
+	private boolean framed;
+	private volatile SyncListener syncListener;
+
+	private ReentrantLock bufferLock;
+	private Condition pendingCondition;
+	private Condition syncedCondition;
+	private RecordBuffer pendingBuffer;
+	private RecordBuffer spareBuffer;
+	private long appendedCount;
+	private long syncedCount;
+	private IOException flushFailure;
+	private boolean closed;
+	private boolean flusherDone;
+	private Thread flusher;
+
+	private AtomicLong recordCount;
+	private AtomicLong byteCount;
+	private AtomicLong syncCount;
+	private AtomicLong syncNanos;
+	private AtomicLong maxSyncNanos;
 
 	public CommitLog(String logFilePath, ReentrantReadWriteLock rwLock) throws IOException {
+		this(logFilePath, rwLock, Durability.NONE, DEFAULT_SYNC_INTERVAL_MILLIS);
+	}
+
+	public CommitLog(String logFilePath, ReentrantReadWriteLock rwLock, Durability durability, long syncIntervalMillis)
+			throws IOException {
 		file = new File(logFilePath);
 		this.logFile = new RandomAccessFile(file, "rw");
 		this.rwLock = rwLock;
-		logFile.seek(logFile.length());
+		this.durability = durability;
+		this.syncIntervalMillis = syncIntervalMillis;
+		openLogFile();
+
+		bufferLock = new ReentrantLock();
+		pendingCondition = bufferLock.newCondition();
+		syncedCondition = bufferLock.newCondition();
+		pendingBuffer = new RecordBuffer();
+		spareBuffer = new RecordBuffer();
+
+		recordCount = new AtomicLong(0);
+		byteCount = new AtomicLong(0);
+		syncCount = new AtomicLong(0);
+		syncNanos = new AtomicLong(0);
+		maxSyncNanos = new AtomicLong(0);
+
+		if (durability == Durability.ASYNC || durability == Durability.BATCH) {
+			flusher = new Thread(this::runFlusher, "commit-log-flusher-" + file.getName());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
 	}
 
 	public long getLastModifiedTime() {
@@ -58,6 +149,7 @@ public class CommitLog {
 	}
 
 	public void destroy() {
+		stopFlusher();
 		try {
 			this.logFile.close();
 		} catch (IOException e) {
@@ -67,52 +159,111 @@ public class CommitLog {
 	}
 
 	public void writeToLog(LogOperation op, KeyValuePair kvp) throws IOException {
-		logFile.write(op.getnumericValue());
-		kvp.writeToFile(logFile);
+		byte[] record = encodeRecord(op, kvp);
+		writeRecord(record, record.length);
+	}
+
+	// Takes a batch record that is already encoded, it is written with a single call
+	public void writeBatchToLog(byte[] record, int length) throws IOException {
+		writeRecord(record, length);
+	}
+
+	public void flush() throws IOException {
+		if (flusher == null) {
+			return;
+		}
+
+		bufferLock.lock();
+		try {
+			awaitSynced(appendedCount);
+		} finally {
+			bufferLock.unlock();
+		}
 	}
 
 	public String getLogFilePath() {
 		return file.getAbsolutePath();
 	}
 
-	public List<Pair<Byte, KeyValuePair>> getAllUnsavedOperations() {
+	public void setSyncListener(SyncListener syncListener) {
+		this.syncListener = syncListener;
+	}
 
+	public Durability getDurability() {
+		return durability;
+	}
+
+	public List<Pair<Byte, KeyValuePair>> getAllUnsavedOperations() {
 		List<Pair<Byte, KeyValuePair>> results = new ArrayList<Pair<Byte, KeyValuePair>>();
+		try {
+			replay((op, key, value) -> results.add(new Pair<Byte, KeyValuePair>(op, new KeyValuePair(key, value))));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read commit log file - " + getLogFilePath(), e);
+		}
+		return results;
+	}
 
+	// Streams the records to the replayer in the order they were written, without
+	// holding more than one of them. A torn or corrupt record and everything after
+	// it is cut off the file. Returns the number of records replayed.
+	public long replay(Replayer replayer) throws IOException {
 		rwLock.writeLock().lock();
 		try {
-			logFile.seek(0);
+			flush();
+			synchronized (this) {
+				long end = logFile.length();
+				long position = framed ? HEADER_SIZE : 0;
+				long records = 0;
+				String problem = null;
+
+				try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+						READ_BUFFER_SIZE))) {
+					skipFully(in, position);
 
-			while (logFile.getFilePointer() < logFile.length()) {
-				byte[] bufOp = new byte[1];
-				byte[] bufRecordLength = new byte[4];
-				byte[] bufKeyLength = new byte[4];
+					int headerSize = (framed ? CHECKSUM_SIZE : 0) + 1 + 4;
+					while (position < end) {
+						if (end - position < headerSize) {
+							problem = "torn record";
+							break;
+						}
+						int checksum = framed ? in.readInt() : 0;
+						byte op = in.readByte();
+						int length = in.readInt();
 
-				logFile.read(bufOp);
-				logFile.read(bufRecordLength);
-				logFile.read(bufKeyLength);
+						// A batch body is its length, a single record has the key length field too
+						long bodyLength = (op == LogOperation.BATCH.getnumericValue()) ? length : 4L + length;
+						if (length < 0 || bodyLength > Math.min(end - position - headerSize, Integer.MAX_VALUE)) {
+							problem = "torn record";
+							break;
+						}
 
-				if (LogOperation.PUT.getnumericValue() == bufOp[0]
-						|| LogOperation.DELETE.getnumericValue() == bufOp[0]) {
-					byte[] keyData = new byte[DataConversion.byteArrayToInt(bufKeyLength)];
-					byte[] valueData = new byte[DataConversion.byteArrayToInt(bufRecordLength)
-							- DataConversion.byteArrayToInt(bufKeyLength)];
+						byte[] body = new byte[(int) bodyLength];
+						in.readFully(body);
+						if (framed && checksum(op, length, body) != checksum) {
+							problem = "checksum mismatch";
+							break;
+						}
+						if (!replayRecord(op, body, replayer)) {
+							problem = "malformed record";
+							break;
+						}
 
-					logFile.read(keyData);
-					logFile.read(valueData);
+						position += headerSize + bodyLength;
+						records++;
+					}
+				}
 
-					Pair<Byte, KeyValuePair> result = new Pair<Byte, KeyValuePair>(bufOp[0],
-							new KeyValuePair(new DataItem(keyData), new DataItem(valueData)));
-					results.add(result);
+				if (problem != null) {
+					logger.warn("Truncating commit log " + getLogFilePath() + " at offset " + position + " after a "
+							+ problem + ", dropping " + (end - position) + " bytes");
+					logFile.setLength(position);
 				}
+				logFile.seek(logFile.length());
+				return records;
 			}
-		} catch (IOException e) {
-			// Cannot seek, just return with no results
 		} finally {
 			rwLock.writeLock().unlock();
 		}
-
-		return results;
 	}
 
 	public ReentrantReadWriteLock getLock() {
@@ -120,10 +271,289 @@ public class CommitLog {
 	}
 
 	public void closeLogFile() {
+		stopFlusher();
 		try {
 			logFile.close();
 		} catch (IOException e) {
 			logger.warn("Unable to close commit log file - " + getLogFilePath());
 		}
 	}
+
+	public long getRecordCount() {
+		return recordCount.get();
+	}
+
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	public long getSyncCount() {
+		return syncCount.get();
+	}
+
+	public long getAverageSyncMicros() {
+		long count = syncCount.get();
+		return (count == 0) ? 0 : (syncNanos.get() / count) / 1000;
+	}
+
+	public long getMaxSyncMicros() {
+		return maxSyncNanos.get() / 1000;
+	}
+
+	// New logs get the header, anything shorter than one cannot hold a record
+	private void openLogFile() throws IOException {
+		if (logFile.length() >= HEADER_SIZE) {
+			logFile.seek(0);
+			framed = logFile.readInt() == FORMAT_MAGIC;
+			if (framed && logFile.readInt() > FORMAT_VERSION) {
+				throw new IOException("Commit log has a newer format than this version reads - " + getLogFilePath());
+			}
+		} else {
+			logFile.setLength(0);
+			logFile.writeInt(FORMAT_MAGIC);
+			logFile.writeInt(FORMAT_VERSION);
+			framed = true;
+		}
+		logFile.seek(logFile.length());
+	}
+
+	// False if the body does not parse. Entries of a batch are only handed out
+	// once all of them have, so a batch is replayed whole or not at all.
+	private static boolean replayRecord(byte op, byte[] body, Replayer replayer) {
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		try {
+			if (op == LogOperation.BATCH.getnumericValue()) {
+				int count = buffer.getInt();
+				List<Pair<Byte, KeyValuePair>> entries = new ArrayList<Pair<Byte, KeyValuePair>>(count);
+				for (int i = 0; i < count; i++) {
+					byte entryOp = buffer.get();
+					int recordLength = buffer.getInt();
+					entries.add(new Pair<Byte, KeyValuePair>(entryOp, readEntry(buffer, recordLength)));
+				}
+				for (Pair<Byte, KeyValuePair> entry : entries) {
+					replayer.replay(entry.getLeft(), entry.getRight().getKey(), entry.getRight().getValue());
+				}
+			} else if (op == LogOperation.PUT.getnumericValue() || op == LogOperation.DELETE.getnumericValue()
+					|| op == LogOperation.DELETE_RANGE.getnumericValue()) {
+				KeyValuePair kvp = readEntry(buffer, body.length - 4);
+				replayer.replay(op, kvp.getKey(), kvp.getValue());
+			} else {
+				return false;
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private static KeyValuePair readEntry(ByteBuffer buffer, int recordLength) {
+		int keyLength = buffer.getInt();
+		byte[] keyData = new byte[keyLength];
+		byte[] valueData = new byte[recordLength - keyLength];
+		buffer.get(keyData);
+		buffer.get(valueData);
+		return new KeyValuePair(new DataItem(keyData), new DataItem(valueData));
+	}
+
+	private static int checksum(byte op, int length, byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(op);
+		crc.update(length >>> 24);
+		crc.update(length >>> 16);
+		crc.update(length >>> 8);
+		crc.update(length);
+		crc.update(body, 0, body.length);
+		return (int) crc.getValue();
+	}
+
+	private static void skipFully(DataInputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				throw new IOException("Unexpected end of commit log");
+			}
+			count -= skipped;
+		}
+	}
+
+	// Records come with room for the crc in front, it is filled in here
+	private void writeRecord(byte[] record, int length) throws IOException {
+		if (!framed) {
+			throw new IOException("Commit log has the old format and is only replayed - " + getLogFilePath());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record, CHECKSUM_SIZE, length - CHECKSUM_SIZE);
+		int checksum = (int) crc.getValue();
+		record[0] = (byte) (checksum >>> 24);
+		record[1] = (byte) (checksum >>> 16);
+		record[2] = (byte) (checksum >>> 8);
+		record[3] = (byte) checksum;
+
+		if (durability == Durability.NONE || durability == Durability.SYNC) {
+			synchronized (this) {
+				logFile.write(record, 0, length);
+				if (durability == Durability.SYNC) {
+					force();
+				}
+			}
+		} else {
+			appendToBuffer(record, length);
+		}
+
+		recordCount.incrementAndGet();
+		byteCount.addAndGet(length);
+	}
+
+	private static byte[] encodeRecord(LogOperation op, KeyValuePair kvp) throws IOException {
+		ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(CHECKSUM_SIZE + 9 + kvp.getKey().length()
+				+ kvp.getValue().length());
+		DataOutputStream out = new DataOutputStream(recordBuffer);
+
+		out.writeInt(0);
+		out.write(op.getnumericValue());
+		kvp.writeToFile(out);
+
+		return recordBuffer.toByteArray();
+	}
+
+	private void appendToBuffer(byte[] record, int length) throws IOException {
+		bufferLock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Commit log is already closed - " + getLogFilePath());
+			}
+			if (flushFailure != null) {
+				throw flushFailure;
+			}
+
+			pendingBuffer.write(record, 0, length);
+			appendedCount += length;
+			pendingCondition.signal();
+
+			if (durability == Durability.BATCH) {
+				awaitSynced(appendedCount);
+			}
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	private void awaitSynced(long target) throws IOException {
+		while (syncedCount < target && !flusherDone) {
+			syncedCondition.awaitUninterruptibly();
+		}
+		if (flushFailure != null) {
+			throw flushFailure;
+		}
+	}
+
+	private void runFlusher() {
+		while (true) {
+			RecordBuffer batch;
+			long batchEnd;
+
+			bufferLock.lock();
+			try {
+				while (pendingBuffer.size() == 0 && !closed) {
+					pendingCondition.awaitUninterruptibly();
+				}
+				if (pendingBuffer.size() == 0) {
+					flusherDone = true;
+					syncedCondition.signalAll();
+					return;
+				}
+
+				if (durability == Durability.ASYNC) {
+					// Lets more records pile up so that a single force covers the whole interval
+					long remainingNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+					while (remainingNanos > 0 && !closed) {
+						try {
+							remainingNanos = pendingCondition.awaitNanos(remainingNanos);
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+
+				batch = pendingBuffer;
+				batchEnd = appendedCount;
+				pendingBuffer = spareBuffer;
+				spareBuffer = batch;
+			} finally {
+				bufferLock.unlock();
+			}
+
+			try {
+				synchronized (this) {
+					batch.writeTo(logFile);
+					force();
+				}
+			} catch (IOException e) {
+				logger.error("Failed to flush commit log file - " + getLogFilePath());
+				bufferLock.lock();
+				try {
+					flushFailure = e;
+					flusherDone = true;
+					syncedCondition.signalAll();
+				} finally {
+					bufferLock.unlock();
+				}
+				return;
+			}
+
+			bufferLock.lock();
+			try {
+				batch.reset();
+				syncedCount = batchEnd;
+				syncedCondition.signalAll();
+			} finally {
+				bufferLock.unlock();
+			}
+		}
+	}
+
+	private void force() throws IOException {
+		SyncListener listener = syncListener;
+		if (listener != null) {
+			listener.beforeSync();
+		}
+
+		long start = System.nanoTime();
+		logFile.getChannel().force(false);
+		long elapsed = System.nanoTime() - start;
+
+		syncCount.incrementAndGet();
+		syncNanos.addAndGet(elapsed);
+		long max = maxSyncNanos.get();
+		while (elapsed > max && !maxSyncNanos.compareAndSet(max, elapsed)) {
+			max = maxSyncNanos.get();
+		}
+	}
+
+	private void stopFlusher() {
+		if (flusher == null) {
+			return;
+		}
+
+		bufferLock.lock();
+		try {
+			closed = true;
+			pendingCondition.signal();
+		} finally {
+			bufferLock.unlock();
+		}
+
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class RecordBuffer extends ByteArrayOutputStream {
+
+		public void writeTo(RandomAccessFile file) throws IOException {
+			file.write(buf, 0, count);
+		}
+	}
 }
@@ -0,0 +1,465 @@
+package com.poseidon.db.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import com.poseidon.db.representation.DataItem;
+
+// The files that make up a store, so that startup opens exactly those, in the
+// right order, without listing the data directory. Every change is appended
+// before it takes effect. A version edit names the tables it removes and the
+// tables it adds, and replaying the edits places level 0 tables the way the
+// version set did, oldest first. Commit logs are added when their memtable is
+// created and removed once their data is in a table. Value logs are added before
+// the file is created and removed before it is deleted. On start the manifest is
+// rewritten as one snapshot of what is live.
+//
+// Header: [FORMAT_MAGIC int][formatVersion int]
+// Record: [crc int][length int][type][body], the crc covers type and body
+// Edit:   [removedCount int][name]* [addedCount int]([name][level int][itemCount int][firstKey][lastKey][renamedFrom])*
+// Log:    [name], for commit logs and value logs alike
+// Names and keys are [length int][bytes], a missing one has length -1.
+public class Manifest {
+
+	private final static Logger logger = Logger.getLogger(Manifest.class);
+	public static final String FILE_NAME = "MANIFEST";
+	public static final int FORMAT_MAGIC = 0x4D414E49;
+	public static final int FORMAT_VERSION = 2;
+	// Value logs are listed from this format on
+	private static final int FORMAT_V2 = 2;
+	private static final int HEADER_SIZE = 4 + 4;
+	private static final byte EDIT = 1;
+	private static final byte ADD_COMMIT_LOG = 2;
+	private static final byte REMOVE_COMMIT_LOG = 3;
+	private static final byte ADD_VALUE_LOG = 4;
+	private static final byte REMOVE_VALUE_LOG = 5;
+
+	public static class TableEntry {
+		private final String name;
+		private final int level;
+		private final int itemCount;
+		private final DataItem firstKey;
+		private final DataItem lastKey;
+		// Set when the edit moved a table down, the file may not be renamed yet
+		private final String renamedFrom;
+
+		TableEntry(String name, int level, int itemCount, DataItem firstKey, DataItem lastKey,
+				String renamedFrom) {
+			this.name = name;
+			this.level = level;
+			this.itemCount = itemCount;
+			this.firstKey = firstKey;
+			this.lastKey = lastKey;
+			this.renamedFrom = renamedFrom;
+		}
+
+		static TableEntry of(SSTable sstable) {
+			return new TableEntry(new File(sstable.getSSTableFilePath()).getName(), sstable.getLevel(),
+					sstable.numberOfItems(), sstable.getFirstKey(), sstable.getLastKey(), null);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public int getItemCount() {
+			return itemCount;
+		}
+
+		public DataItem getFirstKey() {
+			return firstKey;
+		}
+
+		public DataItem getLastKey() {
+			return lastKey;
+		}
+
+		public String getRenamedFrom() {
+			return renamedFrom;
+		}
+	}
+
+	private final String dataDir;
+	private final boolean existed;
+	private int formatVersion = FORMAT_VERSION;
+	private List<TableEntry> level0 = new ArrayList<TableEntry>();
+	private List<TableEntry> deeperLevels = new ArrayList<TableEntry>();
+	private Set<String> commitLogs = new LinkedHashSet<String>();
+	private Set<String> valueLogs = new LinkedHashSet<String>();
+	private Set<String> obsoleteFiles = new LinkedHashSet<String>();
+	private RandomAccessFile manifestFile;
+
+	private Manifest(String dataDir, boolean existed) {
+		this.dataDir = dataDir;
+		this.existed = existed;
+	}
+
+	// Reads the manifest of the directory, if it has one. Nothing is appended
+	// before writeSnapshot.
+	public static Manifest open(String dataDir) throws IOException {
+		File file = new File(dataDir, FILE_NAME);
+		Manifest manifest = new Manifest(dataDir, file.exists());
+		if (manifest.existed) {
+			manifest.replay(Files.readAllBytes(file.toPath()));
+		}
+		return manifest;
+	}
+
+	// False for a new directory, or one written before there was a manifest
+	public boolean existed() {
+		return existed;
+	}
+
+	// Level 0 oldest first, then the deeper levels
+	public synchronized List<TableEntry> getSSTables() {
+		List<TableEntry> tables = new ArrayList<TableEntry>(level0);
+		tables.addAll(deeperLevels);
+		return tables;
+	}
+
+	// Oldest first
+	public synchronized List<File> getCommitLogFiles() {
+		List<File> files = new ArrayList<File>();
+		for (String name : commitLogs) {
+			files.add(new File(dataDir, name));
+		}
+		return files;
+	}
+
+	// Oldest first
+	public synchronized List<File> getValueLogFiles() {
+		List<File> files = new ArrayList<File>();
+		for (String name : valueLogs) {
+			files.add(new File(dataDir, name));
+		}
+		return files;
+	}
+
+	// False for a manifest written before value logs were listed in it
+	public boolean listsValueLogs() {
+		return existed && formatVersion >= FORMAT_V2;
+	}
+
+	public String getDataDir() {
+		return dataDir;
+	}
+
+	// Tables and value logs retired before a crash that were never deleted
+	public synchronized void deleteObsoleteFiles() {
+		for (String name : obsoleteFiles) {
+			File file = new File(dataDir, name);
+			if (file.exists() && !file.delete()) {
+				logger.warn("Unable to delete obsolete file - " + file.getAbsolutePath());
+			}
+		}
+		obsoleteFiles.clear();
+	}
+
+	// Replaces the manifest with one that holds just the tables of the version
+	// and the given commit logs and value logs, and keeps it open for appending
+	public synchronized void writeSnapshot(Version version, List<File> commitLogFiles, List<File> valueLogFiles)
+			throws IOException {
+		List<TableEntry> added = new ArrayList<TableEntry>();
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			for (SSTable sstable : version.getSSTablesAtLevel(level)) {
+				added.add(TableEntry.of(sstable));
+			}
+		}
+
+		level0 = new ArrayList<TableEntry>();
+		deeperLevels = new ArrayList<TableEntry>();
+		commitLogs = new LinkedHashSet<String>();
+		valueLogs = new LinkedHashSet<String>();
+		formatVersion = FORMAT_VERSION;
+		close();
+
+		String tempFilePath = dataDir + File.separator + FILE_NAME + ".tmp";
+		try (RandomAccessFile temp = new RandomAccessFile(tempFilePath, "rw")) {
+			temp.setLength(0);
+			temp.writeInt(FORMAT_MAGIC);
+			temp.writeInt(FORMAT_VERSION);
+			temp.write(frame(EDIT, encodeEdit(Collections.<String> emptyList(), added)));
+			applyEdit(Collections.<String> emptySet(), added);
+
+			for (File commitLogFile : commitLogFiles) {
+				temp.write(frame(ADD_COMMIT_LOG, encodeName(commitLogFile.getName())));
+				commitLogs.add(commitLogFile.getName());
+			}
+			for (File valueLogFile : valueLogFiles) {
+				temp.write(frame(ADD_VALUE_LOG, encodeName(valueLogFile.getName())));
+				valueLogs.add(valueLogFile.getName());
+			}
+			temp.getChannel().force(false);
+		}
+		Files.move(Paths.get(tempFilePath), Paths.get(dataDir, FILE_NAME), StandardCopyOption.ATOMIC_MOVE);
+
+		manifestFile = new RandomAccessFile(new File(dataDir, FILE_NAME), "rw");
+		manifestFile.seek(manifestFile.length());
+	}
+
+	public synchronized void logEdit(List<SSTable> removed, List<SSTable> added) throws IOException {
+		List<String> removedNames = new ArrayList<String>();
+		for (SSTable sstable : removed) {
+			removedNames.add(new File(sstable.getSSTableFilePath()).getName());
+		}
+		List<TableEntry> addedEntries = new ArrayList<TableEntry>();
+		for (SSTable sstable : added) {
+			addedEntries.add(TableEntry.of(sstable));
+		}
+
+		append(EDIT, encodeEdit(removedNames, addedEntries));
+		applyEdit(new HashSet<String>(removedNames), addedEntries);
+	}
+
+	// Logged before the file is renamed, startup finishes the rename if it did not happen
+	public synchronized void logMove(SSTable sstable, String newSSTableFilePath, int level) throws IOException {
+		String oldName = new File(sstable.getSSTableFilePath()).getName();
+		List<TableEntry> added = Collections.singletonList(new TableEntry(new File(newSSTableFilePath).getName(),
+				level, sstable.numberOfItems(), sstable.getFirstKey(), sstable.getLastKey(), oldName));
+
+		append(EDIT, encodeEdit(Collections.singletonList(oldName), added));
+		applyEdit(Collections.singleton(oldName), added);
+	}
+
+	public synchronized void addCommitLog(String logFilePath) throws IOException {
+		String name = new File(logFilePath).getName();
+		append(ADD_COMMIT_LOG, encodeName(name));
+		commitLogs.add(name);
+	}
+
+	public synchronized void removeCommitLog(String logFilePath) throws IOException {
+		String name = new File(logFilePath).getName();
+		append(REMOVE_COMMIT_LOG, encodeName(name));
+		commitLogs.remove(name);
+	}
+
+	public synchronized void addValueLog(String valueLogFilePath) throws IOException {
+		String name = new File(valueLogFilePath).getName();
+		append(ADD_VALUE_LOG, encodeName(name));
+		valueLogs.add(name);
+	}
+
+	public synchronized void removeValueLog(String valueLogFilePath) throws IOException {
+		String name = new File(valueLogFilePath).getName();
+		append(REMOVE_VALUE_LOG, encodeName(name));
+		valueLogs.remove(name);
+		obsoleteFiles.add(name);
+	}
+
+	public synchronized void close() {
+		if (manifestFile == null) {
+			return;
+		}
+		try {
+			manifestFile.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close manifest file in " + dataDir);
+		}
+		manifestFile = null;
+	}
+
+	private void append(byte type, byte[] body) throws IOException {
+		if (manifestFile == null) {
+			throw new IOException("Manifest is not open for appending in " + dataDir);
+		}
+		manifestFile.write(frame(type, body));
+		manifestFile.getChannel().force(false);
+	}
+
+	// The records after a torn or corrupt one are ignored, only the last append can be torn
+	private void replay(byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if (data.length < HEADER_SIZE || buffer.getInt() != FORMAT_MAGIC) {
+			throw new IOException("Not a manifest file in " + dataDir);
+		}
+		formatVersion = buffer.getInt();
+		if (formatVersion > FORMAT_VERSION) {
+			throw new IOException("Manifest has a newer format than this version reads in " + dataDir);
+		}
+
+		while (buffer.hasRemaining()) {
+			int position = buffer.position();
+			if (buffer.remaining() < 4 + 4 + 1) {
+				logger.warn("Ignoring torn manifest record at offset " + position + " in " + dataDir);
+				return;
+			}
+			int checksum = buffer.getInt();
+			int length = buffer.getInt();
+			if (length < 1 || length > buffer.remaining()) {
+				logger.warn("Ignoring torn manifest record at offset " + position + " in " + dataDir);
+				return;
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(data, buffer.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				logger.warn("Ignoring corrupt manifest record at offset " + position + " in " + dataDir);
+				return;
+			}
+
+			ByteBuffer record = ByteBuffer.wrap(data, buffer.position(), length).slice();
+			buffer.position(buffer.position() + length);
+			try {
+				replayRecord(record);
+			} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+				logger.warn("Ignoring malformed manifest record at offset " + position + " in " + dataDir);
+				return;
+			}
+		}
+	}
+
+	private void replayRecord(ByteBuffer record) {
+		byte type = record.get();
+		if (type == EDIT) {
+			Set<String> removed = new HashSet<String>();
+			int removedCount = record.getInt();
+			for (int i = 0; i < removedCount; i++) {
+				removed.add(readName(record));
+			}
+
+			List<TableEntry> added = new ArrayList<TableEntry>();
+			int addedCount = record.getInt();
+			for (int i = 0; i < addedCount; i++) {
+				String name = readName(record);
+				int level = record.getInt();
+				int itemCount = record.getInt();
+				DataItem firstKey = readKey(record);
+				DataItem lastKey = readKey(record);
+				added.add(new TableEntry(name, level, itemCount, firstKey, lastKey, readName(record)));
+			}
+			applyEdit(removed, added);
+		} else if (type == ADD_COMMIT_LOG) {
+			commitLogs.add(readName(record));
+		} else if (type == REMOVE_COMMIT_LOG) {
+			commitLogs.remove(readName(record));
+		} else if (type == ADD_VALUE_LOG) {
+			String name = readName(record);
+			valueLogs.add(name);
+			obsoleteFiles.remove(name);
+		} else if (type == REMOVE_VALUE_LOG) {
+			String name = readName(record);
+			valueLogs.remove(name);
+			obsoleteFiles.add(name);
+		} else {
+			throw new IllegalArgumentException("Unknown manifest record type " + type);
+		}
+	}
+
+	private void applyEdit(Set<String> removed, List<TableEntry> added) {
+		List<TableEntry> addedLevel0 = new ArrayList<TableEntry>();
+		List<TableEntry> kept = new ArrayList<TableEntry>();
+		for (TableEntry entry : deeperLevels) {
+			if (!removed.contains(entry.getName())) {
+				kept.add(entry);
+			}
+		}
+		for (TableEntry entry : added) {
+			if (entry.getLevel() == 0) {
+				addedLevel0.add(entry);
+			} else {
+				kept.add(entry);
+			}
+			obsoleteFiles.remove(entry.getName());
+		}
+
+		level0 = VersionSet.placeLevel0(level0, (entry) -> removed.contains(entry.getName()), addedLevel0);
+		deeperLevels = kept;
+		obsoleteFiles.addAll(removed);
+	}
+
+	private static byte[] encodeEdit(List<String> removed, List<TableEntry> added) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		out.writeInt(removed.size());
+		for (String name : removed) {
+			writeName(out, name);
+		}
+		out.writeInt(added.size());
+		for (TableEntry entry : added) {
+			writeName(out, entry.getName());
+			out.writeInt(entry.getLevel());
+			out.writeInt(entry.getItemCount());
+			writeKey(out, entry.getFirstKey());
+			writeKey(out, entry.getLastKey());
+			writeName(out, entry.getRenamedFrom());
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encodeName(String name) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeName(new DataOutputStream(bytes), name);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] frame(byte type, byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(body, 0, body.length);
+
+		ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 1 + body.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.putInt(1 + body.length);
+		buffer.put(type);
+		buffer.put(body);
+		return buffer.array();
+	}
+
+	private static void writeName(DataOutputStream out, String name) throws IOException {
+		writeBytes(out, (name == null) ? null : name.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeKey(DataOutputStream out, DataItem key) throws IOException {
+		writeBytes(out, (key == null) ? null : key.getData());
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		if (data == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static String readName(ByteBuffer buffer) {
+		byte[] data = readBytes(buffer);
+		return (data == null) ? null : new String(data, StandardCharsets.UTF_8);
+	}
+
+	private static DataItem readKey(ByteBuffer buffer) {
+		byte[] data = readBytes(buffer);
+		return (data == null) ? null : new DataItem(data);
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return data;
+	}
+}
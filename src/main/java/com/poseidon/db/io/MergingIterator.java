@@ -0,0 +1,106 @@
+package com.poseidon.db.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
+
+// K-way merge of sorted sources. Sources are given newest first, and when several
+// of them hold the same key only the version from the newest source is returned.
+// Entries deleted by a range tombstone of a newer source are skipped as they are read.
+public class MergingIterator implements Iterator<KeyValuePair> {
+
+	private static class Head implements Comparable<Head> {
+		private KeyValuePair kvp;
+		private int sourceIndex;
+
+		Head(KeyValuePair kvp, int sourceIndex) {
+			this.kvp = kvp;
+			this.sourceIndex = sourceIndex;
+		}
+
+		@Override
+		public int compareTo(Head other) {
+			int result = kvp.getKey().compareTo(other.kvp.getKey());
+			return (result != 0) ? result : Integer.compare(sourceIndex, other.sourceIndex);
+		}
+	}
+
+	private List<? extends Iterator<KeyValuePair>> sources;
+	private PriorityQueue<Head> heads;
+	// Per source, the range tombstones of all the sources newer than it
+	private List<List<RangeTombstone>> newerRangeTombstones;
+
+	public MergingIterator(List<? extends Iterator<KeyValuePair>> sources) {
+		this(sources, null);
+	}
+
+	// rangeTombstones lines up with the sources, null when none of them has any
+	public MergingIterator(List<? extends Iterator<KeyValuePair>> sources,
+			List<List<RangeTombstone>> rangeTombstones) {
+		this.sources = sources;
+		this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()));
+		this.newerRangeTombstones = new ArrayList<List<RangeTombstone>>(sources.size());
+
+		List<RangeTombstone> newer = Collections.emptyList();
+		for (int i = 0; i < sources.size(); i++) {
+			newerRangeTombstones.add(newer);
+			if (rangeTombstones != null && !rangeTombstones.get(i).isEmpty()) {
+				newer = new ArrayList<RangeTombstone>(newer);
+				newer.addAll(rangeTombstones.get(i));
+			}
+		}
+
+		for (int i = 0; i < sources.size(); i++) {
+			advance(i);
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !heads.isEmpty();
+	}
+
+	@Override
+	public KeyValuePair next() {
+		if (heads.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+
+		Head newest = heads.poll();
+		advance(newest.sourceIndex);
+
+		// Older versions of the same key are shadowed by the newest one
+		while (!heads.isEmpty() && heads.peek().kvp.getKey().equals(newest.kvp.getKey())) {
+			advance(heads.poll().sourceIndex);
+		}
+
+		return newest.kvp;
+	}
+
+	private void advance(int sourceIndex) {
+		Iterator<KeyValuePair> source = sources.get(sourceIndex);
+		List<RangeTombstone> newer = newerRangeTombstones.get(sourceIndex);
+
+		while (source.hasNext()) {
+			KeyValuePair kvp = source.next();
+			if (newer.isEmpty() || !isDeleted(kvp, newer)) {
+				heads.add(new Head(kvp, sourceIndex));
+				return;
+			}
+		}
+	}
+
+	private static boolean isDeleted(KeyValuePair kvp, List<RangeTombstone> rangeTombstones) {
+		for (RangeTombstone rangeTombstone : rangeTombstones) {
+			if (rangeTombstone.covers(kvp.getKey())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,54 @@
+package com.poseidon.db.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.RangeTombstone;
+
+// Hands the range tombstones of a merge out to the tables it is written into. A
+// table takes the part of each tombstone from where the table before it stopped
+// to just past its own last key, and the last table takes what is left. The
+// tables of a deeper level so stay disjoint with their tombstones counted in.
+public class RangeTombstoneSplitter {
+
+	private final List<RangeTombstone> rangeTombstones;
+	private DataItem lowerBound;
+	private boolean done;
+
+	public RangeTombstoneSplitter(List<RangeTombstone> rangeTombstones) {
+		this.rangeTombstones = rangeTombstones;
+	}
+
+	public static RangeTombstoneSplitter none() {
+		return new RangeTombstoneSplitter(Collections.<RangeTombstone> emptyList());
+	}
+
+	// lastKey is null for a table without entries, which can only be the last one
+	List<RangeTombstone> take(DataItem lastKey, boolean last) {
+		if (done || rangeTombstones.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		DataItem upperBound = last ? null : successor(lastKey);
+		List<RangeTombstone> taken = new ArrayList<RangeTombstone>();
+		for (RangeTombstone rangeTombstone : rangeTombstones) {
+			RangeTombstone clipped = rangeTombstone.clip(lowerBound, upperBound);
+			if (clipped != null) {
+				taken.add(clipped);
+			}
+		}
+
+		lowerBound = upperBound;
+		done = last;
+		return taken;
+	}
+
+	// The smallest key sorting after key
+	private static DataItem successor(DataItem key) {
+		byte[] data = new byte[key.length() + 1];
+		System.arraycopy(key.getData(), 0, data, 0, key.length());
+		data[key.length()] = Byte.MIN_VALUE;
+		return new DataItem(data);
+	}
+}
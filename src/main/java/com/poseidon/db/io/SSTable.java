@@ -3,32 +3,83 @@ package com.poseidon.db.io;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import org.apache.log4j.Logger;
 import com.poseidon.db.Memtable;
+import com.poseidon.db.StoreOptions;
+import com.poseidon.db.compression.Compression;
+import com.poseidon.db.compression.CompressionCodec;
+import com.poseidon.db.compression.DeflateCodec;
+import com.poseidon.db.compression.DictionaryTrainer;
+import com.poseidon.db.io.access.ChannelAccess;
 import com.poseidon.db.io.access.FileAccess;
 import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.io.access.SegmentedMappedAccess;
 import com.poseidon.db.io.access.SimpleAccess;
-import com.poseidon.db.io.access.SimpleMappedByteBufferAccess;
 import com.poseidon.db.representation.DataItem;
 import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
 import com.poseidon.db.utils.BlockCache;
 import com.poseidon.db.utils.BloomFilter;
 import com.poseidon.db.utils.DataConversion;
 import com.poseidon.db.utils.IOUtils;
 import com.poseidon.db.utils.Pair;
 
+// Format v5 (written):
+// Header: [FORMAT_MAGIC int][formatVersion int][itemCount int][blockSize int][indexPosition long][filterPosition long]
+//         [dictionaryPosition long][uncompressedDataBytes long][rangeTombstonePosition long]
+// Data:   blocks of about blockSize bytes before compression, see BlockBuilder, each
+//         followed by [uncompressedLength int][compression id byte]
+// Dictionary: the preset dictionary of DEFLATE_DICTIONARY blocks, up to the index.
+//         Only there when dictionaryPosition is not 0.
+// Index:  per block [keyLength int][first key][byteCount int][offset long]
+// Range tombstones: [count int] and each one as RangeTombstone encodes it, up to the filter.
+//         Only there when rangeTombstonePosition is not 0. A table may hold nothing else.
+// Filter: bloom filter up to the end of the file
+//
+// Format v4 (still read) has the first 48 bytes of the v5 header and no range tombstones.
+// Format v3 (still read) has the first 32 bytes of the v5 header and no dictionary.
+// Format v2 (still read) is v3 without the block trailer.
+// Format v1 (still read) has a 24 byte header [itemCount int][totalByteCount int][indexPosition long][filterPosition long],
+// plain [recordLength int][keyLength int][key][value] records and an index entry every INDEX_INTERVAL records.
 public class SSTable {
 
-	private final static Logger logger = Logger.getLogger(CommitLog.class);
+	private final static Logger logger = Logger.getLogger(SSTable.class);
 	public static final String SSTABLE_FILENAME_PREFIX = "sstable-";
+	// A table is written under this name and only renamed once it is complete, so
+	// a half written file is never loaded as an sstable
+	public static final String TEMP_FILENAME_PREFIX = "sstable.tmp-";
 	public static final int INDEX_INTERVAL = 128;
-
-	public static TreeMap<String, SSTable> sstables = new TreeMap<String, SSTable>();
+	public static final long DATA_POSITION = 56;
+	public static final long DATA_POSITION_V1 = 24;
+	public static final int MAX_LEVELS = 7;
+	// Negative, so it never reads as the item count a v1 header starts with
+	public static final int FORMAT_MAGIC = 0xD0D0CAFE;
+	public static final int FORMAT_V1 = 1;
+	public static final int FORMAT_V2 = 2;
+	public static final int FORMAT_V3 = 3;
+	public static final int FORMAT_V4 = 4;
+	public static final int FORMAT_V5 = 5;
+	public static final int BLOCK_TRAILER_SIZE = 4 + 1;
+	public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+	private static final int SCAN_READ_AHEAD = 256 * 1024;
+	// Values a dictionary is trained on, at most
+	private static final int DICTIONARY_SAMPLE_BYTES = 128 * 1024;
+	private static final int DICTIONARY_SAMPLE_COUNT = 2048;
+	private static final DataItem TOMBSTONE_VALUE = new DataItem(new byte[] { Memtable.TOMBSTONE });
+
+	private static final AtomicLong nextId = new AtomicLong(0);
 
 	static class IndexData {
 		private DataItem key;
@@ -71,99 +122,208 @@ public class SSTable {
 	}
 
 	private int itemCount;
+	private int formatVersion;
+	private int blockSize;
+	private DeflateCodec dictionaryCodec;
+	private long uncompressedDataBytes;
+	private long storedDataBytes;
+	private volatile int level;
+	// Span the range tombstones too, not only the entries
+	private DataItem firstKey;
+	private DataItem lastKey;
+	private List<RangeTombstone> rangeTombstones = Collections.emptyList();
 	private long indexPosition;
 	private long filterPosition;
-	private String sstableFilePath;
+	private long fileSize;
+	private volatile String sstableFilePath;
+	// One reference per version holding this table, the file goes with the last one
+	private AtomicInteger refCount = new AtomicInteger(0);
+	private volatile boolean obsolete;
 	private BloomFilter bloomFilter;
 	private RandomAccessFile sstableFile;
 	private FileAccess fileAccess;
 	private IndexData[] indexes;
-	private BlockCache<DataItem, List<Pair<DataItem, DataItem>>> blockCache;
+	private final long id = nextId.incrementAndGet();
+	private volatile BlockCache<Block> blockCache;
 
-	public static DataItem find(DataItem key) {
+	public void closeSSTableFile() {
+		try {
+			sstableFile.close();
+		} catch (IOException e) {
+			logger.warn("Cannot close sstable file - " + getSSTableFilePath());
+		}
+	}
 
-		List<SSTable> sstables = new ArrayList<SSTable>();
+	// Data and metadata of the file on disk, before a manifest edit or a deleted log
+	// comes to depend on it
+	public void sync() throws IOException {
+		sstableFile.getChannel().force(true);
+	}
 
-		synchronized (SSTable.class) {
-			for (String sstableFileName : SSTable.sstables.descendingKeySet()) {
-				sstables.add(SSTable.sstables.get(sstableFileName));
-			}
-		}
+	public static SSTable openSSTable(String sstableFilePath, FileAccessChoice fileAccessChoice) throws IOException {
+		return new SSTable(sstableFilePath, fileAccessChoice);
+	}
 
-		for (SSTable sstable : sstables) {
-			try {
-				DataItem valueDt = sstable.get(key);
-				if (valueDt != null) {
-					return valueDt;
+	public static SSTable createNewSSTable(Memtable mem, String sstablePath, FileAccessChoice fileAccessChoice)
+			throws IOException {
+		return createNewSSTable(mem, sstablePath, fileAccessChoice, BloomFilter.DEFAULT_BITS_PER_KEY);
+	}
+
+	public static SSTable createNewSSTable(Memtable mem, String sstablePath, FileAccessChoice fileAccessChoice,
+			int bloomBitsPerKey) throws IOException {
+		return createNewSSTable(mem, sstablePath, fileAccessChoice, bloomBitsPerKey, DEFAULT_BLOCK_SIZE);
+	}
+
+	public static SSTable createNewSSTable(Memtable mem, String sstablePath, FileAccessChoice fileAccessChoice,
+			int bloomBitsPerKey, int blockSize) throws IOException {
+		return createNewSSTable(mem, sstablePath, new StoreOptions().setFileAccessChoice(fileAccessChoice)
+				.setBloomBitsPerKey(bloomBitsPerKey).setBlockSize(blockSize));
+	}
+
+	public static SSTable createNewSSTable(Memtable mem, String sstablePath, StoreOptions options)
+			throws IOException {
+
+		String tempFilePath = sstablePath + File.separator + TEMP_FILENAME_PREFIX + UUID.randomUUID().toString();
+		byte[] dictionary = null;
+
+		if (options.getCompression().usesDictionary()) {
+			// Spread over the whole memtable, neighbouring keys tend to have alike values
+			int stride = Math.max(1, mem.numberOfItems() / DICTIONARY_SAMPLE_COUNT);
+			List<byte[]> samples = new ArrayList<byte[]>();
+			Iterator<KeyValuePair> entries = mem.iterator();
+			int sampledBytes = 0;
+
+			for (int i = 0; entries.hasNext() && sampledBytes < DICTIONARY_SAMPLE_BYTES; i++) {
+				KeyValuePair kvp = entries.next();
+				if (i % stride == 0) {
+					samples.add(kvp.getValue().getData());
+					sampledBytes += kvp.getValue().length();
 				}
-			} catch (IOException e) {
-				logger.error("Cannot find inside sstable file - " + sstable.getSSTableFilePath());
 			}
+			dictionary = DictionaryTrainer.train(samples, options.getDictionarySize());
 		}
 
-		return null;
+		// Memtable entries are already kept in key order, no sorting needed
+		SSTable sstable = writeSSTable(tempFilePath, new ArrayList<KeyValuePair>(), mem.iterator(),
+				mem.numberOfItems(), options, Long.MAX_VALUE, dictionary,
+				new RangeTombstoneSplitter(mem.getRangeTombstones()));
+		if (sstable != null) {
+			sstable.sync();
+			sstable.renameTo(sstablePath + File.separator + getSSTableFileName(0));
+		}
+		return sstable;
 	}
 
-	public void closeSSTableFile() {
-		try {
-			sstableFile.close();
-		} catch (IOException e) {
-			logger.warn("Cannot close sstable file - " + getSSTableFilePath());
-		}
+	public static SSTable writeSSTable(String sstableFilePath, Iterator<KeyValuePair> kvps, int expectedItemCount,
+			FileAccessChoice fileAccessChoice, int bloomBitsPerKey) throws IOException {
+		return writeSSTable(sstableFilePath, kvps, expectedItemCount,
+				new StoreOptions().setFileAccessChoice(fileAccessChoice).setBloomBitsPerKey(bloomBitsPerKey),
+				Long.MAX_VALUE);
 	}
 
-	public static void createAndRegisterNewSSTable(String sstableFilePath, FileAccessChoice fileAccessChoice)
-			throws IOException {
-		synchronized (SSTable.class) {
-			SSTable.sstables.put(sstableFilePath, new SSTable(sstableFilePath, fileAccessChoice));
-		}
+	// Stops once the data section reaches maxByteCount, leaving the rest of kvps
+	// for the next table. A block is cut once it reaches the block size, before
+	// it is compressed.
+	public static SSTable writeSSTable(String sstableFilePath, Iterator<KeyValuePair> kvps, int expectedItemCount,
+			StoreOptions options, long maxByteCount) throws IOException {
+		return writeSSTable(sstableFilePath, kvps, expectedItemCount, options, maxByteCount,
+				RangeTombstoneSplitter.none());
 	}
 
-	public static void createAndRegisterNewSSTable(Memtable mem, String sstablePath, FileAccessChoice fileAccessChoice)
+	// The table takes its share of the range tombstones once its entries are written
+	public static SSTable writeSSTable(String sstableFilePath, Iterator<KeyValuePair> kvps, int expectedItemCount,
+			StoreOptions options, long maxByteCount, RangeTombstoneSplitter rangeTombstoneSplitter)
 			throws IOException {
+		List<KeyValuePair> head = new ArrayList<KeyValuePair>();
+		byte[] dictionary = null;
+
+		if (options.getCompression().usesDictionary()) {
+			// kvps can be read only once, so the dictionary learns from the entries that
+			// come first and those are written from the sample
+			List<byte[]> samples = new ArrayList<byte[]>();
+			int sampledBytes = 0;
+
+			while (kvps.hasNext() && sampledBytes < DICTIONARY_SAMPLE_BYTES) {
+				KeyValuePair kvp = kvps.next();
+				head.add(kvp);
+				samples.add(kvp.getValue().getData());
+				sampledBytes += kvp.getValue().length();
+			}
+			dictionary = DictionaryTrainer.train(samples, options.getDictionarySize());
+		}
+
+		return writeSSTable(sstableFilePath, head, kvps, expectedItemCount, options, maxByteCount, dictionary,
+				rangeTombstoneSplitter);
+	}
 
-		BloomFilter bloomFilter = new BloomFilter();
+	// Entries of head come before those of kvps and are all written, whatever maxByteCount says
+	private static SSTable writeSSTable(String sstableFilePath, List<KeyValuePair> head, Iterator<KeyValuePair> kvps,
+			int expectedItemCount, StoreOptions options, long maxByteCount, byte[] dictionary,
+			RangeTombstoneSplitter rangeTombstoneSplitter) throws IOException {
+
+		int blockSize = options.getBlockSize();
+		Compression compression = options.getCompression();
+		if (dictionary != null && dictionary.length == 0) {
+			// Nothing worth learning from the samples
+			dictionary = null;
+			compression = Compression.DEFLATE;
+		}
+		DeflateCodec dictionaryCodec = (dictionary == null) ? null
+				: new DeflateCodec(Deflater.DEFAULT_COMPRESSION, dictionary);
+		CompressionCodec codec = compression.usesDictionary() ? dictionaryCodec : compression.getCodec();
+		Iterator<KeyValuePair> headEntries = head.iterator();
+		BloomFilter bloomFilter = new BloomFilter(expectedItemCount, options.getBloomBitsPerKey());
 		int itemCount = 0;
-		String identity = UUID.randomUUID().toString();
-		long unixTime = System.currentTimeMillis() / 1000L;
-		String sstableFilePath = sstablePath + File.separator + SSTABLE_FILENAME_PREFIX + unixTime + "-" + identity;
 		List<IndexData> indexList = new ArrayList<IndexData>();
 		RandomAccessFile sstableFile = new RandomAccessFile(sstableFilePath, "rw");
+		BlockBuilder blockBuilder = new BlockBuilder(blockSize);
 
-		sstableFile.seek(24);
+		sstableFile.seek(DATA_POSITION);
 
-		List<KeyValuePair> kvps = mem.getAllKeyValuePairs();
-		Collections.sort(kvps);
-		int blockByteCount = 0;
-		int totalByteCount = 0;
+		long totalByteCount = 0;
+		long uncompressedByteCount = 0;
+		DataItem lastKey = null;
 
-		for (KeyValuePair kvp : kvps) {
-			int keyLength = kvp.getKey().length();
-			int recordLength = keyLength + kvp.getValue().length();
+		while (headEntries.hasNext()
+				|| (kvps.hasNext() && totalByteCount + blockBuilder.currentSize() < maxByteCount)) {
+			KeyValuePair kvp = headEntries.hasNext() ? headEntries.next() : kvps.next();
+			DataItem key = kvp.getKey();
 
-			bloomFilter.add(kvp.getKey().getData());
+			bloomFilter.add(key.getData());
 
-			if ((itemCount % INDEX_INTERVAL) == 0) {
-				if (indexList.size() > 0) {
-					indexList.get(indexList.size() - 1).setByteCount(blockByteCount);
-				}
-				blockByteCount = 0;
-				indexList.add(new IndexData(kvp.getKey(), sstableFile.getFilePointer()));
+			if (blockBuilder.isEmpty()) {
+				indexList.add(new IndexData(key, DATA_POSITION + totalByteCount));
 			}
+			blockBuilder.add(key.getData(), kvp.getValue().getData());
 
-			byte[] recordLengthData = DataConversion.intToByteArray(recordLength);
-			byte[] keyLengthData = DataConversion.intToByteArray(keyLength);
-			byte[] dataToWrite = IOUtils.concatByteArrays(recordLengthData, keyLengthData, kvp.getKey().getData(),
-					kvp.getValue().getData());
-
-			sstableFile.write(dataToWrite);
+			if (blockBuilder.currentSize() >= blockSize) {
+				uncompressedByteCount += blockBuilder.currentSize();
+				totalByteCount += writeBlock(sstableFile, blockBuilder, indexList.get(indexList.size() - 1),
+						compression, codec);
+			}
 
-			blockByteCount += 4 + 4 + recordLength;
-			totalByteCount += 4 + 4 + recordLength;
-			;
+			lastKey = key;
 			itemCount++;
 		}
-		indexList.get(indexList.size() - 1).setByteCount(blockByteCount);
+
+		List<RangeTombstone> rangeTombstones = rangeTombstoneSplitter.take(lastKey, !kvps.hasNext());
+		if (itemCount == 0 && rangeTombstones.isEmpty()) {
+			// Nothing left to keep, e.g. every entry was dropped by compaction
+			sstableFile.close();
+			new File(sstableFilePath).delete();
+			return null;
+		}
+		if (!blockBuilder.isEmpty()) {
+			uncompressedByteCount += blockBuilder.currentSize();
+			totalByteCount += writeBlock(sstableFile, blockBuilder, indexList.get(indexList.size() - 1),
+					compression, codec);
+		}
+
+		long dictionaryPosition = 0;
+		if (dictionary != null) {
+			dictionaryPosition = sstableFile.getFilePointer();
+			sstableFile.write(dictionary);
+		}
 
 		long indexPosition = sstableFile.getFilePointer();
 		for (IndexData idPair : indexList) {
@@ -177,28 +337,179 @@ public class SSTable {
 			sstableFile.write(dataToWrite);
 		}
 
+		long rangeTombstonePosition = 0;
+		if (!rangeTombstones.isEmpty()) {
+			rangeTombstonePosition = sstableFile.getFilePointer();
+			sstableFile.write(DataConversion.intToByteArray(rangeTombstones.size()));
+			for (RangeTombstone rangeTombstone : rangeTombstones) {
+				sstableFile.write(rangeTombstone.toByteArray());
+			}
+		}
+
 		long filterPosition = sstableFile.getFilePointer();
 		byte[] filterData = bloomFilter.getByteArray();
 		sstableFile.write(filterData);
 
 		sstableFile.seek(0);
 
-		byte[] itemCountData = DataConversion.intToByteArray(itemCount);
-		byte[] totalByteData = DataConversion.intToByteArray(totalByteCount);
-		byte[] indexPositionData = DataConversion.longToByteArray(indexPosition);
-		byte[] filterPositionData = DataConversion.longToByteArray(filterPosition);
-		byte[] dataToWrite = IOUtils.concatByteArrays(itemCountData, totalByteData, indexPositionData,
-				filterPositionData);
+		byte[] dataToWrite = IOUtils.concatByteArrays(DataConversion.intToByteArray(FORMAT_MAGIC),
+				DataConversion.intToByteArray(FORMAT_V5), DataConversion.intToByteArray(itemCount),
+				DataConversion.intToByteArray(blockSize), DataConversion.longToByteArray(indexPosition),
+				DataConversion.longToByteArray(filterPosition), DataConversion.longToByteArray(dictionaryPosition),
+				DataConversion.longToByteArray(uncompressedByteCount),
+				DataConversion.longToByteArray(rangeTombstonePosition));
 
 		sstableFile.write(dataToWrite);
 
 		IndexData[] indexes = indexList.toArray(new IndexData[indexList.size()]);
 		SSTable sstable = new SSTable(sstableFile, indexes, indexPosition, filterPosition, itemCount, bloomFilter,
-				sstableFilePath, fileAccessChoice);
+				lastKey, rangeTombstones, sstableFilePath, options.getFileAccessChoice());
+		sstable.formatVersion = FORMAT_V5;
+		sstable.blockSize = blockSize;
+		sstable.dictionaryCodec = dictionaryCodec;
+		sstable.uncompressedDataBytes = uncompressedByteCount;
+		sstable.storedDataBytes = totalByteCount;
+
+		if (compression != Compression.NONE) {
+			logger.info(String.format("Wrote %s with %s, %d bytes of blocks stored in %d, compression ratio %.2f",
+					sstableFilePath, compression, uncompressedByteCount, totalByteCount,
+					sstable.getCompressionRatio()));
+		}
+		return sstable;
+	}
 
-		synchronized (SSTable.class) {
-			sstables.put(sstableFilePath, sstable);
+	private static int writeBlock(RandomAccessFile sstableFile, BlockBuilder blockBuilder, IndexData indexData,
+			Compression compression, CompressionCodec codec) throws IOException {
+		byte[] block = blockBuilder.finish();
+		byte[] stored = block;
+		Compression used = Compression.NONE;
+
+		if (compression != Compression.NONE) {
+			byte[] compressed = codec.compress(block, 0, block.length);
+			// Kept as is unless it saves at least an eighth, a read would pay for nothing
+			if (compressed.length < block.length - block.length / 8) {
+				stored = compressed;
+				used = compression;
+			}
 		}
+
+		byte[] trailer = IOUtils.concatByteArrays(DataConversion.intToByteArray(block.length),
+				new byte[] { used.getId() });
+		sstableFile.write(IOUtils.concatByteArrays(stored, trailer));
+		indexData.setByteCount(stored.length + trailer.length);
+		blockBuilder.reset();
+		return stored.length + trailer.length;
+	}
+
+	// Turns the bytes of one block as stored in the file back into a Block
+	Block decodeBlock(ByteBuffer data) {
+		if (formatVersion == FORMAT_V2) {
+			return new Block(data);
+		}
+
+		int trailerPosition = data.limit() - BLOCK_TRAILER_SIZE;
+		int uncompressedLength = data.getInt(trailerPosition);
+		Compression compression = Compression.fromId(data.get(trailerPosition + 4));
+
+		if (compression == Compression.NONE) {
+			data.limit(trailerPosition);
+			return new Block(data.slice());
+		}
+
+		byte[] compressed;
+		int offset;
+		if (data.hasArray()) {
+			compressed = data.array();
+			offset = data.arrayOffset();
+		} else {
+			compressed = new byte[trailerPosition];
+			data.duplicate().get(compressed);
+			offset = 0;
+		}
+		CompressionCodec codec = compression.usesDictionary() ? dictionaryCodec : compression.getCodec();
+		if (codec == null) {
+			throw new IllegalStateException("No dictionary for a " + compression + " block - " + sstableFilePath);
+		}
+		return new Block(codec.decompress(compressed, offset, trailerPosition, uncompressedLength));
+	}
+
+	public static String getSSTableFileName(int level) {
+		return getSSTableFileName(level, System.currentTimeMillis() / 1000L);
+	}
+
+	// Names sort by age within level 0, which is the order tables are reloaded in
+	public static String getSSTableFileName(int level, long unixTime) {
+		String prefix = (level > 0) ? SSTABLE_FILENAME_PREFIX + "L" + level + "-" : SSTABLE_FILENAME_PREFIX;
+		return prefix + unixTime + "-" + UUID.randomUUID().toString();
+	}
+
+	// The new name is durable once this returns
+	public void renameTo(String newSSTableFilePath) throws IOException {
+		Files.move(Paths.get(sstableFilePath), Paths.get(newSSTableFilePath), StandardCopyOption.ATOMIC_MOVE);
+		IOUtils.syncDirectory(Paths.get(newSSTableFilePath).toAbsolutePath().getParent());
+		sstableFilePath = newSSTableFilePath;
+		level = parseLevel(newSSTableFilePath);
+	}
+
+	public void markObsolete() {
+		obsolete = true;
+	}
+
+	public boolean isObsolete() {
+		return obsolete;
+	}
+
+	public int getRefCount() {
+		return refCount.get();
+	}
+
+	void ref() {
+		refCount.incrementAndGet();
+	}
+
+	void unref() {
+		if (refCount.decrementAndGet() == 0) {
+			closeSSTableFile();
+			if (obsolete) {
+				new File(sstableFilePath).delete();
+			}
+		}
+	}
+
+	public SSTableIterator iterator() throws IOException {
+		if (indexes.length == 0) {
+			return new SSTableIterator(sstableFilePath, DATA_POSITION, DATA_POSITION);
+		}
+		if (formatVersion == FORMAT_V1) {
+			return new SSTableIterator(sstableFilePath, DATA_POSITION_V1, indexPosition);
+		}
+		return new SSTableIterator(this, 0, SSTableIterator.READ_BUFFER_SIZE);
+	}
+
+	// Starts at the block that may hold startKey, earlier keys of that block still come out
+	public SSTableIterator iterator(DataItem startKey) throws IOException {
+		int position = (startKey == null) ? -1 : binarySearchPosition(startKey);
+
+		if (indexes.length == 0) {
+			return iterator();
+		}
+		if (formatVersion == FORMAT_V1) {
+			long startPosition = (position < 0) ? DATA_POSITION_V1 : indexes[position].getOffset();
+			return new SSTableIterator(sstableFilePath, startPosition, indexPosition, SCAN_READ_AHEAD);
+		}
+		return new SSTableIterator(this, Math.max(position, 0), SCAN_READ_AHEAD);
+	}
+
+	public long getUnixTime() {
+		String name = new File(sstableFilePath).getName().substring(SSTABLE_FILENAME_PREFIX.length());
+		if (level > 0) {
+			name = name.substring(name.indexOf('-') + 1);
+		}
+		return Long.parseLong(name.substring(0, name.indexOf('-')));
+	}
+
+	public long getFileSize() {
+		return fileSize;
 	}
 
 	public String getSSTableFilePath() {
@@ -209,29 +520,98 @@ public class SSTable {
 		return itemCount;
 	}
 
+	public int getLevel() {
+		return level;
+	}
+
+	public DataItem getFirstKey() {
+		return firstKey;
+	}
+
+	public DataItem getLastKey() {
+		return lastKey;
+	}
+
+	public boolean overlaps(DataItem smallestKey, DataItem largestKey) {
+		return firstKey.compareTo(largestKey) <= 0 && lastKey.compareTo(smallestKey) >= 0;
+	}
+
+	public List<RangeTombstone> getRangeTombstones() {
+		return rangeTombstones;
+	}
+
+	public boolean isDeletedByRange(DataItem key) {
+		for (RangeTombstone rangeTombstone : rangeTombstones) {
+			if (rangeTombstone.covers(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public int getFormatVersion() {
+		return formatVersion;
+	}
+
+	// Zero for v1 tables, which are cut by item count
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// Only v4 tables record it, older ones report their stored size
+	public long getUncompressedDataBytes() {
+		return uncompressedDataBytes;
+	}
+
+	public long getStoredDataBytes() {
+		return storedDataBytes;
+	}
+
+	public double getCompressionRatio() {
+		return (storedDataBytes == 0) ? 1.0 : (double) uncompressedDataBytes / storedDataBytes;
+	}
+
+	public byte[] getDictionary() {
+		return (dictionaryCodec == null) ? null : dictionaryCodec.getDictionary();
+	}
+
+	public void setBlockCache(BlockCache<Block> blockCache) {
+		this.blockCache = blockCache;
+	}
+
 	public IndexData[] getIndexes() {
 		return indexes;
 	}
 
 	private SSTable(RandomAccessFile sstableFile, IndexData[] indexes, long indexPosition, long filterPosition,
-			int itemCount, BloomFilter bloomFilter, String sstableFilePath, FileAccessChoice fileAccessChoice)
-					throws IOException {
+			int itemCount, BloomFilter bloomFilter, DataItem lastKey, List<RangeTombstone> rangeTombstones,
+			String sstableFilePath, FileAccessChoice fileAccessChoice) throws IOException {
 		this.sstableFile = sstableFile;
 		this.indexes = indexes;
+		this.firstKey = (indexes.length == 0) ? null : indexes[0].getKey();
+		this.lastKey = lastKey;
+		this.rangeTombstones = rangeTombstones;
+		spanRangeTombstones();
+		this.level = parseLevel(sstableFilePath);
 		this.itemCount = itemCount;
 		this.indexPosition = indexPosition;
 		this.filterPosition = filterPosition;
 		this.bloomFilter = bloomFilter;
 		this.sstableFilePath = sstableFilePath;
-		blockCache = new BlockCache<DataItem, List<Pair<DataItem, DataItem>>>(100);
+		this.fileSize = sstableFile.length();
 
 		initializeFileAccess(fileAccessChoice);
 	}
 
 	private SSTable(String sstableFilePath, FileAccessChoice fileAccessChoice) throws IOException {
 		this.sstableFilePath = sstableFilePath;
+		this.level = parseLevel(sstableFilePath);
 		sstableFile = new RandomAccessFile(sstableFilePath, "rw");
-		blockCache = new BlockCache<DataItem, List<Pair<DataItem, DataItem>>>(100);
+		fileSize = sstableFile.length();
 		readSSTableFile();
 		initializeFileAccess(fileAccessChoice);
 	}
@@ -240,10 +620,27 @@ public class SSTable {
 		byte[] buf = new byte[4];
 
 		sstableFile.read(buf);
-		itemCount = DataConversion.byteArrayToInt(buf);
+		int first = DataConversion.byteArrayToInt(buf);
 
-		sstableFile.read(buf);
-		DataConversion.byteArrayToInt(buf); // TODO: to use total byte count
+		if (first == FORMAT_MAGIC) {
+			sstableFile.read(buf);
+			formatVersion = DataConversion.byteArrayToInt(buf);
+			if (formatVersion < FORMAT_V2 || formatVersion > FORMAT_V5) {
+				throw new IOException("Unknown sstable format " + formatVersion + " - " + sstableFilePath);
+			}
+
+			sstableFile.read(buf);
+			itemCount = DataConversion.byteArrayToInt(buf);
+
+			sstableFile.read(buf);
+			blockSize = DataConversion.byteArrayToInt(buf);
+		} else {
+			formatVersion = FORMAT_V1;
+			itemCount = first;
+
+			sstableFile.read(buf);
+			DataConversion.byteArrayToInt(buf); // TODO: to use total byte count
+		}
 
 		buf = new byte[8];
 		sstableFile.read(buf);
@@ -253,10 +650,105 @@ public class SSTable {
 		sstableFile.read(buf);
 		filterPosition = DataConversion.byteArrayToLong(buf);
 
-		loadIndexes(indexPosition, itemCount);
+		long dictionaryPosition = 0;
+		uncompressedDataBytes = -1;
+		if (formatVersion >= FORMAT_V4) {
+			sstableFile.read(buf);
+			dictionaryPosition = DataConversion.byteArrayToLong(buf);
+
+			sstableFile.read(buf);
+			uncompressedDataBytes = DataConversion.byteArrayToLong(buf);
+		}
+
+		long rangeTombstonePosition = 0;
+		if (formatVersion >= FORMAT_V5) {
+			sstableFile.read(buf);
+			rangeTombstonePosition = DataConversion.byteArrayToLong(buf);
+		}
+
+		loadIndexes(indexPosition, (rangeTombstonePosition == 0) ? filterPosition : rangeTombstonePosition);
+		if (rangeTombstonePosition != 0) {
+			loadRangeTombstones(rangeTombstonePosition);
+		}
+
+		for (IndexData index : indexes) {
+			storedDataBytes += index.getByteCount();
+		}
+		if (uncompressedDataBytes < 0) {
+			uncompressedDataBytes = storedDataBytes;
+		}
+
+		if (dictionaryPosition != 0) {
+			byte[] dictionary = new byte[(int) (indexPosition - dictionaryPosition)];
+			sstableFile.seek(dictionaryPosition);
+			sstableFile.readFully(dictionary);
+			dictionaryCodec = new DeflateCodec(Deflater.DEFAULT_COMPRESSION, dictionary);
+		}
+
+		if (indexes.length > 0) {
+			firstKey = indexes[0].getKey();
+			lastKey = readLastKey(indexes[indexes.length - 1]);
+		}
+		spanRangeTombstones();
+	}
+
+	private DataItem readLastKey(IndexData lastIndex) throws IOException {
+		if (formatVersion != FORMAT_V1) {
+			byte[] lastBlock = new byte[lastIndex.getByteCount()];
+			sstableFile.seek(lastIndex.getOffset());
+			sstableFile.readFully(lastBlock);
+			return decodeBlock(ByteBuffer.wrap(lastBlock)).getLastKey();
+		}
+
+		DataItem key = null;
+		try (SSTableIterator lastBlock = new SSTableIterator(sstableFilePath, lastIndex.getOffset(),
+				indexPosition)) {
+			while (lastBlock.hasNext()) {
+				key = lastBlock.next().getKey();
+			}
+		}
+		return key;
+	}
+
+	private void loadRangeTombstones(long rangeTombstonePosition) throws IOException {
+		byte[] section = new byte[(int) (filterPosition - rangeTombstonePosition)];
+		sstableFile.seek(rangeTombstonePosition);
+		sstableFile.readFully(section);
+
+		ByteBuffer buffer = ByteBuffer.wrap(section);
+		int count = buffer.getInt();
+		List<RangeTombstone> loaded = new ArrayList<RangeTombstone>(count);
+		for (int i = 0; i < count; i++) {
+			loaded.add(RangeTombstone.read(buffer));
+		}
+		rangeTombstones = loaded;
+	}
+
+	// The end of a tombstone is not covered, but taking it as the last key only makes
+	// the table look a little wider than it is
+	private void spanRangeTombstones() {
+		for (RangeTombstone rangeTombstone : rangeTombstones) {
+			if (firstKey == null || rangeTombstone.getStart().compareTo(firstKey) < 0) {
+				firstKey = rangeTombstone.getStart();
+			}
+			if (lastKey == null || rangeTombstone.getEnd().compareTo(lastKey) > 0) {
+				lastKey = rangeTombstone.getEnd();
+			}
+		}
 	}
 
-	private final void loadIndexes(long indexPosition, int itemCount) throws IOException {
+	private static int parseLevel(String sstableFilePath) {
+		String name = new File(sstableFilePath).getName();
+		String levelPrefix = SSTABLE_FILENAME_PREFIX + "L";
+
+		if (!name.startsWith(levelPrefix)) {
+			return 0;
+		}
+		int end = name.indexOf('-', levelPrefix.length());
+		return Integer.parseInt(name.substring(levelPrefix.length(), end));
+	}
+
+	private final void loadIndexes(long indexPosition, long indexEnd) throws IOException {
 		sstableFile.seek(indexPosition);
 
 		byte[] keyLengthBuf = new byte[4];
@@ -265,7 +757,7 @@ public class SSTable {
 
 		List<IndexData> indexList = new ArrayList<IndexData>();
 
-		while (sstableFile.getFilePointer() < filterPosition) {
+		while (sstableFile.getFilePointer() < indexEnd) {
 			sstableFile.read(keyLengthBuf);
 
 			byte[] keyBuf = new byte[DataConversion.byteArrayToInt(keyLengthBuf)];
@@ -281,11 +773,18 @@ public class SSTable {
 		indexes = indexList.toArray(new IndexData[indexList.size()]);
 
 		byte[] filterBuf = new byte[(int) (sstableFile.length() - filterPosition)];
-		sstableFile.read(filterBuf);
+		sstableFile.seek(filterPosition);
+		sstableFile.readFully(filterBuf);
 		bloomFilter = new BloomFilter(filterBuf);
 	}
 
 	private IndexData binarySearch(DataItem key) {
+		int found = binarySearchPosition(key);
+		return (found >= 0) ? indexes[found] : null;
+	}
+
+	// Position of the block that would hold the key, -1 if it sorts before all of them
+	private int binarySearchPosition(DataItem key) {
 		int start = 0;
 		int end = indexes.length - 1;
 		int found = -1;
@@ -308,48 +807,172 @@ public class SSTable {
 			found = end;
 		}
 
-		if (found >= 0) {
-			return indexes[found];
-		}
+		return found;
+	}
+
+	// False only for keys the table certainly does not hold
+	public boolean mightContain(DataItem key) {
+		return bloomFilter.contains(key.getData());
+	}
 
-		return null;
+	// A tombstone for a key only a range tombstone of this table deletes
+	DataItem get(DataItem key) throws IOException {
+		DataItem value = getEntry(key);
+		return (value == null && isDeletedByRange(key)) ? TOMBSTONE_VALUE : value;
 	}
 
-	private DataItem get(DataItem key) throws IOException {
+	private DataItem getEntry(DataItem key) throws IOException {
 		if (!bloomFilter.contains(key.getData())) {
 			return null;
 		}
 
 		IndexData indexPair = binarySearch(key);
 
-		if (indexPair != null) {
+		if (indexPair == null) {
+			return null;
+		}
+
+		long startOffset = indexPair.getOffset();
+		long limitOffset = startOffset + indexPair.getByteCount();
+
+		// A v1 record can be found without decoding the rest of its block
+		if (formatVersion == FORMAT_V1 && blockCache == null) {
+			return fileAccess.getValue(key, startOffset, limitOffset);
+		}
+
+		if (formatVersion != FORMAT_V1) {
+			return getFromBlock(key, indexPair);
+		}
+
+		Block block = loadBlock(indexPair);
+		return (block == null) ? fileAccess.getValue(key, startOffset, limitOffset) : block.get(key);
+	}
+
+	// A block that will not be kept, because there is no cache or it is a view into a
+	// mapped file, is searched right where it was read instead of being made a Block
+	private DataItem getFromBlock(DataItem key, IndexData indexPair) throws IOException {
+		long startOffset = indexPair.getOffset();
+		long limitOffset = startOffset + indexPair.getByteCount();
+		BlockCache<Block> cache = blockCache;
+		Block block = (cache == null) ? null : cache.get(id, startOffset);
+
+		if (block != null) {
+			return block.get(key);
+		}
+
+		ByteBuffer data = (cache == null) ? fileAccess.readSharedBlock(startOffset, limitOffset)
+				: fileAccess.readBlock(startOffset, limitOffset);
+		int plainLength = plainBlockLength(data);
+		if (plainLength >= 0 && (cache == null || data.isDirect())) {
+			return Block.find(data, plainLength, key);
+		}
+
+		block = decodeBlock(data);
+		if (cache != null && !block.isMapped()) {
+			cache.put(id, startOffset, block, block.getWeight());
+		}
+		return block.get(key);
+	}
+
+	// Length of the block data when it is stored uncompressed, -1 otherwise
+	private int plainBlockLength(ByteBuffer data) {
+		if (formatVersion == FORMAT_V2) {
+			return data.limit();
+		}
+
+		int trailerPosition = data.limit() - BLOCK_TRAILER_SIZE;
+		return (data.get(trailerPosition + 4) == Compression.NONE.getId()) ? trailerPosition : -1;
+	}
+
+	// Looks up the sorted keys in [from, to) that have no result yet. Keys that
+	// fall in the same index block are answered from one block read.
+	void get(List<DataItem> sortedKeys, int from, int to, DataItem[] results) throws IOException {
+		int i = from;
+
+		while (i < to) {
+			DataItem key = sortedKeys.get(i);
+			if (results[i] != null || !bloomFilter.contains(key.getData())) {
+				i++;
+				continue;
+			}
+
+			int position = binarySearchPosition(key);
+			if (position < 0) {
+				i++;
+				continue;
+			}
+
+			DataItem nextBlockKey = (position + 1 < indexes.length) ? indexes[position + 1].getKey() : null;
+			int blockEnd = i + 1;
+			while (blockEnd < to && (nextBlockKey == null || sortedKeys.get(blockEnd).compareTo(nextBlockKey) < 0)) {
+				blockEnd++;
+			}
+
+			IndexData indexPair = indexes[position];
+			long startOffset = indexPair.getOffset();
+			long limitOffset = startOffset + indexPair.getByteCount();
+			Block block = loadBlock(indexPair);
 
-			if (blockCache.containsKey(indexPair.getKey())) {
-				for (Pair<DataItem, DataItem> pair : blockCache.get(indexPair.getKey())) {
-					if (pair.getLeft().equals(key)) {
-						return pair.getRight();
-					}
+			for (int j = i; j < blockEnd; j++) {
+				DataItem other = sortedKeys.get(j);
+				if (results[j] != null || !bloomFilter.contains(other.getData())) {
+					continue;
 				}
-				return null;
-			} else {
-				Pair<DataItem, List<Pair<DataItem, DataItem>>> pair = fileAccess.getValueAndLoadBlock(key,
-						indexPair.getOffset(), indexPair.getOffset() + indexPair.getByteCount());
+				// Mapped v1 files hand out no blocks, each key is read in place
+				results[j] = (block == null) ? fileAccess.getValue(other, startOffset, limitOffset) : block.get(other);
+			}
+			i = blockEnd;
+		}
 
-				if (!pair.getRight().isEmpty()) {
-					blockCache.put(indexPair.getKey(), pair.getRight());
+		if (!rangeTombstones.isEmpty()) {
+			for (int j = from; j < to; j++) {
+				if (results[j] == null && isDeletedByRange(sortedKeys.get(j))) {
+					results[j] = TOMBSTONE_VALUE;
 				}
-				return pair.getLeft();
 			}
 		}
+	}
+
+	// Null when a v1 block cannot be loaded as a whole, see getValueAndLoadBlock
+	private Block loadBlock(IndexData indexPair) throws IOException {
+		long startOffset = indexPair.getOffset();
+		long limitOffset = startOffset + indexPair.getByteCount();
+		BlockCache<Block> cache = blockCache;
+		Block block = (cache == null) ? null : cache.get(id, startOffset);
 
-		return null;
+		if (block != null) {
+			return block;
+		}
+
+		boolean cacheable;
+		if (formatVersion == FORMAT_V1) {
+			List<Pair<DataItem, DataItem>> entries = fileAccess
+					.getValueAndLoadBlock(indexPair.getKey(), startOffset, limitOffset).getRight();
+			if (entries.isEmpty()) {
+				return null;
+			}
+			block = Block.fromEntries(entries);
+			cacheable = true;
+		} else {
+			block = decodeBlock(fileAccess.readBlock(startOffset, limitOffset));
+			// A view into a mapped file costs no heap, the page cache already holds it.
+			// Decompressed blocks are cached, so hot reads do not decompress again.
+			cacheable = !block.isMapped();
+		}
+
+		if (cache != null && cacheable) {
+			cache.put(id, startOffset, block, block.getWeight());
+		}
+		return block;
 	}
 
 	private void initializeFileAccess(FileAccessChoice fileAccessChoice) throws IOException {
 		if (fileAccessChoice == FileAccessChoice.SIMPLE) {
 			fileAccess = new SimpleAccess(sstableFile);
 		} else if (fileAccessChoice == FileAccessChoice.MEM_MAP) {
-			fileAccess = new SimpleMappedByteBufferAccess(sstableFile);
+			fileAccess = new SegmentedMappedAccess(sstableFile);
+		} else if (fileAccessChoice == FileAccessChoice.CHANNEL) {
+			fileAccess = new ChannelAccess(sstableFile);
 		}
 	}
 }
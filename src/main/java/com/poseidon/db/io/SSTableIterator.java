@@ -0,0 +1,112 @@
+package com.poseidon.db.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+
+// Streams every record of an sstable in key order through its own file handle,
+// so a scan never moves the file pointer used by point lookups. A v1 table is read
+// record by record between two positions, a v2 table block by block along its index.
+public class SSTableIterator implements Iterator<KeyValuePair>, Closeable {
+
+	static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private DataInputStream in;
+	private long position;
+	private long limitPosition;
+	private SSTable sstable;
+	private SSTable.IndexData[] blocks;
+	private int nextBlock;
+	private Iterator<KeyValuePair> currentBlock;
+
+	public SSTableIterator(String sstableFilePath, long startPosition, long limitPosition) throws IOException {
+		this(sstableFilePath, startPosition, limitPosition, READ_BUFFER_SIZE);
+	}
+
+	// Records are read strictly in file order, so a bigger buffer reads further ahead
+	public SSTableIterator(String sstableFilePath, long startPosition, long limitPosition, int readBufferSize)
+			throws IOException {
+		FileInputStream fileIn = new FileInputStream(sstableFilePath);
+		fileIn.getChannel().position(startPosition);
+
+		this.in = new DataInputStream(new BufferedInputStream(fileIn, readBufferSize));
+		this.position = startPosition;
+		this.limitPosition = limitPosition;
+	}
+
+	// Blocks are laid out back to back, so they are read one after the other
+	SSTableIterator(SSTable sstable, int firstBlock, int readBufferSize) throws IOException {
+		this(sstable.getSSTableFilePath(), sstable.getIndexes()[firstBlock].getOffset(), Long.MAX_VALUE,
+				readBufferSize);
+		this.sstable = sstable;
+		this.blocks = sstable.getIndexes();
+		this.nextBlock = firstBlock;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (blocks == null) {
+			return position < limitPosition;
+		}
+
+		while (currentBlock == null || !currentBlock.hasNext()) {
+			if (nextBlock == blocks.length) {
+				return false;
+			}
+			currentBlock = readBlock(blocks[nextBlock++]).iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public KeyValuePair next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (blocks != null) {
+			return currentBlock.next();
+		}
+
+		try {
+			int recordLength = in.readInt();
+			int keyLength = in.readInt();
+
+			byte[] keyData = new byte[keyLength];
+			byte[] valueData = new byte[recordLength - keyLength];
+			in.readFully(keyData);
+			in.readFully(valueData);
+
+			position += 4 + 4 + recordLength;
+			return new KeyValuePair(new DataItem(keyData), new DataItem(valueData));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Block readBlock(SSTable.IndexData indexData) {
+		try {
+			byte[] data = new byte[indexData.getByteCount()];
+			in.readFully(data);
+			return sstable.decodeBlock(ByteBuffer.wrap(data));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// Best effort, the iterator is not used anymore
+		}
+	}
+}
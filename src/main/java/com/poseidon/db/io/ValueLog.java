@@ -0,0 +1,297 @@
+package com.poseidon.db.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+import com.poseidon.db.representation.DataItem;
+
+// Append-only files that hold large values away from the memtables and sstables,
+// which only keep a small pointer to them, so flushes and compactions do not copy
+// the values around. A value is never changed in place; space taken by values that
+// were overwritten or deleted comes back when the garbage collector moves the live
+// values out of a file and drops it. The manifest lists a file before it is created
+// and drops it before it is deleted, and startup opens the files it lists.
+//
+// Record:  [keyLength int][valueLength int][key][value]
+// Pointer: [POINTER_MARKER][fileNumber long][value offset long][valueLength int]
+public class ValueLog {
+
+	private final static Logger logger = Logger.getLogger(ValueLog.class);
+	public static final String VALUE_LOG_FILENAME_PREFIX = "vlog-";
+	public static final long DEFAULT_FILE_SIZE = 64L * 1024 * 1024;
+	public static final byte POINTER_MARKER = (byte) 0xFE;
+	public static final int POINTER_SIZE = 1 + 8 + 8 + 4;
+	private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+	// Where a value sits, as read back from a file by the garbage collector
+	public static class Record {
+		private final DataItem key;
+		private final byte[] pointer;
+		private final int valueLength;
+
+		Record(DataItem key, byte[] pointer, int valueLength) {
+			this.key = key;
+			this.pointer = pointer;
+			this.valueLength = valueLength;
+		}
+
+		public DataItem getKey() {
+			return key;
+		}
+
+		public byte[] getPointer() {
+			return pointer;
+		}
+
+		public int getValueLength() {
+			return valueLength;
+		}
+	}
+
+	private final String dataDir;
+	private final Manifest manifest;
+	private final long maxFileSize;
+	private final Map<Long, FileChannel> files = new ConcurrentSkipListMap<Long, FileChannel>();
+	private RandomAccessFile activeFile;
+	private long activeFileNumber;
+	private long activeFileSize;
+	private long nextFileNumber;
+
+	private AtomicLong appendedBytes = new AtomicLong(0);
+	private long syncedBytes;
+	private AtomicLong reclaimedBytes = new AtomicLong(0);
+
+	public static ValueLog open(Manifest manifest, long maxFileSize) throws IOException {
+		return new ValueLog(manifest, maxFileSize);
+	}
+
+	public static boolean isValueLogFileName(String name) {
+		return name.startsWith(VALUE_LOG_FILENAME_PREFIX);
+	}
+
+	private ValueLog(Manifest manifest, long maxFileSize) throws IOException {
+		this.dataDir = manifest.getDataDir();
+		this.manifest = manifest;
+		this.maxFileSize = maxFileSize;
+
+		for (File file : manifest.getValueLogFiles()) {
+			long fileNumber = Long.parseLong(file.getName().substring(VALUE_LOG_FILENAME_PREFIX.length()));
+			nextFileNumber = Math.max(nextFileNumber, fileNumber + 1);
+			// Listed right before a crash that came ahead of the file
+			if (!file.exists()) {
+				logger.warn("Value log file listed in the manifest does not exist - " + file.getAbsolutePath());
+				continue;
+			}
+			files.put(fileNumber, new RandomAccessFile(file, "r").getChannel());
+		}
+		// A file left from the last run may end in a torn record, new values go to a new one
+		activeFileNumber = -1;
+	}
+
+	public static boolean isPointer(byte[] value) {
+		return value.length == POINTER_SIZE && value[0] == POINTER_MARKER;
+	}
+
+	// Returns the pointer to keep in place of the value
+	public synchronized byte[] append(byte[] key, byte[] value) throws IOException {
+		if (activeFile == null || activeFileSize >= maxFileSize) {
+			rollFile();
+		}
+
+		long recordOffset = activeFileSize;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + key.length + value.length);
+		record.putInt(key.length);
+		record.putInt(value.length);
+		record.put(key);
+		record.put(value);
+		record.flip();
+
+		FileChannel channel = activeFile.getChannel();
+		long position = recordOffset;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+
+		activeFileSize = position;
+		appendedBytes.addAndGet(record.limit());
+		return pointer(activeFileNumber, recordOffset + RECORD_HEADER_SIZE + key.length, value.length);
+	}
+
+	// Null when the file was dropped by the garbage collector after the pointer was read,
+	// the caller should look the key up again
+	public byte[] read(byte[] pointer) throws IOException {
+		ByteBuffer decoded = ByteBuffer.wrap(pointer, 1, POINTER_SIZE - 1);
+		long fileNumber = decoded.getLong();
+		long offset = decoded.getLong();
+		int length = decoded.getInt();
+
+		FileChannel channel = files.get(fileNumber);
+		if (channel == null) {
+			return null;
+		}
+
+		ByteBuffer value = ByteBuffer.allocate(length);
+		try {
+			while (value.hasRemaining()) {
+				if (channel.read(value, offset + value.position()) < 0) {
+					throw new IOException("Value log " + fileNumber + " ends before offset " + offset + "+" + length);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			return null;
+		}
+		return value.array();
+	}
+
+	// Forces what was appended so far, nothing to do when that was already forced
+	public void sync() throws IOException {
+		RandomAccessFile file;
+		long target;
+		synchronized (this) {
+			file = activeFile;
+			target = appendedBytes.get();
+			if (file == null || target == syncedBytes) {
+				return;
+			}
+		}
+
+		try {
+			file.getChannel().force(false);
+		} catch (ClosedChannelException e) {
+			// Rolled over in the meantime, which forced the file before closing it
+		}
+		synchronized (this) {
+			syncedBytes = Math.max(syncedBytes, target);
+		}
+	}
+
+	// Files that no longer take new values, oldest first
+	public synchronized List<Long> getSealedFileNumbers() {
+		List<Long> sealed = new ArrayList<Long>();
+		for (Long fileNumber : files.keySet()) {
+			if (fileNumber != activeFileNumber) {
+				sealed.add(fileNumber);
+			}
+		}
+		return sealed;
+	}
+
+	// Stops at a torn record at the end of the file
+	public List<Record> readRecords(long fileNumber) throws IOException {
+		FileChannel channel = files.get(fileNumber);
+		List<Record> records = new ArrayList<Record>();
+		if (channel == null) {
+			return records;
+		}
+
+		long fileLength = channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+		while (position + RECORD_HEADER_SIZE <= fileLength) {
+			header.clear();
+			channel.read(header, position);
+			int keyLength = header.getInt(0);
+			int valueLength = header.getInt(4);
+
+			long valueOffset = position + RECORD_HEADER_SIZE + keyLength;
+			if (keyLength < 0 || valueLength < 0 || valueOffset + valueLength > fileLength) {
+				logger.warn("Value log " + fileNumber + " ends in a torn record at " + position);
+				break;
+			}
+
+			ByteBuffer key = ByteBuffer.allocate(keyLength);
+			channel.read(key, position + RECORD_HEADER_SIZE);
+			records.add(new Record(new DataItem(key.array()), pointer(fileNumber, valueOffset, valueLength),
+					valueLength));
+			position = valueOffset + valueLength;
+		}
+		return records;
+	}
+
+	public long getFileSize(long fileNumber) throws IOException {
+		FileChannel channel = files.get(fileNumber);
+		return (channel == null) ? 0 : channel.size();
+	}
+
+	// Out of the manifest first, a crash before the delete leaves a file startup removes
+	public void deleteFile(long fileNumber) throws IOException {
+		if (!files.containsKey(fileNumber)) {
+			return;
+		}
+		manifest.removeValueLog(fileName(fileNumber));
+
+		FileChannel channel = files.remove(fileNumber);
+		if (channel != null) {
+			reclaimedBytes.addAndGet(channel.size());
+			channel.close();
+			new File(fileName(fileNumber)).delete();
+		}
+	}
+
+	public int getFileCount() {
+		return files.size();
+	}
+
+	public long getAppendedBytes() {
+		return appendedBytes.get();
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	public synchronized void close() {
+		for (FileChannel channel : files.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.warn("Cannot close value log file - " + e.getMessage());
+			}
+		}
+		if (activeFile != null) {
+			try {
+				activeFile.close();
+			} catch (IOException e) {
+				logger.warn("Cannot close value log file - " + fileName(activeFileNumber));
+			}
+		}
+	}
+
+	private void rollFile() throws IOException {
+		long fileNumber = nextFileNumber++;
+		manifest.addValueLog(fileName(fileNumber));
+
+		if (activeFile != null) {
+			activeFile.getChannel().force(false);
+			activeFile.close();
+		}
+
+		activeFileNumber = fileNumber;
+		activeFileSize = 0;
+		activeFile = new RandomAccessFile(fileName(activeFileNumber), "rw");
+		files.put(activeFileNumber, new RandomAccessFile(fileName(activeFileNumber), "r").getChannel());
+	}
+
+	private String fileName(long fileNumber) {
+		return dataDir + File.separator + VALUE_LOG_FILENAME_PREFIX + String.format("%010d", fileNumber);
+	}
+
+	private static byte[] pointer(long fileNumber, long offset, int length) {
+		ByteBuffer pointer = ByteBuffer.allocate(POINTER_SIZE);
+		pointer.put(POINTER_MARKER);
+		pointer.putLong(fileNumber);
+		pointer.putLong(offset);
+		pointer.putInt(length);
+		return pointer.array();
+	}
+}
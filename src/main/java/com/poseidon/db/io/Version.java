@@ -0,0 +1,191 @@
+package com.poseidon.db.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import com.poseidon.db.representation.DataItem;
+
+// An immutable snapshot of the sstables of one store. Readers take a reference
+// on the version they look at, and the tables of a version stay open until the
+// last reference to it is released.
+public class Version {
+
+	private final static Logger logger = Logger.getLogger(Version.class);
+
+	private final SSTable[] level0NewestFirst;
+	// Index 0 is unused, deeper levels are sorted by first key and never overlap
+	private final SSTable[][] levels;
+	private final AtomicInteger refCount;
+
+	Version(List<SSTable> level0OldestFirst, List<List<SSTable>> deeperLevels) {
+		level0NewestFirst = new SSTable[level0OldestFirst.size()];
+		for (int i = 0; i < level0NewestFirst.length; i++) {
+			level0NewestFirst[i] = level0OldestFirst.get(level0OldestFirst.size() - 1 - i);
+		}
+
+		levels = new SSTable[SSTable.MAX_LEVELS][];
+		levels[0] = new SSTable[0];
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			List<SSTable> tables = new ArrayList<SSTable>(deeperLevels.get(level));
+			Collections.sort(tables, (a, b) -> a.getFirstKey().compareTo(b.getFirstKey()));
+			levels[level] = tables.toArray(new SSTable[tables.size()]);
+		}
+
+		// The version set owns the first reference
+		refCount = new AtomicInteger(1);
+		for (SSTable sstable : getAllSSTables()) {
+			sstable.ref();
+		}
+	}
+
+	static Version empty() {
+		List<List<SSTable>> deeperLevels = new ArrayList<List<SSTable>>();
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			deeperLevels.add(new ArrayList<SSTable>());
+		}
+		return new Version(new ArrayList<SSTable>(), deeperLevels);
+	}
+
+	DataItem find(DataItem key, VersionSet.LookupStats stats) {
+		stats.recordLookup();
+
+		for (SSTable sstable : level0NewestFirst) {
+			stats.recordProbe(0);
+			DataItem valueDt = get(sstable, key);
+			if (valueDt != null) {
+				return valueDt;
+			}
+		}
+
+		// At most one table per level can hold the key
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			SSTable sstable = floor(levels[level], key);
+			if (sstable != null && sstable.getLastKey().compareTo(key) >= 0) {
+				stats.recordProbe(level);
+				DataItem valueDt = get(sstable, key);
+				if (valueDt != null) {
+					return valueDt;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	// Fills in the results of the sorted keys that are still unresolved
+	void find(List<DataItem> sortedKeys, DataItem[] results, VersionSet.LookupStats stats) {
+		int n = sortedKeys.size();
+		for (int i = 0; i < n; i++) {
+			stats.recordLookup();
+		}
+
+		for (SSTable sstable : level0NewestFirst) {
+			stats.recordProbe(0);
+			get(sstable, sortedKeys, 0, n, results);
+		}
+
+		// Tables of a level are sorted and disjoint, so the keys split into runs. The
+		// end of a range tombstone counts as the last key of its table without being
+		// covered, so a run may share that one key with the next table's.
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			int start = 0;
+			for (SSTable sstable : levels[level]) {
+				while (start < n && sortedKeys.get(start).compareTo(sstable.getFirstKey()) < 0) {
+					start++;
+				}
+				int end = start;
+				while (end < n && sortedKeys.get(end).compareTo(sstable.getLastKey()) <= 0) {
+					end++;
+				}
+				if (end > start) {
+					stats.recordProbe(level);
+					get(sstable, sortedKeys, start, end, results);
+				}
+			}
+		}
+	}
+
+	public List<SSTable> getSSTablesAtLevel(int level) {
+		if (level > 0) {
+			return Arrays.asList(levels[level]);
+		}
+
+		List<SSTable> results = new ArrayList<SSTable>(Arrays.asList(level0NewestFirst));
+		Collections.reverse(results);
+		return results;
+	}
+
+	public List<SSTable> getAllSSTables() {
+		List<SSTable> results = getSSTablesAtLevel(0);
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			results.addAll(Arrays.asList(levels[level]));
+		}
+		return results;
+	}
+
+	public int numberOfSSTables() {
+		int count = level0NewestFirst.length;
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			count += levels[level].length;
+		}
+		return count;
+	}
+
+	boolean tryRef() {
+		while (true) {
+			int count = refCount.get();
+			if (count == 0) {
+				// Already retired, the caller has to pick up the newer version
+				return false;
+			}
+			if (refCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void unref() {
+		if (refCount.decrementAndGet() == 0) {
+			for (SSTable sstable : getAllSSTables()) {
+				sstable.unref();
+			}
+		}
+	}
+
+	private static DataItem get(SSTable sstable, DataItem key) {
+		try {
+			return sstable.get(key);
+		} catch (IOException e) {
+			logger.error("Cannot find inside sstable file - " + sstable.getSSTableFilePath());
+			return null;
+		}
+	}
+
+	private static void get(SSTable sstable, List<DataItem> sortedKeys, int from, int to, DataItem[] results) {
+		try {
+			sstable.get(sortedKeys, from, to, results);
+		} catch (IOException e) {
+			logger.error("Cannot find inside sstable file - " + sstable.getSSTableFilePath());
+		}
+	}
+
+	private static SSTable floor(SSTable[] tables, DataItem key) {
+		int start = 0;
+		int end = tables.length - 1;
+
+		while (start <= end) {
+			int mid = start + ((end - start) / 2);
+			if (tables[mid].getFirstKey().compareTo(key) <= 0) {
+				start = mid + 1;
+			} else {
+				end = mid - 1;
+			}
+		}
+
+		return (end >= 0) ? tables[end] : null;
+	}
+}
@@ -0,0 +1,285 @@
+package com.poseidon.db.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+import org.apache.log4j.Logger;
+import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.utils.BlockCache;
+
+// Holds the current version of one store. Readers pick it up with a volatile
+// read and a reference count bump, never taking a lock. Flushes and compactions
+// build a new version and swap it in; tables they retire are deleted once the
+// last version holding them is released.
+public class VersionSet {
+
+	private final static Logger logger = Logger.getLogger(VersionSet.class);
+
+	static class LookupStats {
+		private AtomicLong lookups = new AtomicLong(0);
+		private AtomicLongArray probes = new AtomicLongArray(SSTable.MAX_LEVELS);
+
+		void recordLookup() {
+			lookups.incrementAndGet();
+		}
+
+		void recordProbe(int level) {
+			probes.incrementAndGet(level);
+		}
+	}
+
+	private volatile Version current;
+	private LookupStats stats;
+	private BlockCache<Block> blockCache;
+	private Manifest manifest;
+	private boolean closed;
+
+	public VersionSet() {
+		this(null);
+	}
+
+	// Every table that joins this set shares the given cache, null turns caching off
+	public VersionSet(BlockCache<Block> blockCache) {
+		this.blockCache = blockCache;
+		current = Version.empty();
+		stats = new LookupStats();
+	}
+
+	// Edits are written to the manifest before they are installed from now on
+	public synchronized void setManifest(Manifest manifest) {
+		this.manifest = manifest;
+	}
+
+	// Exactly the tables the manifest holds, level 0 in the order it was in
+	public void loadSSTables(Manifest manifest, FileAccessChoice fileAccessChoice) {
+		List<SSTable> added = new ArrayList<SSTable>();
+		for (Manifest.TableEntry entry : manifest.getSSTables()) {
+			File file = new File(manifest.getDataDir(), entry.getName());
+			try {
+				if (!file.exists() && entry.getRenamedFrom() != null) {
+					Files.move(Paths.get(manifest.getDataDir(), entry.getRenamedFrom()), file.toPath(),
+							StandardCopyOption.ATOMIC_MOVE);
+				}
+				// Opening creates a missing file, which would then read as an empty table
+				if (!file.exists()) {
+					throw new FileNotFoundException(file.getAbsolutePath());
+				}
+
+				SSTable sstable = SSTable.openSSTable(file.getAbsolutePath(), fileAccessChoice);
+				if (sstable.numberOfItems() != entry.getItemCount()) {
+					logger.warn("Sstable file holds " + sstable.numberOfItems() + " items, the manifest says "
+							+ entry.getItemCount() + " - " + file.getAbsolutePath());
+				}
+				added.add(sstable);
+			} catch (IOException e) {
+				// Going on without it would drop it from the next manifest snapshot for good
+				for (SSTable sstable : added) {
+					sstable.closeSSTableFile();
+				}
+				throw new RuntimeException("Cannot load sstable file listed in the manifest - "
+						+ file.getAbsolutePath(), e);
+			}
+		}
+
+		replaceSSTables(Collections.<SSTable> emptyList(), added);
+	}
+
+	// Level 0 tables are loaded in name order, which is the order they were created in
+	// unless two of them were named in the same second
+	public void loadSSTables(File[] sstableFiles, FileAccessChoice fileAccessChoice) {
+		File[] sortedFiles = sstableFiles.clone();
+		Arrays.sort(sortedFiles);
+
+		List<SSTable> added = new ArrayList<SSTable>();
+		for (File s : sortedFiles) {
+			try {
+				added.add(SSTable.openSSTable(s.getAbsolutePath(), fileAccessChoice));
+			} catch (IOException e) {
+				logger.error("Cannot load existing sstable file - " + s.getAbsolutePath());
+			}
+		}
+
+		replaceSSTables(Collections.<SSTable> emptyList(), added);
+	}
+
+	public Version acquire() {
+		while (true) {
+			Version version = current;
+			if (version.tryRef()) {
+				return version;
+			}
+		}
+	}
+
+	public void release(Version version) {
+		version.unref();
+	}
+
+	public Version getCurrent() {
+		return current;
+	}
+
+	public DataItem find(DataItem key) {
+		Version version = acquire();
+		try {
+			return version.find(key, stats);
+		} finally {
+			release(version);
+		}
+	}
+
+	// The keys must be sorted, the results line up with them and hold null for misses
+	public DataItem[] find(List<DataItem> sortedKeys) {
+		DataItem[] results = new DataItem[sortedKeys.size()];
+		Version version = acquire();
+		try {
+			version.find(sortedKeys, results, stats);
+		} finally {
+			release(version);
+		}
+		return results;
+	}
+
+	public List<SSTable> getSSTablesAtLevel(int level) {
+		return current.getSSTablesAtLevel(level);
+	}
+
+	public void addSSTable(SSTable sstable) {
+		replaceSSTables(Collections.<SSTable> emptyList(), Collections.singletonList(sstable));
+	}
+
+	// New level 0 tables take the place of the newest removed level 0 table, or
+	// go on top when nothing was removed from level 0
+	public synchronized void replaceSSTables(List<SSTable> removed, List<SSTable> added) {
+		if (closed) {
+			throw new IllegalStateException("Version set is already closed");
+		}
+
+		Map<SSTable, Boolean> removedSet = new IdentityHashMap<SSTable, Boolean>();
+		for (SSTable sstable : removed) {
+			removedSet.put(sstable, Boolean.TRUE);
+		}
+
+		List<SSTable> addedLevel0 = new ArrayList<SSTable>();
+		List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			levels.add(new ArrayList<SSTable>());
+		}
+		for (SSTable sstable : added) {
+			sstable.setBlockCache(blockCache);
+			if (sstable.getLevel() == 0) {
+				addedLevel0.add(sstable);
+			} else {
+				levels.get(sstable.getLevel()).add(sstable);
+			}
+		}
+
+		List<SSTable> level0 = placeLevel0(current.getSSTablesAtLevel(0), (sstable) -> removedSet.containsKey(sstable),
+				addedLevel0);
+
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			for (SSTable sstable : current.getSSTablesAtLevel(level)) {
+				if (!removedSet.containsKey(sstable)) {
+					levels.get(level).add(sstable);
+				}
+			}
+		}
+
+		if (manifest != null) {
+			try {
+				manifest.logEdit(removed, added);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write version edit to manifest in " + manifest.getDataDir(), e);
+			}
+		}
+
+		for (SSTable sstable : removed) {
+			sstable.markObsolete();
+		}
+		install(new Version(level0, levels));
+	}
+
+	// Level 0 oldest first once the removed tables are gone and the added ones are in
+	// place. The manifest places tables the same way when it is replayed.
+	static <T> List<T> placeLevel0(List<T> oldLevel0, Predicate<T> removed, List<T> addedLevel0) {
+		int insertAt = -1;
+		for (int i = 0; i < oldLevel0.size(); i++) {
+			if (removed.test(oldLevel0.get(i))) {
+				insertAt = i;
+			}
+		}
+
+		List<T> level0 = new ArrayList<T>();
+		for (int i = 0; i < oldLevel0.size(); i++) {
+			if (!removed.test(oldLevel0.get(i))) {
+				level0.add(oldLevel0.get(i));
+			}
+			if (i == insertAt) {
+				level0.addAll(addedLevel0);
+			}
+		}
+		if (insertAt < 0) {
+			level0.addAll(addedLevel0);
+		}
+		return level0;
+	}
+
+	// A table that shares no keys with the next level can move down without a merge
+	public synchronized void moveToLevel(SSTable sstable, int level) throws IOException {
+		String newSSTableFilePath = new File(sstable.getSSTableFilePath()).getParent() + File.separator
+				+ SSTable.getSSTableFileName(level);
+
+		List<List<SSTable>> levels = new ArrayList<List<SSTable>>();
+		for (int l = 0; l < SSTable.MAX_LEVELS; l++) {
+			List<SSTable> tables = new ArrayList<SSTable>(current.getSSTablesAtLevel(l));
+			tables.remove(sstable);
+			levels.add(tables);
+		}
+
+		if (manifest != null) {
+			manifest.logMove(sstable, newSSTableFilePath, level);
+		}
+		sstable.renameTo(newSSTableFilePath);
+		levels.get(level).add(sstable);
+		install(new Version(levels.get(0), levels));
+	}
+
+	public synchronized void close() {
+		if (!closed) {
+			// Readers arriving late find nothing rather than closed files
+			closed = true;
+			install(Version.empty());
+		}
+	}
+
+	public BlockCache<Block> getBlockCache() {
+		return blockCache;
+	}
+
+	public long getLookupCount() {
+		return stats.lookups.get();
+	}
+
+	public long getProbeCount(int level) {
+		return stats.probes.get(level);
+	}
+
+	private void install(Version version) {
+		Version old = current;
+		current = version;
+		old.unref();
+	}
+}
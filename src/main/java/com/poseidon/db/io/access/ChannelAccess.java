@@ -0,0 +1,137 @@
+package com.poseidon.db.io.access;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.utils.Pair;
+
+// Reads a whole index block with one positional read and decodes it in memory.
+// Positional reads leave the shared file pointer alone, so any number of threads
+// can read from the same sstable at once.
+public class ChannelAccess implements FileAccess {
+
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> blockBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	};
+
+	private FileChannel channel;
+
+	public ChannelAccess(RandomAccessFile sstableFile) {
+		this.channel = sstableFile.getChannel();
+	}
+
+	@Override
+	public DataItem getValue(DataItem key, long startOffset, long limitOffset) throws IOException {
+		ByteBuffer block = readSharedBlock(startOffset, limitOffset);
+
+		while (block.hasRemaining()) {
+			int recordLength = block.getInt();
+			int keyLength = block.getInt();
+			int cmp = compareKey(block, keyLength, key);
+
+			if (cmp == 0) {
+				block.position(block.position() + keyLength);
+				return new DataItem(copy(block, recordLength - keyLength));
+			} else if (cmp > 0) {
+				break;
+			}
+			block.position(block.position() + recordLength);
+		}
+
+		return null;
+	}
+
+	@Override
+	public Pair<DataItem, List<Pair<DataItem, DataItem>>> getValueAndLoadBlock(DataItem key, long startOffset,
+			long limitOffset) throws IOException {
+
+		DataItem found = null;
+		List<Pair<DataItem, DataItem>> block = new ArrayList<Pair<DataItem, DataItem>>();
+		ByteBuffer blockData = readSharedBlock(startOffset, limitOffset);
+
+		while (blockData.hasRemaining()) {
+			int recordLength = blockData.getInt();
+			int keyLength = blockData.getInt();
+
+			DataItem keyDt = new DataItem(copy(blockData, keyLength));
+			DataItem valueDt = new DataItem(copy(blockData, recordLength - keyLength));
+
+			block.add(new Pair<DataItem, DataItem>(keyDt, valueDt));
+
+			if (keyDt.equals(key)) {
+				found = valueDt;
+			}
+		}
+
+		return new Pair<DataItem, List<Pair<DataItem, DataItem>>>(found, block);
+	}
+
+	// The block may end up in the cache, so it gets a buffer of its own
+	@Override
+	public ByteBuffer readBlock(long startOffset, long limitOffset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) (limitOffset - startOffset));
+		readFully(buffer, startOffset);
+		return buffer;
+	}
+
+	@Override
+	public ByteBuffer readSharedBlock(long startOffset, long limitOffset) throws IOException {
+		int length = (int) (limitOffset - startOffset);
+		ByteBuffer buffer = blockBuffers.get();
+
+		if (buffer.capacity() < length) {
+			buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+			blockBuffers.set(buffer);
+		}
+
+		buffer.clear();
+		buffer.limit(length);
+		return readFully(buffer, startOffset);
+	}
+
+	private ByteBuffer readFully(ByteBuffer buffer, long startOffset) throws IOException {
+		long position = startOffset;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("Block at " + startOffset + " runs past the end of the file");
+			}
+			position += read;
+		}
+
+		buffer.flip();
+		return buffer;
+	}
+
+	// Compares the key at the buffer position without moving it or copying the bytes
+	private static int compareKey(ByteBuffer block, int keyLength, DataItem key) {
+		byte[] target = key.getData();
+		int base = block.arrayOffset() + block.position();
+		byte[] data = block.array();
+		int n = Math.min(keyLength, target.length);
+
+		for (int i = 0; i < n; i++) {
+			int cmp = Byte.compare(data[base + i], target[i]);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return keyLength - target.length;
+	}
+
+	private static byte[] copy(ByteBuffer block, int length) {
+		byte[] data = new byte[length];
+		block.get(data);
+		return data;
+	}
+}
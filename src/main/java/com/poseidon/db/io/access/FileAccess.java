@@ -1,6 +1,7 @@
 package com.poseidon.db.io.access;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import com.poseidon.db.representation.DataItem;
 import com.poseidon.db.utils.Pair;
@@ -10,4 +11,12 @@ public interface FileAccess {
 
 	public Pair<DataItem, List<Pair<DataItem, DataItem>>> getValueAndLoadBlock(DataItem key, long startOffset,
 			long limitOffset) throws IOException;
+
+	// Raw bytes of [startOffset, limitOffset), positioned at 0. Used by the v2 format,
+	// the two methods above only understand v1 records.
+	public ByteBuffer readBlock(long startOffset, long limitOffset) throws IOException;
+
+	// Same as readBlock, but the buffer belongs to the calling thread and its next
+	// shared read overwrites it, so nothing may hold on to it
+	public ByteBuffer readSharedBlock(long startOffset, long limitOffset) throws IOException;
 }
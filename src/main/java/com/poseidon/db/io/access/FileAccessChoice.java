@@ -1,5 +1,5 @@
 package com.poseidon.db.io.access;
 
 public enum FileAccessChoice {
-	SIMPLE, MEM_MAP
+	SIMPLE, MEM_MAP, CHANNEL
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package com.poseidon.db.io.access;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.utils.Pair;
+
+// Maps an sstable read-only as a series of fixed size segments, so files are not
+// limited to the 2 GB a single mapping can cover. Every read uses absolute
+// indexes and never moves a buffer position, which keeps it safe for any number
+// of reader threads. A record may straddle two segments.
+public class SegmentedMappedAccess implements FileAccess {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+	private MappedByteBuffer[] segments;
+	private int segmentShift;
+	private long segmentMask;
+
+	public SegmentedMappedAccess(RandomAccessFile sstableFile) throws IOException {
+		this(sstableFile, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public SegmentedMappedAccess(RandomAccessFile sstableFile, int segmentSize) throws IOException {
+		if (Integer.bitCount(segmentSize) != 1) {
+			throw new IllegalArgumentException("Segment size must be a power of two - " + segmentSize);
+		}
+
+		segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+		segmentMask = segmentSize - 1;
+
+		FileChannel channel = sstableFile.getChannel();
+		long fileLength = sstableFile.length();
+		int segmentCount = (int) ((fileLength + segmentSize - 1) >>> segmentShift);
+
+		segments = new MappedByteBuffer[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			long start = (long) i << segmentShift;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, fileLength - start));
+		}
+	}
+
+	@Override
+	public DataItem getValue(DataItem key, long startOffset, long limitOffset) throws IOException {
+		long position = startOffset;
+
+		while (position < limitOffset) {
+			int recordLength = getInt(position);
+			int keyLength = getInt(position + 4);
+			long keyPosition = position + 8;
+			int cmp = compareKey(keyPosition, keyLength, key);
+
+			if (cmp == 0) {
+				return new DataItem(copy(keyPosition + keyLength, recordLength - keyLength));
+			} else if (cmp > 0) {
+				break;
+			}
+			position = keyPosition + recordLength;
+		}
+
+		return null;
+	}
+
+	// Blocks are not collected, the page cache already holds them
+	@Override
+	public Pair<DataItem, List<Pair<DataItem, DataItem>>> getValueAndLoadBlock(DataItem key, long startOffset,
+			long limitOffset) throws IOException {
+		return new Pair<DataItem, List<Pair<DataItem, DataItem>>>(getValue(key, startOffset, limitOffset),
+				new ArrayList<Pair<DataItem, DataItem>>());
+	}
+
+	// A view into the mapping when the block sits in one segment, a copy otherwise
+	@Override
+	public ByteBuffer readBlock(long startOffset, long limitOffset) throws IOException {
+		int length = (int) (limitOffset - startOffset);
+		MappedByteBuffer segment = segments[(int) (startOffset >>> segmentShift)];
+		int offset = (int) (startOffset & segmentMask);
+
+		if (offset + length <= segment.limit()) {
+			ByteBuffer view = segment.duplicate();
+			view.position(offset);
+			view.limit(offset + length);
+			return view.slice();
+		}
+		return ByteBuffer.wrap(copy(startOffset, length));
+	}
+
+	// Views are not shared anyway
+	@Override
+	public ByteBuffer readSharedBlock(long startOffset, long limitOffset) throws IOException {
+		return readBlock(startOffset, limitOffset);
+	}
+
+	private byte get(long position) {
+		return segments[(int) (position >>> segmentShift)].get((int) (position & segmentMask));
+	}
+
+	private int getInt(long position) {
+		MappedByteBuffer segment = segments[(int) (position >>> segmentShift)];
+		int offset = (int) (position & segmentMask);
+
+		if (offset + 4 <= segment.limit()) {
+			return segment.getInt(offset);
+		}
+		return (get(position) << 24) | ((get(position + 1) & 0xFF) << 16) | ((get(position + 2) & 0xFF) << 8)
+				| (get(position + 3) & 0xFF);
+	}
+
+	private int compareKey(long position, int keyLength, DataItem key) {
+		byte[] target = key.getData();
+		int n = Math.min(keyLength, target.length);
+		MappedByteBuffer segment = segments[(int) (position >>> segmentShift)];
+		int offset = (int) (position & segmentMask);
+		boolean inOneSegment = offset + n <= segment.limit();
+
+		for (int i = 0; i < n; i++) {
+			byte b = inOneSegment ? segment.get(offset + i) : get(position + i);
+			int cmp = Byte.compare(b, target[i]);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return keyLength - target.length;
+	}
+
+	private byte[] copy(long position, int length) {
+		byte[] data = new byte[length];
+		int copied = 0;
+
+		while (copied < length) {
+			MappedByteBuffer segment = segments[(int) ((position + copied) >>> segmentShift)];
+			int offset = (int) ((position + copied) & segmentMask);
+			int chunk = Math.min(length - copied, segment.limit() - offset);
+
+			// A duplicate has its own position, the shared buffer is left untouched
+			ByteBuffer view = segment.duplicate();
+			view.position(offset);
+			view.get(data, copied, chunk);
+			copied += chunk;
+		}
+		return data;
+	}
+}
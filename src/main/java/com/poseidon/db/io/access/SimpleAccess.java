@@ -2,6 +2,7 @@ package com.poseidon.db.io.access;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import com.poseidon.db.representation.DataItem;
@@ -10,6 +11,29 @@ import com.poseidon.db.utils.Pair;
 
 public class SimpleAccess implements FileAccess {
 
+	private static final int RECORD_HEADER_SIZE = 4 + 4;
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+	// Scanning past records reads into these instead of allocating for every record
+	private static final ThreadLocal<byte[]> headerBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[RECORD_HEADER_SIZE];
+		}
+	};
+	private static final ThreadLocal<byte[]> keyBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[256];
+		}
+	};
+	private static final ThreadLocal<ByteBuffer> blockBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	};
+
 	private RandomAccessFile sstableFile;
 
 	public SimpleAccess(RandomAccessFile sstableFile) {
@@ -18,40 +42,101 @@ public class SimpleAccess implements FileAccess {
 
 	@Override
 	public DataItem getValue(DataItem key, long startOffset, long limitOffset) throws IOException {
-		sstableFile.seek(startOffset);
+		// Seek and read share one file pointer, so readers take turns
+		synchronized (sstableFile) {
+			return getValueLocked(key, startOffset, limitOffset);
+		}
+	}
 
-		while (true) {
-			byte[] bufRecordLength = new byte[4];
-			byte[] bufKeyLength = new byte[4];
+	@Override
+	public Pair<DataItem, List<Pair<DataItem, DataItem>>> getValueAndLoadBlock(DataItem key, long startOffset,
+			long limitOffset) throws IOException {
+		synchronized (sstableFile) {
+			return getValueAndLoadBlockLocked(key, startOffset, limitOffset);
+		}
+	}
 
-			sstableFile.read(bufRecordLength);
-			sstableFile.read(bufKeyLength);
+	@Override
+	public ByteBuffer readBlock(long startOffset, long limitOffset) throws IOException {
+		byte[] block = new byte[(int) (limitOffset - startOffset)];
+		synchronized (sstableFile) {
+			sstableFile.seek(startOffset);
+			sstableFile.readFully(block);
+		}
+		return ByteBuffer.wrap(block);
+	}
 
-			byte[] keyData = new byte[DataConversion.byteArrayToInt(bufKeyLength)];
-			byte[] valueData = new byte[DataConversion.byteArrayToInt(bufRecordLength)
-					- DataConversion.byteArrayToInt(bufKeyLength)];
+	@Override
+	public ByteBuffer readSharedBlock(long startOffset, long limitOffset) throws IOException {
+		int length = (int) (limitOffset - startOffset);
+		ByteBuffer buffer = blockBuffers.get();
 
-			sstableFile.read(keyData);
-			sstableFile.read(valueData);
+		if (buffer.capacity() < length) {
+			buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+			blockBuffers.set(buffer);
+		}
 
-			DataItem keyDt = new DataItem(keyData);
-			DataItem valueDt = new DataItem(valueData);
+		synchronized (sstableFile) {
+			sstableFile.seek(startOffset);
+			sstableFile.readFully(buffer.array(), 0, length);
+		}
+		buffer.clear();
+		buffer.limit(length);
+		return buffer;
+	}
 
-			if (keyDt.equals(key)) {
-				return valueDt;
+	// Keys are read into a buffer of the thread and compared there, values that
+	// are not wanted are skipped over, only the value found is allocated
+	private DataItem getValueLocked(DataItem key, long startOffset, long limitOffset) throws IOException {
+		byte[] header = headerBuffers.get();
+		byte[] target = key.getData();
+		long position = startOffset;
+
+		while (position < limitOffset) {
+			sstableFile.seek(position);
+			sstableFile.readFully(header);
+			int recordLength = readInt(header, 0);
+			int keyLength = readInt(header, 4);
+
+			byte[] keyData = keyBuffers.get();
+			if (keyData.length < keyLength) {
+				keyData = new byte[Math.max(keyLength, keyData.length * 2)];
+				keyBuffers.set(keyData);
 			}
-
-			if (keyDt.compareTo(key) > 0 || sstableFile.getFilePointer() == limitOffset) {
+			sstableFile.readFully(keyData, 0, keyLength);
+
+			int cmp = compareKey(keyData, keyLength, target);
+			if (cmp == 0) {
+				byte[] valueData = new byte[recordLength - keyLength];
+				sstableFile.readFully(valueData);
+				return new DataItem(valueData);
+			} else if (cmp > 0) {
 				break;
 			}
+			position += RECORD_HEADER_SIZE + recordLength;
 		}
 
 		return null;
 	}
 
-	@Override
-	public Pair<DataItem, List<Pair<DataItem, DataItem>>> getValueAndLoadBlock(DataItem key, long startOffset,
-			long limitOffset) throws IOException {
+	private static int readInt(byte[] data, int offset) {
+		return (data[offset] << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+				| (data[offset + 3] & 0xFF);
+	}
+
+	private static int compareKey(byte[] keyData, int keyLength, byte[] target) {
+		int n = Math.min(keyLength, target.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = Byte.compare(keyData[i], target[i]);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return keyLength - target.length;
+	}
+
+	private Pair<DataItem, List<Pair<DataItem, DataItem>>> getValueAndLoadBlockLocked(DataItem key,
+			long startOffset, long limitOffset) throws IOException {
 
 		DataItem found = null;
 		List<Pair<DataItem, DataItem>> block = new ArrayList<Pair<DataItem, DataItem>>();
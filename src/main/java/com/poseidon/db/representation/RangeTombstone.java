@@ -0,0 +1,87 @@
+package com.poseidon.db.representation;
+
+import java.nio.ByteBuffer;
+import com.poseidon.db.hash.SimpleModuloHash;
+
+// Deletes every key in [start, end) that an older source holds. It only covers
+// the keys of one partition, the one whose memtable it was written to, since the
+// partitions are flushed on their own and a tombstone of one must not reach the
+// newer or older data of another.
+//
+// Encoded: [startLength int][start][endLength int][end][partition int][partitionCount int]
+public class RangeTombstone {
+
+	private final DataItem start;
+	private final DataItem end;
+	private final int partition;
+	private final int partitionCount;
+	private final SimpleModuloHash partitionHash;
+
+	public RangeTombstone(DataItem start, DataItem end, int partition, int partitionCount) {
+		this.start = start;
+		this.end = end;
+		this.partition = partition;
+		this.partitionCount = partitionCount;
+		this.partitionHash = (partitionCount > 1) ? new SimpleModuloHash(partitionCount) : null;
+	}
+
+	public static RangeTombstone fromByteArray(byte[] data) {
+		return read(ByteBuffer.wrap(data));
+	}
+
+	public static RangeTombstone read(ByteBuffer buffer) {
+		byte[] start = new byte[buffer.getInt()];
+		buffer.get(start);
+		byte[] end = new byte[buffer.getInt()];
+		buffer.get(end);
+		int partition = buffer.getInt();
+		int partitionCount = buffer.getInt();
+		return new RangeTombstone(new DataItem(start), new DataItem(end), partition, partitionCount);
+	}
+
+	public byte[] toByteArray() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 + start.length() + 4 + end.length() + 4 + 4);
+		buffer.putInt(start.length());
+		buffer.put(start.getData());
+		buffer.putInt(end.length());
+		buffer.put(end.getData());
+		buffer.putInt(partition);
+		buffer.putInt(partitionCount);
+		return buffer.array();
+	}
+
+	public boolean covers(DataItem key) {
+		return start.compareTo(key) <= 0 && end.compareTo(key) > 0
+				&& (partitionHash == null || partitionHash.calculateHash(key) == partition);
+	}
+
+	// The part inside [lower, upper), null if there is none. A null bound leaves that side open.
+	public RangeTombstone clip(DataItem lower, DataItem upper) {
+		DataItem clippedStart = (lower != null && lower.compareTo(start) > 0) ? lower : start;
+		DataItem clippedEnd = (upper != null && upper.compareTo(end) < 0) ? upper : end;
+
+		if (clippedStart.compareTo(clippedEnd) >= 0) {
+			return null;
+		}
+		if (clippedStart == start && clippedEnd == end) {
+			return this;
+		}
+		return new RangeTombstone(clippedStart, clippedEnd, partition, partitionCount);
+	}
+
+	public DataItem getStart() {
+		return start;
+	}
+
+	public DataItem getEnd() {
+		return end;
+	}
+
+	public int getPartition() {
+		return partition;
+	}
+
+	public int getPartitionCount() {
+		return partitionCount;
+	}
+}
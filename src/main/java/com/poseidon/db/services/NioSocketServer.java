@@ -0,0 +1,458 @@
+package com.poseidon.db.services;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import com.poseidon.db.KeyValueStore;
+import com.poseidon.db.utils.BufferPool;
+
+// Selector based socket server. Connections stay open and a client may send any
+// number of requests without waiting for the answers. Every request frame carries
+// an id that is echoed in its response, so workers are free to answer out of order.
+//
+// Request:  [frameLength int][requestId long][op byte][keyLength int][key][value]
+// Response: [frameLength int][requestId long][status byte][value]
+//
+// The frame length counts the bytes after itself. GET and DELETE send no value.
+// Batches send no key and carry the batch as the value: MULTI_GET sends
+// [count]([keyLength][key])* and gets back ([valueLength][value])* with -1 for a
+// missing key, MULTI_PUT sends [count]([keyLength][key][valueLength][value])*.
+public class NioSocketServer {
+
+	private final static Logger logger = Logger.getLogger(NioSocketServer.class);
+	public static final String HOSTNAME = "localhost";
+	public static final int PORT = 5000;
+
+	public static final byte PUT_REQUEST = 0;
+	public static final byte GET_REQUEST = 1;
+	public static final byte DELETE_REQUEST = 2;
+	public static final byte MULTI_GET_REQUEST = 3;
+	public static final byte MULTI_PUT_REQUEST = 4;
+
+	public static final byte STATUS_FAILED = 0;
+	public static final byte STATUS_OK = 1;
+	public static final byte STATUS_NOT_FOUND = 2;
+	public static final byte STATUS_ERROR = 3;
+
+	public static final int REQUEST_HEADER_SIZE = 8 + 1 + 4;
+	public static final int RESPONSE_HEADER_SIZE = 8 + 1;
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+	public static final int DEFAULT_WORKER_THREADS = 16;
+	// A connection stops being read while this many of its requests are unanswered
+	public static final int MAX_IN_FLIGHT = 1024;
+
+	private final class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private final ConcurrentLinkedQueue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+		private ByteBuffer readBuffer;
+		private ByteBuffer currentWrite;
+		private volatile boolean open = true;
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+			this.readBuffer = bufferPool.acquire();
+		}
+	}
+
+	private final KeyValueStore store;
+	private final int port;
+	private final BufferPool bufferPool;
+	private final ExecutorService workers;
+	private final ConcurrentLinkedQueue<Connection> writeReady = new ConcurrentLinkedQueue<Connection>();
+	private volatile boolean running;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+
+	public NioSocketServer(KeyValueStore store) {
+		this(store, PORT, DEFAULT_WORKER_THREADS);
+	}
+
+	public NioSocketServer(KeyValueStore store, int port) {
+		this(store, port, DEFAULT_WORKER_THREADS);
+	}
+
+	public NioSocketServer(KeyValueStore store, int port, int workerThreads) {
+		this.store = store;
+		this.port = port;
+		this.bufferPool = new BufferPool();
+		this.workers = Executors.newFixedThreadPool(workerThreads);
+	}
+
+	// Binds before returning, so clients can connect as soon as this is done
+	public void start() throws IOException {
+		store.start();
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.bind(new InetSocketAddress(HOSTNAME, port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		running = true;
+		selectorThread = new Thread(this::selectLoop, "poseidon-nio-selector");
+		selectorThread.start();
+		logger.info("NIO Socket Server is running at " + HOSTNAME + ":" + port);
+	}
+
+	public void stop(boolean force) {
+		if (force) {
+			workers.shutdownNow();
+		} else {
+			// Let requests already taken finish so their answers still go out
+			workers.shutdown();
+			try {
+				workers.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		}
+
+		if (selectorThread != null) {
+			try {
+				selectorThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	private void selectLoop() {
+		try {
+			while (running) {
+				selector.select();
+
+				Connection ready;
+				while ((ready = writeReady.poll()) != null) {
+					ready.writeScheduled.set(false);
+					write(ready);
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+
+					Connection connection = (Connection) key.attachment();
+					if (key.isReadable()) {
+						read(connection);
+					}
+					if (key.isValid() && key.isWritable()) {
+						write(connection);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.error("NIO Socket Server stopped unexpectedly - " + e);
+		} finally {
+			closeAll();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Connection(channel, key));
+	}
+
+	private void read(Connection connection) {
+		try {
+			if (connection.channel.read(connection.readBuffer) < 0) {
+				close(connection);
+				return;
+			}
+			processFrames(connection);
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	// Dispatches every complete frame in the read buffer and keeps the partial tail
+	private void processFrames(Connection connection) throws IOException {
+		ByteBuffer buffer = connection.readBuffer;
+		buffer.flip();
+
+		while (buffer.remaining() >= 4 && connection.inFlight.get() < MAX_IN_FLIGHT) {
+			int frameLength = buffer.getInt(buffer.position());
+
+			if (frameLength < REQUEST_HEADER_SIZE || frameLength > MAX_FRAME_LENGTH) {
+				logger.warn("Dropping connection after bad frame length " + frameLength);
+				close(connection);
+				return;
+			}
+			if (buffer.remaining() < 4 + frameLength) {
+				break;
+			}
+
+			buffer.getInt();
+			long requestId = buffer.getLong();
+			byte op = buffer.get();
+			int keyLength = buffer.getInt();
+			int valueLength = frameLength - REQUEST_HEADER_SIZE - keyLength;
+
+			if (keyLength < 0 || valueLength < 0) {
+				logger.warn("Dropping connection after bad key length " + keyLength);
+				close(connection);
+				return;
+			}
+
+			byte[] key = new byte[keyLength];
+			buffer.get(key);
+			byte[] value = new byte[valueLength];
+			buffer.get(value);
+
+			try {
+				workers.submit(() -> serve(connection, requestId, op, key, value));
+			} catch (RejectedExecutionException e) {
+				// Shutting down, no new work is taken
+				close(connection);
+				return;
+			}
+			connection.inFlight.incrementAndGet();
+		}
+
+		if (buffer.remaining() >= 4) {
+			int needed = 4 + buffer.getInt(buffer.position());
+			if (needed > buffer.capacity()) {
+				// One frame does not fit the pooled buffer, give this connection a bigger one
+				ByteBuffer larger = bufferPool.acquire(needed);
+				larger.put(buffer);
+				bufferPool.release(buffer);
+				connection.readBuffer = larger;
+				updateInterest(connection);
+				return;
+			}
+		}
+
+		if (!buffer.hasRemaining() && buffer.capacity() != bufferPool.getBufferSize()) {
+			connection.readBuffer = bufferPool.acquire();
+		} else {
+			buffer.compact();
+		}
+		updateInterest(connection);
+	}
+
+	private void serve(Connection connection, long requestId, byte op, byte[] key, byte[] value) {
+		byte status;
+		byte[] result = null;
+
+		try {
+			if (op == PUT_REQUEST) {
+				status = store.put(key, value) ? STATUS_OK : STATUS_FAILED;
+			} else if (op == GET_REQUEST) {
+				result = store.get(key);
+				status = (result == null) ? STATUS_NOT_FOUND : STATUS_OK;
+			} else if (op == DELETE_REQUEST) {
+				status = store.delete(key) ? STATUS_OK : STATUS_FAILED;
+			} else if (op == MULTI_GET_REQUEST) {
+				result = encodeValues(store.multiGet(decodeKeys(ByteBuffer.wrap(value))));
+				status = STATUS_OK;
+			} else if (op == MULTI_PUT_REQUEST) {
+				ByteBuffer batch = ByteBuffer.wrap(value);
+				int count = batch.getInt();
+				List<byte[]> keys = new ArrayList<byte[]>(count);
+				List<byte[]> values = new ArrayList<byte[]>(count);
+				for (int i = 0; i < count; i++) {
+					keys.add(readBytes(batch));
+					values.add(readBytes(batch));
+				}
+				status = store.multiPut(keys, values) ? STATUS_OK : STATUS_FAILED;
+			} else {
+				logger.warn("Unknown Request " + op);
+				status = STATUS_ERROR;
+			}
+		} catch (RuntimeException e) {
+			// Also covers batches that do not decode
+			logger.error("Failed to serve request " + requestId + " - " + e);
+			status = STATUS_ERROR;
+		}
+
+		int valueLength = (result == null) ? 0 : result.length;
+		ByteBuffer response = bufferPool.acquire(4 + RESPONSE_HEADER_SIZE + valueLength);
+		response.putInt(RESPONSE_HEADER_SIZE + valueLength);
+		response.putLong(requestId);
+		response.put(status);
+		if (result != null) {
+			response.put(result);
+		}
+		response.flip();
+
+		if (!connection.open || !running) {
+			bufferPool.release(response);
+			return;
+		}
+
+		connection.pendingWrites.offer(response);
+		if (connection.writeScheduled.compareAndSet(false, true)) {
+			writeReady.offer(connection);
+			selector.wakeup();
+		}
+	}
+
+	private static List<byte[]> decodeKeys(ByteBuffer batch) {
+		int count = batch.getInt();
+		List<byte[]> keys = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			keys.add(readBytes(batch));
+		}
+		return keys;
+	}
+
+	private static byte[] readBytes(ByteBuffer batch) {
+		byte[] data = new byte[batch.getInt()];
+		batch.get(data);
+		return data;
+	}
+
+	private static byte[] encodeValues(List<byte[]> values) {
+		int size = 0;
+		for (byte[] value : values) {
+			size += 4 + ((value == null) ? 0 : value.length);
+		}
+
+		ByteBuffer encoded = ByteBuffer.allocate(size);
+		for (byte[] value : values) {
+			if (value == null) {
+				encoded.putInt(-1);
+			} else {
+				encoded.putInt(value.length);
+				encoded.put(value);
+			}
+		}
+		return encoded.array();
+	}
+
+	private void write(Connection connection) {
+		if (!connection.open) {
+			return;
+		}
+
+		try {
+			while (true) {
+				if (connection.currentWrite == null) {
+					connection.currentWrite = connection.pendingWrites.poll();
+					if (connection.currentWrite == null) {
+						break;
+					}
+				}
+
+				connection.channel.write(connection.currentWrite);
+				if (connection.currentWrite.hasRemaining()) {
+					break;
+				}
+
+				bufferPool.release(connection.currentWrite);
+				connection.currentWrite = null;
+				connection.inFlight.decrementAndGet();
+			}
+
+			// Frames held back by the in-flight limit can go now
+			if (connection.readBuffer.position() > 0 && connection.inFlight.get() < MAX_IN_FLIGHT) {
+				processFrames(connection);
+			} else {
+				updateInterest(connection);
+			}
+		} catch (IOException e) {
+			close(connection);
+		}
+	}
+
+	private void updateInterest(Connection connection) {
+		if (!connection.open || !connection.key.isValid()) {
+			return;
+		}
+
+		int ops = 0;
+		if (connection.inFlight.get() < MAX_IN_FLIGHT) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (connection.currentWrite != null || !connection.pendingWrites.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		connection.key.interestOps(ops);
+	}
+
+	private void close(Connection connection) {
+		if (!connection.open) {
+			return;
+		}
+		connection.open = false;
+		connection.key.cancel();
+
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// Nothing left to do with this connection
+		}
+
+		bufferPool.release(connection.readBuffer);
+		bufferPool.release(connection.currentWrite);
+		connection.currentWrite = null;
+
+		ByteBuffer pending;
+		while ((pending = connection.pendingWrites.poll()) != null) {
+			bufferPool.release(pending);
+		}
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				close((Connection) key.attachment());
+			}
+		}
+
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (ClosedChannelException e) {
+			// Already closed
+		} catch (IOException e) {
+			logger.error("Failed to close NIO Socket Server - " + e);
+		}
+	}
+}
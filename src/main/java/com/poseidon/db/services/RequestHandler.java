@@ -6,6 +6,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import org.apache.log4j.Logger;
 import com.poseidon.db.KeyValueStore;
+import com.poseidon.db.StoreOptions;
+import com.poseidon.db.io.CommitLog.Durability;
 import com.poseidon.db.io.access.FileAccessChoice;
 
 public class RequestHandler {
@@ -14,23 +16,50 @@ public class RequestHandler {
 	public static final String FILE_ACCESS_CHOICE_ARG_NAME = "fileaccess";
 	public static final String FILE_ACCESS_CHOICE_SIMPLE = "simple";
 	public static final String FILE_ACCESS_CHOICE_MEM_MAP = "mem-map";
+	public static final String FILE_ACCESS_CHOICE_CHANNEL = "channel";
+	public static final String DURABILITY_ARG_NAME = "durability";
+	public static final String PARTITIONS_ARG_NAME = "partitions";
+	public static final String SOCKET_SERVER_ARG_NAME = "socketserver";
+	public static final String SOCKET_SERVER_BLOCKING = "blocking";
+	public static final String SOCKET_SERVER_NIO = "nio";
 	public static final byte SHUTDOWN_REQUEST = 127;
 	public static final byte SHUTDOWN_REQUEST_FORCE = 126;
 	private static final int PORT = 5010;
 
 	private KeyValueStore store;
 	private SocketServer socketServer;
+	private NioSocketServer nioSocketServer;
 	private RESTServer restServer;
 
 	public RequestHandler(String dataDir, FileAccessChoice fileAccessChoice) throws IOException {
-		store = KeyValueStore.getNewInstance(dataDir, fileAccessChoice);
-		socketServer = new SocketServer(store, fileAccessChoice);
+		this(dataDir, new StoreOptions().setFileAccessChoice(fileAccessChoice));
+	}
+
+	public RequestHandler(String dataDir, StoreOptions options) throws IOException {
+		this(dataDir, options, false);
+	}
+
+	public RequestHandler(String dataDir, StoreOptions options, boolean nioSocketServer) throws IOException {
+		store = KeyValueStore.getNewInstance(dataDir, options);
+		if (nioSocketServer) {
+			this.nioSocketServer = new NioSocketServer(store);
+		} else {
+			this.socketServer = new SocketServer(store, options.getFileAccessChoice());
+		}
 		restServer = new RESTServer(store);
 	}
 
 	public void start() {
 
-		socketServer.start();
+		if (nioSocketServer != null) {
+			try {
+				nioSocketServer.start();
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to start NIO Socket Server", e);
+			}
+		} else {
+			socketServer.start();
+		}
 		restServer.start();
 
 		try (ServerSocket server = new ServerSocket(PORT)) {
@@ -58,8 +87,14 @@ public class RequestHandler {
 	}
 
 	public void stop(boolean force) {
-		store.stop(force);
-		socketServer.stop(force);
+		if (nioSocketServer != null) {
+			// Answer what is already in flight before the store goes away
+			nioSocketServer.stop(force);
+			store.stop(force);
+		} else {
+			store.stop(force);
+			socketServer.stop(force);
+		}
 		restServer.stop();
 	}
 
@@ -81,9 +116,30 @@ public class RequestHandler {
 			} else if (fileAccessChoiceStr.equals(FILE_ACCESS_CHOICE_MEM_MAP)) {
 				logger.info("Using memory-mapped file");
 				fileAccessChoice = FileAccessChoice.MEM_MAP;
+			} else if (fileAccessChoiceStr.equals(FILE_ACCESS_CHOICE_CHANNEL)) {
+				logger.info("Using positional channel reads");
+				fileAccessChoice = FileAccessChoice.CHANNEL;
 			}
 		}
 
-		(new RequestHandler(dataDir, fileAccessChoice)).start();
+		StoreOptions options = new StoreOptions().setFileAccessChoice(fileAccessChoice);
+		String durabilityStr = System.getProperty(DURABILITY_ARG_NAME);
+
+		if (durabilityStr != null) {
+			try {
+				options.setDurability(Durability.valueOf(durabilityStr.toUpperCase()));
+				logger.info("Using commit log durability " + options.getDurability());
+			} catch (IllegalArgumentException e) {
+				logger.warn("Unknown durability " + durabilityStr + ", using " + options.getDurability());
+			}
+		}
+
+		options.setPartitionCount(Integer.getInteger(PARTITIONS_ARG_NAME, options.getPartitionCount()));
+		logger.info("Using " + options.getPartitionCount() + " partitions");
+
+		boolean nioSocketServer = SOCKET_SERVER_NIO.equals(System.getProperty(SOCKET_SERVER_ARG_NAME, SOCKET_SERVER_BLOCKING));
+		logger.info("Using " + (nioSocketServer ? "NIO" : "blocking") + " socket server");
+
+		(new RequestHandler(dataDir, options, nioSocketServer)).start();
 	}
 }
@@ -1,15 +1,22 @@
 package com.poseidon.db.services;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import org.apache.log4j.Logger;
 import com.poseidon.db.KeyValueStore;
+import com.poseidon.db.ScanIterator;
 import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.representation.KeyValuePair;
 import com.poseidon.db.utils.DataConversion;
 import com.poseidon.db.utils.IOUtils;
 
@@ -24,6 +31,11 @@ public class SocketServer {
 		public static final byte PUT_REQUEST = 0;
 		public static final byte GET_REQUEST = 1;
 		public static final byte DELETE_REQUEST = 2;
+		public static final byte MULTI_GET_REQUEST = 3;
+		public static final byte MULTI_PUT_REQUEST = 4;
+		public static final byte SCAN_REQUEST = 5;
+		// Roughly how much of a scan is held in memory before it goes out
+		public static final int SCAN_CHUNK_BYTES = 64 * 1024;
 
 		private Socket connection;
 		private KeyValueStore store;
@@ -37,7 +49,7 @@ public class SocketServer {
 
 		public void run() {
 			try {
-				DataInputStream in = new DataInputStream(connection.getInputStream());
+				DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
 				DataOutputStream out = new DataOutputStream(connection.getOutputStream());
 
 				if (op == PUT_REQUEST) {
@@ -93,6 +105,76 @@ public class SocketServer {
 
 					out.write(new byte[] { (byte) ((success) ? 1 : 0) });
 					out.flush();
+				} else if (op == MULTI_GET_REQUEST) {
+					// [count] then [keyLen][key] per key, answered with [len][value] per key, -1 if missing
+					int count = in.readInt();
+					List<byte[]> keys = new ArrayList<byte[]>(count);
+					for (int i = 0; i < count; i++) {
+						byte[] key = new byte[in.readInt()];
+						in.readFully(key);
+						keys.add(key);
+					}
+
+					DataOutputStream bufferedOut = new DataOutputStream(new BufferedOutputStream(out));
+					for (byte[] value : store.multiGet(keys)) {
+						if (value == null) {
+							bufferedOut.writeInt(-1);
+						} else {
+							bufferedOut.writeInt(value.length);
+							bufferedOut.write(value);
+						}
+					}
+					bufferedOut.flush();
+				} else if (op == MULTI_PUT_REQUEST) {
+					// [count] then [keyLen][key][valueLen][value] per pair
+					int count = in.readInt();
+					List<byte[]> keys = new ArrayList<byte[]>(count);
+					List<byte[]> values = new ArrayList<byte[]>(count);
+					for (int i = 0; i < count; i++) {
+						byte[] key = new byte[in.readInt()];
+						in.readFully(key);
+						byte[] value = new byte[in.readInt()];
+						in.readFully(value);
+						keys.add(key);
+						values.add(value);
+					}
+
+					boolean success = store.multiPut(keys, values);
+
+					out.write(new byte[] { (byte) ((success) ? 1 : 0) });
+					out.flush();
+				} else if (op == SCAN_REQUEST) {
+					// [startLen][start][endLen][end], -1 for an open bound. Answered with chunks of
+					// [count] then [keyLen][key][valueLen][value] per entry, a count of 0 ends it.
+					byte[] startKey = readOptionalBytes(in);
+					byte[] endKey = readOptionalBytes(in);
+
+					DataOutputStream bufferedOut = new DataOutputStream(new BufferedOutputStream(out));
+					ByteArrayOutputStream chunk = new ByteArrayOutputStream(SCAN_CHUNK_BYTES);
+					DataOutputStream chunkOut = new DataOutputStream(chunk);
+					int count = 0;
+
+					try (ScanIterator scan = store.scan(startKey, endKey)) {
+						while (scan.hasNext()) {
+							KeyValuePair kvp = scan.next();
+							chunkOut.writeInt(kvp.getKey().length());
+							chunkOut.write(kvp.getKey().getData());
+							chunkOut.writeInt(kvp.getValue().length());
+							chunkOut.write(kvp.getValue().getData());
+							count++;
+
+							if (chunk.size() >= SCAN_CHUNK_BYTES) {
+								writeChunk(bufferedOut, count, chunk);
+								count = 0;
+							}
+						}
+					}
+
+					if (count > 0) {
+						writeChunk(bufferedOut, count, chunk);
+					}
+					bufferedOut.writeInt(0);
+					bufferedOut.flush();
 				} else {
 					logger.warn("Unknown Resquest");
 				}
@@ -104,6 +186,24 @@ public class SocketServer {
 		}
 	}
 
+	private static byte[] readOptionalBytes(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	// Chunks are flushed as they fill up, the socket pushes back on a slow reader
+	private static void writeChunk(DataOutputStream out, int count, ByteArrayOutputStream chunk) throws IOException {
+		out.writeInt(count);
+		chunk.writeTo(out);
+		out.flush();
+		chunk.reset();
+	}
+
 	private KeyValueStore store;
 	private ExecutorService es;
 
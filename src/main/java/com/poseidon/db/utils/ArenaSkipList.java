@@ -0,0 +1,406 @@
+package com.poseidon.db.utils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.locks.StampedLock;
+import org.apache.log4j.Logger;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+
+// Sorted map whose nodes, keys and values all live in a few large direct buffers
+// (the arena) and link to each other by address, so the heap only ever holds the
+// chunk buffers whatever the number of entries. Nothing is freed one by one: an
+// overwritten value stays where it is, and the native memory goes back in one go
+// on release, once its memtable was flushed. Keys are ordered like DataItem.compareTo.
+//
+// Node:  [value address long][key length int][height int][next address long]*height [key]
+// Value: [length int][value]
+public class ArenaSkipList {
+
+	private final static Logger logger = Logger.getLogger(ArenaSkipList.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int MAX_HEIGHT = 12;
+	private static final int BRANCHING = 4;
+	private static final int NODE_HEADER_SIZE = 8 + 4 + 4;
+	private static final long NONE = -1;
+
+	private final int chunkSize;
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private final StampedLock lock = new StampedLock();
+	private final Random random = new Random();
+	private final long head;
+	private int currentChunk;
+	private int currentOffset;
+	private int height = 1;
+	private long allocatedBytes;
+	private long usedBytes;
+	private boolean released;
+
+	public ArenaSkipList() {
+		this(DEFAULT_CHUNK_SIZE);
+	}
+
+	public ArenaSkipList(int chunkSize) {
+		this.chunkSize = chunkSize;
+		chunks.add(ByteBuffer.allocateDirect(chunkSize));
+		allocatedBytes = chunkSize;
+		head = newNode(new byte[0], MAX_HEIGHT);
+	}
+
+	public byte[] get(byte[] key) {
+		long stamp = lock.readLock();
+		try {
+			if (released) {
+				return null;
+			}
+			long node = findGreaterOrEqual(key, null);
+			if (node == NONE || compareKey(node, key) != 0) {
+				return null;
+			}
+			long value = valueAddress(node);
+			return (value == NONE) ? null : readValue(value);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	// Returns the length of the value it replaced, -1 if the key had none
+	public int put(byte[] key, byte[] value) {
+		long stamp = lock.writeLock();
+		try {
+			checkNotReleased();
+			long[] prev = new long[MAX_HEIGHT];
+			long node = findGreaterOrEqual(key, prev);
+			long valueAddress = newValue(value);
+
+			if (node != NONE && compareKey(node, key) == 0) {
+				long old = valueAddress(node);
+				setValueAddress(node, valueAddress);
+				return (old == NONE) ? -1 : valueLength(old);
+			}
+
+			int nodeHeight = randomHeight();
+			if (nodeHeight > height) {
+				for (int level = height; level < nodeHeight; level++) {
+					prev[level] = head;
+				}
+				height = nodeHeight;
+			}
+
+			node = newNode(key, nodeHeight);
+			setValueAddress(node, valueAddress);
+			for (int level = 0; level < nodeHeight; level++) {
+				setNextNode(node, level, nextNode(prev[level], level));
+				setNextNode(prev[level], level, node);
+			}
+			return -1;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// The node stays in place without a value. Returns the length of the value it had, -1 if none.
+	public int remove(byte[] key) {
+		long stamp = lock.writeLock();
+		try {
+			checkNotReleased();
+			long node = findGreaterOrEqual(key, null);
+			if (node == NONE || compareKey(node, key) != 0) {
+				return -1;
+			}
+			long old = valueAddress(node);
+			setValueAddress(node, NONE);
+			return (old == NONE) ? -1 : valueLength(old);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// Entries in [startKey, endKey) copied out as they are reached, a null bound
+	// leaves that side open. Writes that land behind the iterator are not seen.
+	public Iterator<KeyValuePair> iterator(byte[] startKey, byte[] endKey) {
+		return new Iterator<KeyValuePair>() {
+			private long node = NONE;
+			private boolean started;
+			private KeyValuePair next;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					advance();
+				}
+				return next != null;
+			}
+
+			@Override
+			public KeyValuePair next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				KeyValuePair result = next;
+				next = null;
+				return result;
+			}
+
+			private void advance() {
+				long stamp = lock.readLock();
+				try {
+					if (released) {
+						node = NONE;
+						return;
+					}
+					if (!started) {
+						started = true;
+						node = (startKey == null) ? nextNode(head, 0) : findGreaterOrEqual(startKey, null);
+					} else if (node != NONE) {
+						node = nextNode(node, 0);
+					}
+
+					for (; node != NONE; node = nextNode(node, 0)) {
+						if (endKey != null && compareKey(node, endKey) >= 0) {
+							node = NONE;
+							break;
+						}
+						long value = valueAddress(node);
+						if (value != NONE) {
+							next = new KeyValuePair(new DataItem(readKey(node)), new DataItem(readValue(value)));
+							break;
+						}
+					}
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+		};
+	}
+
+	public long getAllocatedBytes() {
+		long stamp = lock.readLock();
+		try {
+			return allocatedBytes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	// Bytes handed out of the chunks, which keeps growing as values are overwritten
+	public long getUsedBytes() {
+		long stamp = lock.readLock();
+		try {
+			return usedBytes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	// Gives the native memory back now rather than whenever the buffers are collected.
+	// The list reads as empty afterwards.
+	public void release() {
+		long stamp = lock.writeLock();
+		try {
+			if (released) {
+				return;
+			}
+			released = true;
+			for (ByteBuffer chunk : chunks) {
+				free(chunk);
+			}
+			chunks.clear();
+			allocatedBytes = 0;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean isReleased() {
+		long stamp = lock.readLock();
+		try {
+			return released;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private void checkNotReleased() {
+		if (released) {
+			throw new IllegalStateException("Arena skip list was released");
+		}
+	}
+
+	// First node whose key is not less than key, filling prev with the last node before it on each level
+	private long findGreaterOrEqual(byte[] key, long[] prev) {
+		long node = head;
+		for (int level = height - 1; level >= 0; level--) {
+			long next = nextNode(node, level);
+			while (next != NONE && compareKey(next, key) < 0) {
+				node = next;
+				next = nextNode(node, level);
+			}
+			if (prev != null) {
+				prev[level] = node;
+			}
+			if (level == 0) {
+				return next;
+			}
+		}
+		return NONE;
+	}
+
+	private int randomHeight() {
+		int nodeHeight = 1;
+		while (nodeHeight < MAX_HEIGHT && random.nextInt(BRANCHING) == 0) {
+			nodeHeight++;
+		}
+		return nodeHeight;
+	}
+
+	private long newNode(byte[] key, int nodeHeight) {
+		long node = allocate(NODE_HEADER_SIZE + 8 * nodeHeight + key.length);
+		ByteBuffer chunk = chunk(node);
+		int offset = offset(node);
+
+		chunk.putLong(offset, NONE);
+		chunk.putInt(offset + 8, key.length);
+		chunk.putInt(offset + 12, nodeHeight);
+		for (int level = 0; level < nodeHeight; level++) {
+			chunk.putLong(offset + NODE_HEADER_SIZE + 8 * level, NONE);
+		}
+		int keyOffset = offset + NODE_HEADER_SIZE + 8 * nodeHeight;
+		for (int i = 0; i < key.length; i++) {
+			chunk.put(keyOffset + i, key[i]);
+		}
+		return node;
+	}
+
+	private long newValue(byte[] value) {
+		long address = allocate(4 + value.length);
+		ByteBuffer chunk = chunk(address);
+		int offset = offset(address);
+
+		chunk.putInt(offset, value.length);
+		ByteBuffer view = chunk.duplicate();
+		view.position(offset + 4);
+		view.put(value);
+		return address;
+	}
+
+	// Small allocations share the current chunk, a large one gets a chunk of its own
+	private long allocate(int size) {
+		usedBytes += size;
+		if (size > chunkSize / 4) {
+			chunks.add(ByteBuffer.allocateDirect(size));
+			allocatedBytes += size;
+			return address(chunks.size() - 1, 0);
+		}
+
+		if (currentOffset + size > chunkSize) {
+			chunks.add(ByteBuffer.allocateDirect(chunkSize));
+			allocatedBytes += chunkSize;
+			currentChunk = chunks.size() - 1;
+			currentOffset = 0;
+		}
+		long address = address(currentChunk, currentOffset);
+		currentOffset += size;
+		return address;
+	}
+
+	private long valueAddress(long node) {
+		return chunk(node).getLong(offset(node));
+	}
+
+	private void setValueAddress(long node, long value) {
+		chunk(node).putLong(offset(node), value);
+	}
+
+	private long nextNode(long node, int level) {
+		return chunk(node).getLong(offset(node) + NODE_HEADER_SIZE + 8 * level);
+	}
+
+	private void setNextNode(long node, int level, long next) {
+		chunk(node).putLong(offset(node) + NODE_HEADER_SIZE + 8 * level, next);
+	}
+
+	private int valueLength(long value) {
+		return chunk(value).getInt(offset(value));
+	}
+
+	private byte[] readValue(long value) {
+		ByteBuffer view = chunk(value).duplicate();
+		int offset = offset(value);
+		byte[] data = new byte[view.getInt(offset)];
+		view.position(offset + 4);
+		view.get(data);
+		return data;
+	}
+
+	private byte[] readKey(long node) {
+		ByteBuffer view = chunk(node).duplicate();
+		int offset = offset(node);
+		byte[] key = new byte[view.getInt(offset + 8)];
+		view.position(offset + NODE_HEADER_SIZE + 8 * view.getInt(offset + 12));
+		view.get(key);
+		return key;
+	}
+
+	// Same order as DataItem.compareTo, signed bytes then length
+	private int compareKey(long node, byte[] key) {
+		ByteBuffer chunk = chunk(node);
+		int offset = offset(node);
+		int keyLength = chunk.getInt(offset + 8);
+		int keyOffset = offset + NODE_HEADER_SIZE + 8 * chunk.getInt(offset + 12);
+
+		int n = Math.min(keyLength, key.length);
+		for (int i = 0; i < n; i++) {
+			int cmp = Byte.compare(chunk.get(keyOffset + i), key[i]);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return keyLength - key.length;
+	}
+
+	private ByteBuffer chunk(long address) {
+		return chunks.get((int) (address >>> 32));
+	}
+
+	// Runs the cleaner of a direct buffer. Unsafe.invokeCleaner from Java 9 on, the
+	// buffer's own cleaner before that. Without either the buffer waits for the GC.
+	private static void free(ByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+				return;
+			} catch (NoSuchMethodException e) {
+				// Java 8
+			}
+
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.debug("Direct buffer left to the garbage collector", e);
+		}
+	}
+
+	private static int offset(long address) {
+		return (int) address;
+	}
+
+	private static long address(int chunk, int offset) {
+		return ((long) chunk << 32) | offset;
+	}
+}
@@ -1,22 +1,319 @@
 package com.poseidon.db.utils;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class BlockCache <K, V> extends LinkedHashMap<K, V>
-{
-    private static final long serialVersionUID = 3997456039742521900L;
-	private final int capacity_;
-
-    public BlockCache(int capacity)
-    {
-        super(capacity + 1, 1.1f, true);
-        capacity_ = capacity;
-    }
-    
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<K, V> entry)
-    {
-        return (size() > capacity_);
-    }
-}
\ No newline at end of file
+// One cache of decoded blocks shared by every sstable of a store, bounded by a
+// byte budget. Entries are spread over independently locked shards. Each shard
+// evicts in LRU order, but a new block only gets in if it has been asked for more
+// often than the block it would push out (TinyLFU admission), so one large scan
+// cannot flush the working set.
+public class BlockCache<V> {
+
+	public static final long DEFAULT_CAPACITY_BYTES = 32L * 1024 * 1024;
+	public static final int DEFAULT_SHARD_COUNT = 16;
+	// Rough cost of a map entry and its key on top of the block itself
+	public static final int ENTRY_OVERHEAD = 64;
+
+	private static final int AVERAGE_BLOCK_SIZE = 4096;
+
+	// Lookups fill in a key of their own thread instead of allocating one, only
+	// keys that go into the map are new objects
+	private static final ThreadLocal<BlockKey> probeKeys = new ThreadLocal<BlockKey>() {
+		@Override
+		protected BlockKey initialValue() {
+			return new BlockKey(0, 0);
+		}
+	};
+
+	private static final class BlockKey {
+		private long tableId;
+		private long offset;
+
+		BlockKey(long tableId, long offset) {
+			this.tableId = tableId;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BlockKey)) {
+				return false;
+			}
+			BlockKey other = (BlockKey) obj;
+			return tableId == other.tableId && offset == other.offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (hash(tableId, offset) >>> 32);
+		}
+	}
+
+	private static final class Entry<V> {
+		private final V block;
+		private final int weight;
+
+		Entry(V block, int weight) {
+			this.block = block;
+			this.weight = weight;
+		}
+	}
+
+	// Count-min sketch of 4 rows with small saturating counters, updated
+	// conservatively so that one-off keys do not inflate each other. All counters
+	// are halved once enough accesses have been seen, so old popularity fades.
+	private static final class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int MIN_WIDTH = 1024;
+
+		private final byte[][] rows;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int expectedEntries) {
+			int width = Integer.highestOneBit(Math.max(MIN_WIDTH, expectedEntries) - 1) << 1;
+			rows = new byte[DEPTH][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		void increment(long hash) {
+			int min = frequency(hash);
+			if (min == MAX_COUNT) {
+				return;
+			}
+
+			for (int i = 0; i < DEPTH; i++) {
+				int index = indexOf(hash, i);
+				if (rows[i][index] == min) {
+					rows[i][index]++;
+				}
+			}
+
+			if (++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(long hash) {
+			int min = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++) {
+				min = Math.min(min, rows[i][indexOf(hash, i)]);
+			}
+			return min;
+		}
+
+		private int indexOf(long hash, int row) {
+			long h = (hash + row) * 0x9e3779b97f4a7c15L;
+			return (int) (h >>> 40) & mask;
+		}
+
+		private void reset() {
+			for (byte[] row : rows) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = (byte) (row[i] >>> 1);
+				}
+			}
+			additions /= 2;
+		}
+	}
+
+	private final class Shard {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final LinkedHashMap<BlockKey, Entry<V>> entries = new LinkedHashMap<BlockKey, Entry<V>>(16, 0.75f,
+				true);
+		private final FrequencySketch sketch;
+		private final long capacityBytes;
+		private long usedBytes;
+
+		Shard(long capacityBytes) {
+			this.capacityBytes = capacityBytes;
+			this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, capacityBytes / AVERAGE_BLOCK_SIZE));
+		}
+
+		V get(BlockKey key, long hash) {
+			lock.lock();
+			try {
+				sketch.increment(hash);
+				Entry<V> entry = entries.get(key);
+				return (entry == null) ? null : entry.block;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void put(BlockKey key, long hash, V block, int weight) {
+			lock.lock();
+			try {
+				if (weight > capacityBytes) {
+					rejections.increment();
+					return;
+				}
+
+				// Admission is decided against every victim the block needs before any goes,
+				// so a rejected block costs nothing, and a rejected replacement keeps the old one
+				Entry<V> old = entries.get(key);
+				long needed = usedBytes - ((old == null) ? 0 : old.weight) + weight - capacityBytes;
+				int candidateFrequency = sketch.frequency(hash);
+				List<BlockKey> victims = new ArrayList<BlockKey>();
+
+				for (Iterator<Map.Entry<BlockKey, Entry<V>>> eldest = entries.entrySet().iterator(); needed > 0;) {
+					Map.Entry<BlockKey, Entry<V>> victim = eldest.next();
+					BlockKey victimKey = victim.getKey();
+					if (victimKey.equals(key)) {
+						continue;
+					}
+
+					if (candidateFrequency <= sketch.frequency(hash(victimKey.tableId, victimKey.offset))) {
+						rejections.increment();
+						return;
+					}
+					victims.add(victimKey);
+					needed -= victim.getValue().weight;
+				}
+
+				for (BlockKey victimKey : victims) {
+					usedBytes -= entries.remove(victimKey).weight;
+					evictions.increment();
+				}
+				if (old != null) {
+					usedBytes -= old.weight;
+				}
+				entries.put(key, new Entry<V>(block, weight));
+				usedBytes += weight;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long usedBytes() {
+			lock.lock();
+			try {
+				return usedBytes;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		int size() {
+			lock.lock();
+			try {
+				return entries.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private final List<Shard> shards;
+	private final long capacityBytes;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+
+	public BlockCache(long capacityBytes) {
+		this(capacityBytes, DEFAULT_SHARD_COUNT);
+	}
+
+	public BlockCache(long capacityBytes, int shardCount) {
+		int count = Integer.highestOneBit(Math.max(1, shardCount));
+
+		this.capacityBytes = capacityBytes;
+		this.shards = new ArrayList<Shard>(count);
+		for (int i = 0; i < count; i++) {
+			shards.add(new Shard(capacityBytes / count));
+		}
+	}
+
+	public V get(long tableId, long offset) {
+		long hash = hash(tableId, offset);
+		BlockKey probe = probeKeys.get();
+		probe.tableId = tableId;
+		probe.offset = offset;
+		V block = shardFor(hash).get(probe, hash);
+
+		if (block == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return block;
+	}
+
+	public void put(long tableId, long offset, V block, int weight) {
+		long hash = hash(tableId, offset);
+		shardFor(hash).put(new BlockKey(tableId, offset), hash, block, weight + ENTRY_OVERHEAD);
+	}
+
+	public long getCapacityBytes() {
+		return capacityBytes;
+	}
+
+	public long getUsedBytes() {
+		long total = 0;
+		for (Shard shard : shards) {
+			total += shard.usedBytes();
+		}
+		return total;
+	}
+
+	public int size() {
+		int total = 0;
+		for (Shard shard : shards) {
+			total += shard.size();
+		}
+		return total;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public long getRejectionCount() {
+		return rejections.sum();
+	}
+
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return (total == 0) ? 0 : (double) hitCount / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d hitRate=%.3f evictions=%d rejections=%d used=%d/%d entries=%d",
+				getHitCount(), getMissCount(), getHitRate(), getEvictionCount(), getRejectionCount(), getUsedBytes(),
+				capacityBytes, size());
+	}
+
+	private Shard shardFor(long hash) {
+		return shards.get((int) (hash & (shards.size() - 1)));
+	}
+
+	private static long hash(long tableId, long offset) {
+		long h = tableId * 0x9e3779b97f4a7c15L + offset;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
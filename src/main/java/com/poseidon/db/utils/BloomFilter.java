@@ -1,30 +1,119 @@
 package com.poseidon.db.utils;
 
+import java.nio.ByteBuffer;
 import java.util.BitSet;
+import com.poseidon.db.hash.MurmurHash64;
 
 public class BloomFilter {
-	
-	private BitSet filter;
-	
+
+	public static final int DEFAULT_EXPECTED_KEYS = 1024;
+	public static final int DEFAULT_BITS_PER_KEY = 10;
+
+	// "PoseBlom", marks the blocked format so that old BitSet filters are still readable
+	private static final long MAGIC = 0x506f7365426c6f6dL;
+	private static final int HEADER_LENGTH = 16;
+	// One block is one 64 byte cache line, every probe of a key stays inside it
+	private static final int LONGS_PER_BLOCK = 8;
+	private static final int BITS_PER_BLOCK = LONGS_PER_BLOCK * 64;
+
+	private long[] bits;
+	private int numBlocks;
+	private int numProbes;
+	private BitSet legacyFilter;
+
+	public static BloomFilter withFalsePositiveRate(int expectedKeys, double falsePositiveRate) {
+		int bitsPerKey = (int) Math.ceil(-Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		return new BloomFilter(expectedKeys, bitsPerKey);
+	}
+
 	public BloomFilter() {
-		filter = new BitSet();
+		this(DEFAULT_EXPECTED_KEYS, DEFAULT_BITS_PER_KEY);
 	}
-	
+
+	public BloomFilter(int expectedKeys, int bitsPerKey) {
+		long totalBits = (long) Math.max(expectedKeys, 1) * Math.max(bitsPerKey, 1);
+
+		numBlocks = (int) Math.max(1, (totalBits + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK);
+		numProbes = (int) Math.max(1, Math.min(30, Math.round(bitsPerKey * Math.log(2))));
+		bits = new long[numBlocks * LONGS_PER_BLOCK];
+	}
+
 	public BloomFilter(byte[] data) {
-		filter = BitSet.valueOf(data);
+		if (data.length < HEADER_LENGTH || ByteBuffer.wrap(data).getLong() != MAGIC) {
+			legacyFilter = BitSet.valueOf(data);
+			return;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		buffer.getLong();
+		numBlocks = buffer.getInt();
+		numProbes = buffer.getInt();
+		bits = new long[numBlocks * LONGS_PER_BLOCK];
+		buffer.asLongBuffer().get(bits);
 	}
-	
+
 	public void add(byte[] data) {
-		filter.or(BitSet.valueOf(data));
+		if (legacyFilter != null) {
+			legacyFilter.or(BitSet.valueOf(data));
+			return;
+		}
+
+		long hash = MurmurHash64.hash(data);
+		int blockStart = blockIndex(hash) * LONGS_PER_BLOCK;
+		int h = (int) (hash >>> 32);
+		int delta = (h >>> 17) | (h << 15);
+
+		for (int i = 0; i < numProbes; i++) {
+			int bit = h & (BITS_PER_BLOCK - 1);
+			bits[blockStart + (bit >>> 6)] |= (1L << bit);
+			h += delta;
+		}
 	}
-	
+
 	public boolean contains(byte[] data) {
-		BitSet target = BitSet.valueOf(data);
-		target.and(filter);
-		return target.equals(BitSet.valueOf(data));
+		if (legacyFilter != null) {
+			BitSet target = BitSet.valueOf(data);
+			target.and(legacyFilter);
+			return target.equals(BitSet.valueOf(data));
+		}
+
+		long hash = MurmurHash64.hash(data);
+		int blockStart = blockIndex(hash) * LONGS_PER_BLOCK;
+		int h = (int) (hash >>> 32);
+		int delta = (h >>> 17) | (h << 15);
+
+		for (int i = 0; i < numProbes; i++) {
+			int bit = h & (BITS_PER_BLOCK - 1);
+			if ((bits[blockStart + (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			h += delta;
+		}
+		return true;
 	}
-	
+
 	public byte[] getByteArray() {
-		return filter.toByteArray();
+		if (legacyFilter != null) {
+			return legacyFilter.toByteArray();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bits.length * 8);
+		buffer.putLong(MAGIC);
+		buffer.putInt(numBlocks);
+		buffer.putInt(numProbes);
+		buffer.asLongBuffer().put(bits);
+		return buffer.array();
+	}
+
+	public boolean isLegacyFormat() {
+		return legacyFilter != null;
+	}
+
+	public int getNumProbes() {
+		return numProbes;
+	}
+
+	private int blockIndex(long hash) {
+		return (int) (((hash & 0xffffffffL) * numBlocks) >>> 32);
 	}
 }
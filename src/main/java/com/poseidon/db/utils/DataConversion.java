@@ -19,12 +19,12 @@ public class DataConversion {
 	    		 (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF));
 	}
 	
-	public static int byteArrayToLong(byte[] bytes) {
+	public static long byteArrayToLong(byte[] bytes) {
 	     return (
-	    		 bytes[0] << 56 | (bytes[1] & 0xFF) << 48 | 
-	    		 (bytes[2] & 0xFF) << 40 | (bytes[3] & 0xFF) << 32 |
-	    		 (bytes[4] & 0xFF) << 24 | (bytes[5] & 0xFF) << 16 | 
-	    		 (bytes[6] & 0xFF) << 8 | (bytes[7] & 0xFF)
+	    		 (bytes[0] & 0xFFL) << 56 | (bytes[1] & 0xFFL) << 48 | 
+	    		 (bytes[2] & 0xFFL) << 40 | (bytes[3] & 0xFFL) << 32 |
+	    		 (bytes[4] & 0xFFL) << 24 | (bytes[5] & 0xFFL) << 16 | 
+	    		 (bytes[6] & 0xFFL) << 8 | (bytes[7] & 0xFFL)
     		 );
 	}
 }
@@ -2,6 +2,9 @@ package com.poseidon.db.utils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 public class IOUtils {
@@ -20,4 +23,13 @@ public class IOUtils {
 		
 		return outputStream.toByteArray();
 	}
+
+	// Makes the names in a directory durable, e.g. after a rename
+	public static void syncDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Directories cannot be opened on some platforms
+		}
+	}
 }
@@ -2,13 +2,22 @@ package com.poseidon.db;
 
 import static org.junit.Assert.*;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import com.poseidon.db.KeyValueStore;
+import com.poseidon.db.io.Manifest;
+import com.poseidon.db.io.SSTable;
+import com.poseidon.db.io.ValueLog;
 import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.utils.BlockCache;
+import com.poseidon.db.representation.KeyValuePair;
 
 public class KeyValueStoreTest {
 
@@ -82,6 +91,564 @@ public class KeyValueStoreTest {
 		testFlushingHelper(FileAccessChoice.MEM_MAP);
 	}
 
+	@Test
+	public void testPartitionedStore() throws InterruptedException {
+		StoreOptions options = new StoreOptions().setPartitionCount(4);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		assertEquals(4, store.numberOfPartitions());
+
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			int writer = t;
+			writers[t] = new Thread(() -> {
+				for (int i = writer; i < 4000; i += writers.length) {
+					store.put(("key-" + i).getBytes(), ("value-" + i).getBytes());
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		// Flushing one partition leaves the others in memory
+		int partition = store.partitionOf("key-0".getBytes());
+		store.flush(partition);
+		assertEquals(1, store.getVersionSet().getSSTablesAtLevel(0).size());
+
+		for (int i = 0; i < 4000; i++) {
+			assertEquals("value-" + i, new String(store.get(("key-" + i).getBytes())));
+		}
+
+		store.delete("key-0".getBytes());
+		assertNull(store.get("key-0".getBytes()));
+		store.stop(false);
+	}
+
+	@Test
+	public void testReloadAfterRestart() throws InterruptedException {
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+				new StoreOptions().setPartitionCount(4));
+
+		for (int i = 0; i < 1000; i++) {
+			store.put(("key-" + i).getBytes(), ("value-" + i).getBytes());
+		}
+		store.flush();
+		for (int i = 0; i < 500; i++) {
+			store.put(("key-" + i).getBytes(), ("value-" + i + "-new").getBytes());
+		}
+		store.delete("key-999".getBytes());
+		store.stop(false);
+
+		// The partition count may change between runs
+		store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), new StoreOptions().setPartitionCount(2));
+
+		for (int i = 0; i < 999; i++) {
+			String expected = (i < 500) ? "value-" + i + "-new" : "value-" + i;
+			assertEquals(expected, new String(store.get(("key-" + i).getBytes())));
+		}
+		assertNull(store.get("key-999".getBytes()));
+		store.stop(false);
+	}
+
+	@Test
+	public void testOffHeapMemtables() {
+		StoreOptions options = new StoreOptions().setPartitionCount(2).setMemtableStorage(MemtableStorage.OFF_HEAP);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+
+		for (int i = 0; i < 1000; i++) {
+			store.put(("key-" + i).getBytes(), ("value-" + i).getBytes());
+		}
+		store.flush();
+		for (int i = 0; i < 500; i++) {
+			store.put(("key-" + i).getBytes(), ("value-" + i + "-new").getBytes());
+		}
+		store.delete("key-999".getBytes());
+
+		int count = 0;
+		try (ScanIterator scan = store.scan(null, null)) {
+			while (scan.hasNext()) {
+				scan.next();
+				count++;
+			}
+		}
+		assertEquals(999, count);
+		store.stop(false);
+
+		store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		for (int i = 0; i < 999; i++) {
+			String expected = (i < 500) ? "value-" + i + "-new" : "value-" + i;
+			assertEquals(expected, new String(store.get(("key-" + i).getBytes())));
+		}
+		assertNull(store.get("key-999".getBytes()));
+		store.stop(false);
+	}
+
+	@Test
+	public void testBlindDeletes() throws InterruptedException {
+		StoreOptions options = new StoreOptions().setPartitionCount(2);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+
+		for (int i = 0; i < 100; i++) {
+			store.put(("key-" + i).getBytes(), ("value-" + i).getBytes());
+		}
+		store.flush();
+
+		// Neither a key that exists on disk nor one that never existed is looked up
+		long lookups = store.getVersionSet().getLookupCount();
+		for (int i = 0; i < 200; i += 2) {
+			assertTrue(store.delete(("key-" + i).getBytes()));
+		}
+		assertEquals(lookups, store.getVersionSet().getLookupCount());
+
+		// Real values shaped like a tombstone are not taken for one
+		byte[] zero = new byte[] { Memtable.TOMBSTONE };
+		byte[] escaped = new byte[] { ValueEncoding.ESCAPE, Memtable.TOMBSTONE };
+		store.put("zero".getBytes(), zero);
+		store.put("escaped".getBytes(), escaped);
+		assertTrue(store.write(new WriteBatch().put("batch-zero".getBytes(), zero)));
+		assertTrue(Arrays.equals(zero, store.get("zero".getBytes())));
+
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < 100; i++) {
+				byte[] found = store.get(("key-" + i).getBytes());
+				assertEquals((i % 2 == 0) ? null : "value-" + i, (found == null) ? null : new String(found));
+			}
+			assertTrue(Arrays.equals(zero, store.get("zero".getBytes())));
+			assertTrue(Arrays.equals(escaped, store.get("escaped".getBytes())));
+			assertTrue(Arrays.equals(zero, store.get("batch-zero".getBytes())));
+			assertTrue(Arrays.equals(zero, store.multiGet(Arrays.asList("zero".getBytes())).get(0)));
+
+			int count = 0;
+			try (ScanIterator scan = store.scan(null, null)) {
+				while (scan.hasNext()) {
+					KeyValuePair kvp = scan.next();
+					if (new String(kvp.getKey().getData()).endsWith("zero")) {
+						assertTrue(Arrays.equals(zero, kvp.getValue().getData()));
+					}
+					count++;
+				}
+			}
+			assertEquals(50 + 3, count);
+
+			// The tombstones shadow the flushed values from their own sstable too
+			store.flush();
+			store.stop(false);
+			store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		}
+		store.stop(false);
+	}
+
+	@Test
+	public void testLevel0OrderSurvivesRestart() {
+		StoreOptions options = new StoreOptions().setPartitionCount(2);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+
+		// All within the same second, the names of the tables cannot tell them apart
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				store.put(("key-" + i).getBytes(), ("value-" + round).getBytes());
+			}
+			store.flush();
+		}
+		store.put("unflushed".getBytes(), "value".getBytes());
+		assertTrue(new File(dataDir, Manifest.FILE_NAME).exists());
+
+		for (int restart = 0; restart < 2; restart++) {
+			store.stop(false);
+			store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+
+			for (int i = 0; i < 100; i++) {
+				assertEquals("value-4", new String(store.get(("key-" + i).getBytes())));
+			}
+			assertEquals("value", new String(store.get("unflushed".getBytes())));
+		}
+		store.stop(false);
+	}
+
+	@Test
+	public void testDeleteRange() throws InterruptedException {
+		StoreOptions options = new StoreOptions().setPartitionCount(2);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+
+		for (int i = 0; i < 100; i++) {
+			store.put(String.format("tenant-a/%03d", i).getBytes(), ("a-" + i).getBytes());
+			store.put(String.format("tenant-b/%03d", i).getBytes(), ("b-" + i).getBytes());
+		}
+		store.flush();
+		for (int i = 100; i < 150; i++) {
+			store.put(String.format("tenant-a/%03d", i).getBytes(), ("a-" + i).getBytes());
+		}
+
+		// One call for the whole prefix, flushed and unflushed keys alike
+		assertTrue(store.deleteRange("tenant-a/".getBytes(), "tenant-a0".getBytes()));
+		store.put("tenant-a/007".getBytes(), "again".getBytes());
+
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 150; i++) {
+				byte[] found = store.get(String.format("tenant-a/%03d", i).getBytes());
+				assertEquals((i == 7) ? "again" : null, (found == null) ? null : new String(found));
+			}
+
+			List<byte[]> keys = new ArrayList<byte[]>();
+			for (int i = 0; i < 100; i++) {
+				keys.add(String.format("tenant-b/%03d", i).getBytes());
+				keys.add(String.format("tenant-a/%03d", i).getBytes());
+			}
+			List<byte[]> values = store.multiGet(keys);
+			for (int i = 0; i < 100; i++) {
+				assertEquals("b-" + i, new String(values.get(2 * i)));
+				assertEquals((i == 7) ? "again" : null, (values.get(2 * i + 1) == null) ? null
+						: new String(values.get(2 * i + 1)));
+			}
+
+			int count = 0;
+			try (ScanIterator scan = store.scan("tenant-a/".getBytes(), null)) {
+				while (scan.hasNext()) {
+					String key = new String(scan.next().getKey().getData());
+					assertTrue(key.equals("tenant-a/007") || key.startsWith("tenant-b/"));
+					count++;
+				}
+			}
+			assertEquals(1 + 100, count);
+
+			// From the memtables, then from an sstable, then from the commit logs
+			if (round == 0) {
+				store.flush();
+			} else {
+				store.deleteRange("tenant-c/".getBytes(), "tenant-c0".getBytes());
+			}
+			store.stop(false);
+			store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		}
+
+		store.stop(false);
+	}
+
+	@Test
+	public void testOffHeapOverwritesTriggerFlush() throws InterruptedException {
+		StoreOptions options = new StoreOptions().setMemtableStorage(MemtableStorage.OFF_HEAP)
+				.setMemtableFlushBytes(1024 * 1024);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		byte[] value = new byte[1024];
+
+		// One key holds about 1KB, the overwritten values pile up in the arena
+		for (int i = 0; i < 4000; i++) {
+			value[0] = (byte) i;
+			assertTrue(store.put("hot-key".getBytes(), value));
+		}
+		for (int i = 0; i < 100 && store.numberOfImmutableMemtables() > 0; i++) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(0, store.numberOfImmutableMemtables());
+		assertTrue(store.getCompactor().getBytesFlushed() > 0);
+		assertEquals((byte) 3999, store.get("hot-key".getBytes())[0]);
+		store.stop(false);
+	}
+
+	@Test
+	public void testFlushOnThresholdWithBoundedQueue() throws InterruptedException {
+		StoreOptions options = new StoreOptions().setMemtableFlushBytes(64 * 1024).setMaxImmutableMemtables(2)
+				.setFlushThreads(2);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		byte[] value = new byte[100];
+
+		// Nothing polls, the writes themselves hand full memtables to the flush threads
+		for (int i = 0; i < 20000; i++) {
+			assertTrue(store.put(("key-" + i).getBytes(), value));
+			assertTrue(store.numberOfImmutableMemtables() <= 2);
+		}
+		for (int i = 0; i < 100 && store.numberOfImmutableMemtables() > 0; i++) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(0, store.numberOfImmutableMemtables());
+		assertTrue(store.getCompactor().getBytesFlushed() > 1024 * 1024);
+		assertTrue(store.getWriteStallCount() > 0);
+		for (int i = 0; i < 20000; i += 7) {
+			assertNotNull(store.get(("key-" + i).getBytes()));
+		}
+
+		store.stop(false);
+		store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		for (int i = 0; i < 20000; i += 7) {
+			assertNotNull(store.get(("key-" + i).getBytes()));
+		}
+		store.stop(false);
+	}
+
+	@Test
+	public void testMultiGetAndMultiPut() {
+		for (FileAccessChoice fileAccess : FileAccessChoice.values()) {
+			KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+					new StoreOptions().setFileAccessChoice(fileAccess).setPartitionCount(2));
+
+			List<byte[]> keys = new ArrayList<byte[]>();
+			List<byte[]> values = new ArrayList<byte[]>();
+			for (int i = 0; i < 2000; i++) {
+				keys.add(String.format("key-%05d", i).getBytes());
+				values.add(("value-" + i).getBytes());
+			}
+			assertTrue(store.multiPut(keys, values));
+			store.flush();
+
+			// Newer data in the memtables, including a delete
+			store.put(String.format("key-%05d", 7).getBytes(), "value-7-new".getBytes());
+			store.delete(String.format("key-%05d", 8).getBytes());
+
+			// Unsorted, with a duplicate and a key that was never written
+			List<byte[]> lookups = new ArrayList<byte[]>();
+			for (int i = 1999; i >= 0; i -= 3) {
+				lookups.add(String.format("key-%05d", i).getBytes());
+			}
+			lookups.add(String.format("key-%05d", 7).getBytes());
+			lookups.add(String.format("key-%05d", 8).getBytes());
+			lookups.add(String.format("key-%05d", 7).getBytes());
+			lookups.add("missing".getBytes());
+
+			List<byte[]> results = store.multiGet(lookups);
+			assertEquals(lookups.size(), results.size());
+			for (int n = 0, i = 1999; i >= 0; i -= 3, n++) {
+				String expected = (i == 7) ? "value-7-new" : (i == 8) ? null : "value-" + i;
+				assertEquals(expected, (results.get(n) == null) ? null : new String(results.get(n)));
+			}
+			int tail = results.size() - 4;
+			assertEquals("value-7-new", new String(results.get(tail)));
+			assertNull(results.get(tail + 1));
+			assertEquals("value-7-new", new String(results.get(tail + 2)));
+			assertNull(results.get(tail + 3));
+
+			store.stop(false);
+			TestUtils.deleteFolder(dataDir);
+			dataDir.mkdir();
+		}
+	}
+
+	@Test
+	public void testScan() {
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+				new StoreOptions().setPartitionCount(2));
+
+		// Oldest data in one sstable, newer overwrites in another, newest in memory
+		for (int i = 0; i < 1000; i++) {
+			store.put(String.format("key-%04d", i).getBytes(), ("v1-" + i).getBytes());
+		}
+		store.flush();
+		for (int i = 0; i < 1000; i += 2) {
+			store.put(String.format("key-%04d", i).getBytes(), ("v2-" + i).getBytes());
+		}
+		store.flush();
+		for (int i = 0; i < 1000; i += 3) {
+			store.put(String.format("key-%04d", i).getBytes(), ("v3-" + i).getBytes());
+		}
+		for (int i = 0; i < 1000; i += 5) {
+			store.delete(String.format("key-%04d", i).getBytes());
+		}
+		store.put("other".getBytes(), "outside".getBytes());
+
+		int expectedKey = 100;
+		try (ScanIterator scan = store.scan("key-0100".getBytes(), "key-0900".getBytes())) {
+			while (scan.hasNext()) {
+				KeyValuePair kvp = scan.next();
+				while (expectedKey % 5 == 0) {
+					expectedKey++;
+				}
+				String version = (expectedKey % 3 == 0) ? "v3-" : (expectedKey % 2 == 0) ? "v2-" : "v1-";
+				assertEquals(String.format("key-%04d", expectedKey), new String(kvp.getKey().getData()));
+				assertEquals(version + expectedKey, new String(kvp.getValue().getData()));
+				expectedKey++;
+			}
+		}
+		assertEquals(900, expectedKey);
+
+		// Open bounds, and a scan that is closed before it finishes
+		int count = 0;
+		for (ScanIterator scan = store.scan(null, null); scan.hasNext(); scan.next()) {
+			count++;
+		}
+		assertEquals(800 + 1, count);
+
+		ScanIterator partial = store.scan(null, null);
+		partial.next();
+		partial.close();
+		for (SSTable sstable : store.getVersionSet().getSSTablesAtLevel(0)) {
+			assertEquals(1, sstable.getRefCount());
+		}
+		store.stop(false);
+	}
+
+	@Test
+	public void testWriteBatch() {
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+				new StoreOptions().setPartitionCount(2));
+
+		for (int i = 0; i < 100; i++) {
+			store.put(("key-" + i).getBytes(), ("value-" + i).getBytes());
+		}
+		store.flush();
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 50; i < 150; i++) {
+			batch.put(("key-" + i).getBytes(), ("batch-" + i).getBytes());
+		}
+		batch.delete("key-0".getBytes());
+		assertEquals(101, batch.size());
+		assertTrue(store.write(batch));
+
+		assertNull(store.get("key-0".getBytes()));
+		assertEquals("value-1", new String(store.get("key-1".getBytes())));
+		assertEquals("batch-149", new String(store.get("key-149".getBytes())));
+
+		// The batch is only in the commit logs, so it has to come back from them
+		store.stop(false);
+		store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), new StoreOptions().setPartitionCount(2));
+
+		assertNull(store.get("key-0".getBytes()));
+		for (int i = 1; i < 150; i++) {
+			String expected = (i < 50) ? "value-" + i : "batch-" + i;
+			assertEquals(expected, new String(store.get(("key-" + i).getBytes())));
+		}
+		store.stop(false);
+	}
+
+	@Test
+	public void testValueSeparation() {
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+				new StoreOptions().setPartitionCount(2).setValueSeparationThreshold(1024));
+
+		byte[] large = new byte[4096];
+		long userBytes = 0;
+		for (int i = 0; i < 200; i++) {
+			Arrays.fill(large, (byte) i);
+			store.put(("key-" + i).getBytes(), large);
+			store.put(("small-" + i).getBytes(), ("value-" + i).getBytes());
+			userBytes += large.length;
+		}
+
+		// Looks like a pointer, so it must not be read as one
+		byte[] pointerLike = new byte[ValueLog.POINTER_SIZE];
+		pointerLike[0] = ValueLog.POINTER_MARKER;
+		store.put("pointer-like".getBytes(), pointerLike);
+
+		WriteBatch batch = new WriteBatch();
+		batch.put("batch-large".getBytes(), new byte[2048]);
+		batch.put("batch-small".getBytes(), "small".getBytes());
+		assertTrue(store.write(batch));
+		store.flush();
+
+		// Only pointers reach the sstables, each large value is written once
+		long sstableBytes = 0;
+		for (SSTable sstable : store.getVersionSet().getSSTablesAtLevel(0)) {
+			sstableBytes += sstable.getFileSize();
+		}
+		assertTrue(sstableBytes < userBytes / 10);
+		assertTrue(store.getValueLog().getAppendedBytes() < userBytes * 11 / 10);
+
+		store.stop(false);
+		store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+				new StoreOptions().setPartitionCount(2).setValueSeparationThreshold(1024));
+
+		for (int i = 0; i < 200; i++) {
+			Arrays.fill(large, (byte) i);
+			assertTrue(Arrays.equals(large, store.get(("key-" + i).getBytes())));
+			assertEquals("value-" + i, new String(store.get(("small-" + i).getBytes())));
+		}
+		assertTrue(Arrays.equals(pointerLike, store.get("pointer-like".getBytes())));
+		assertTrue(Arrays.equals(new byte[2048], store.get("batch-large".getBytes())));
+		assertEquals("small", new String(store.get("batch-small".getBytes())));
+
+		List<byte[]> found = store.multiGet(Arrays.asList("key-7".getBytes(), "small-7".getBytes()));
+		Arrays.fill(large, (byte) 7);
+		assertTrue(Arrays.equals(large, found.get(0)));
+
+		int count = 0;
+		try (ScanIterator scan = store.scan("key-".getBytes(), "key-~".getBytes())) {
+			while (scan.hasNext()) {
+				assertEquals(large.length, scan.next().getValue().length());
+				count++;
+			}
+		}
+		assertEquals(200, count);
+		store.stop(false);
+	}
+
+	@Test
+	public void testValueLogGarbageCollection() throws IOException {
+		StoreOptions options = new StoreOptions().setPartitionCount(2).setValueSeparationThreshold(1024)
+				.setValueLogFileSize(64 * 1024);
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+
+		byte[] value = new byte[4096];
+		for (int i = 0; i < 100; i++) {
+			Arrays.fill(value, (byte) i);
+			store.put(("key-" + i).getBytes(), value);
+		}
+		// Most of the first values die, some by overwrite and some by delete
+		for (int i = 0; i < 80; i++) {
+			if (i % 2 == 0) {
+				store.delete(("key-" + i).getBytes());
+			} else {
+				store.put(("key-" + i).getBytes(), ("short-" + i).getBytes());
+			}
+		}
+		store.flush();
+
+		int filesBefore = store.getValueLog().getFileCount();
+		assertTrue(store.getValueLogGarbageCollector().collect() > 0);
+		assertTrue(store.getValueLog().getFileCount() < filesBefore);
+		assertTrue(store.getValueLog().getReclaimedBytes() > 0);
+		int filesAfter = store.getValueLog().getFileCount();
+
+		store.stop(false);
+		// Not in the manifest, so not opened
+		assertTrue(new File(dataDir, ValueLog.VALUE_LOG_FILENAME_PREFIX + "9999999999").createNewFile());
+		store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), options);
+		assertEquals(filesAfter, store.getValueLog().getFileCount());
+
+		for (int i = 0; i < 100; i++) {
+			byte[] found = store.get(("key-" + i).getBytes());
+			if (i >= 80) {
+				Arrays.fill(value, (byte) i);
+				assertTrue(Arrays.equals(value, found));
+			} else if (i % 2 == 0) {
+				assertNull(found);
+			} else {
+				assertEquals("short-" + i, new String(found));
+			}
+		}
+		store.stop(false);
+	}
+
+	@Ignore
+	@Test
+	public void testWriteBatchThroughput() {
+		int count = 200000;
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			store.put(("single-" + i).getBytes(), ("value-" + i).getBytes());
+		}
+		long singleMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+		start = System.nanoTime();
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < count; i++) {
+			batch.put(("batch-" + i).getBytes(), ("value-" + i).getBytes());
+			if (batch.size() == 1000) {
+				store.write(batch);
+				batch.clear();
+			}
+		}
+		store.write(batch);
+		long batchMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+		System.out.println("Single puts: " + (count * 1000L / singleMillis) + " writes/s");
+		System.out.println("Batches of 1000: " + (count * 1000L / batchMillis) + " writes/s");
+		store.stop(false);
+	}
+
 	@Ignore
 	@Test
 	public void testHeavyWriteReadSimple() {
@@ -90,6 +657,46 @@ public class KeyValueStoreTest {
 		store.stop(false);
 	}
 
+	@Ignore
+	@Test
+	public void testGetAllocationRate() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		int count = 100000;
+
+		// With and without the block cache, every get goes to an sstable
+		for (long cacheBytes : new long[] { BlockCache.DEFAULT_CAPACITY_BYTES, 0 }) {
+			for (FileAccessChoice fileAccess : new FileAccessChoice[] { FileAccessChoice.SIMPLE,
+					FileAccessChoice.CHANNEL, FileAccessChoice.MEM_MAP }) {
+				KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(),
+						new StoreOptions().setFileAccessChoice(fileAccess).setBlockCacheBytes(cacheBytes));
+				byte[][] keys = new byte[count][];
+				for (int i = 0; i < count; i++) {
+					keys[i] = ("key-" + i).getBytes();
+					store.put(keys[i], ("value-" + i).getBytes());
+				}
+				store.flush();
+
+				for (int i = 0; i < count; i++) {
+					store.get(keys[i]);
+				}
+
+				long before = threads.getThreadAllocatedBytes(threadId);
+				for (int i = 0; i < count; i++) {
+					store.get(keys[(int) ((i * 7919L) % count)]);
+				}
+				long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+				System.out.println(fileAccess + (cacheBytes > 0 ? " cached" : " uncached") + ": "
+						+ (allocated / count) + " bytes allocated per get");
+				store.stop(false);
+				TestUtils.deleteFolder(dataDir);
+				dataDir.mkdir();
+			}
+		}
+	}
+
 	@Ignore
 	@Test
 	public void testHeavyWriteReadMemmap() {
@@ -0,0 +1,28 @@
+package com.poseidon.db;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import com.poseidon.db.io.ValueLog;
+
+public class ValueEncodingTest {
+
+	@Test
+	public void testMarkerShapedValuesRoundTrip() {
+		byte[] pointerLike = new byte[ValueLog.POINTER_SIZE];
+		pointerLike[0] = ValueLog.POINTER_MARKER;
+		byte[][] values = { {}, { Memtable.TOMBSTONE }, { ValueEncoding.ESCAPE }, { ValueEncoding.ESCAPE, 0 },
+				{ ValueEncoding.ESCAPE, ValueEncoding.ESCAPE, 0 }, { 0, 0 }, pointerLike, "plain".getBytes() };
+
+		for (byte[] value : values) {
+			byte[] stored = ValueEncoding.encode(value);
+			assertFalse(ValueEncoding.isTombstone(stored));
+			assertFalse(ValueEncoding.isPointer(stored));
+			assertArrayEquals(value, ValueEncoding.decode(stored));
+		}
+
+		// Only values that could be misread pay for the escape byte
+		byte[] plain = "plain".getBytes();
+		assertSame(plain, ValueEncoding.encode(plain));
+		assertEquals(2, ValueEncoding.encode(new byte[] { Memtable.TOMBSTONE }).length);
+	}
+}
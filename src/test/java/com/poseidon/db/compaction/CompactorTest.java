@@ -0,0 +1,321 @@
+package com.poseidon.db.compaction;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.poseidon.db.Memtable;
+import com.poseidon.db.StoreOptions;
+import com.poseidon.db.TestUtils;
+import com.poseidon.db.io.SSTable;
+import com.poseidon.db.io.VersionSet;
+import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.RangeTombstone;
+
+public class CompactorTest {
+
+	private File dataDir;
+	private VersionSet versionSet;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = new File("/tmp/geez");
+		dataDir.mkdir();
+		versionSet = new VersionSet();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		versionSet.close();
+		TestUtils.deleteFolder(dataDir);
+	}
+
+	@Test
+	public void testOverwritesAreMerged() throws IOException, InterruptedException {
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = 0; i < 500; i++) {
+				mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+			}
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			Thread.sleep(1000);
+		}
+
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), new StoreOptions(), versionSet);
+		assertTrue(compactor.compactOnce());
+
+		List<SSTable> sstables = versionSet.getSSTablesAtLevel(0);
+		assertEquals(1, sstables.size());
+		assertEquals(500, sstables.get(0).numberOfItems());
+		assertTrue(compactor.getBytesWritten() < compactor.getBytesRead());
+
+		for (int i = 0; i < 500; i++) {
+			assertEquals("value-3-" + i, new String(versionSet.find(key(i)).getData()));
+		}
+		assertFalse(compactor.compactOnce());
+	}
+
+	@Test
+	public void testTombstonesAreDropped() throws IOException, InterruptedException {
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = 0; i < 500; i++) {
+				if (round == 3 && i % 2 == 0) {
+					mem.delete(key(i), true);
+				} else {
+					mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+				}
+			}
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			Thread.sleep(1000);
+		}
+
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), new StoreOptions(), versionSet);
+		assertTrue(compactor.compactOnce());
+
+		List<SSTable> sstables = versionSet.getSSTablesAtLevel(0);
+		assertEquals(1, sstables.size());
+		assertEquals(250, sstables.get(0).numberOfItems());
+
+		for (int i = 0; i < 500; i++) {
+			DataItem value = versionSet.find(key(i));
+			if (i % 2 == 0) {
+				assertNull(value);
+			} else {
+				assertEquals("value-3-" + i, new String(value.getData()));
+			}
+		}
+	}
+
+	@Test
+	public void testRangeTombstonesDropCoveredEntries() throws IOException, InterruptedException {
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			if (round == 3) {
+				assertTrue(mem.deleteRange(new RangeTombstone(key(0), key(250), 0, 1)));
+				mem.put(key(10), new DataItem("value-3-10".getBytes()));
+			}
+			for (int i = 250; i < 500; i++) {
+				mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+			}
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			if (round == 0) {
+				mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+				for (int i = 0; i < 250; i++) {
+					mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+				}
+				versionSet.addSSTable(
+						SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			}
+			Thread.sleep(1000);
+		}
+		assertTrue(isDeleted(versionSet.find(key(0))));
+
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), new StoreOptions(), versionSet);
+		assertTrue(compactor.compactOnce());
+
+		// Nothing is older than the merged tables, so the tombstone went with what it covered
+		List<SSTable> sstables = versionSet.getSSTablesAtLevel(0);
+		assertEquals(1, sstables.size());
+		assertEquals(250 + 1, sstables.get(0).numberOfItems());
+		assertTrue(sstables.get(0).getRangeTombstones().isEmpty());
+
+		for (int i = 0; i < 500; i++) {
+			DataItem value = versionSet.find(key(i));
+			if (i < 250 && i != 10) {
+				assertNull(value);
+			} else {
+				assertEquals("value-3-" + i, new String(value.getData()));
+			}
+		}
+	}
+
+	@Test
+	public void testLeveledCompaction() throws IOException, InterruptedException {
+		StoreOptions options = new StoreOptions().setCompactionStyle(CompactionStyle.LEVELED)
+				.setLevel1TargetBytes(16 * 1024).setTargetFileSize(8 * 1024);
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), options, versionSet);
+
+		// Every round overlaps half of the previous one
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = round * 250; i < round * 250 + 500; i++) {
+				mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+			}
+			SSTable sstable = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
+			versionSet.addSSTable(sstable);
+			compactor.recordFlush(sstable);
+			Thread.sleep(1000);
+		}
+
+		while (compactor.compactOnce()) {
+		}
+
+		assertTrue(versionSet.getSSTablesAtLevel(0).isEmpty());
+		assertFalse(versionSet.getSSTablesAtLevel(2).isEmpty());
+
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			List<SSTable> sstables = versionSet.getSSTablesAtLevel(level);
+			for (int j = 1; j < sstables.size(); j++) {
+				assertTrue(sstables.get(j - 1).getLastKey().compareTo(sstables.get(j).getFirstKey()) < 0);
+			}
+		}
+
+		long lookupsBefore = versionSet.getLookupCount();
+		long[] probesBefore = new long[SSTable.MAX_LEVELS];
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			probesBefore[level] = versionSet.getProbeCount(level);
+		}
+
+		for (int i = 0; i < 1250; i++) {
+			int round = Math.min(3, i / 250);
+			assertEquals("value-" + round + "-" + i, new String(versionSet.find(key(i)).getData()));
+		}
+
+		long lookups = versionSet.getLookupCount() - lookupsBefore;
+		for (int level = 1; level < SSTable.MAX_LEVELS; level++) {
+			assertTrue(versionSet.getProbeCount(level) - probesBefore[level] <= lookups);
+		}
+		assertTrue(compactor.getWriteAmplification(1) > 0);
+		assertTrue(compactor.getWriteAmplification() > 1);
+
+		// The summary has a row with the file count of every level holding tables
+		String description = compactor.describeLevels();
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			int files = versionSet.getSSTablesAtLevel(level).size();
+			if (files > 0) {
+				assertTrue(description.contains(String.format("L%-5d %6d ", level, files)));
+			}
+		}
+	}
+
+	@Test
+	public void testLeveledOutputFiltersAreSized() throws IOException {
+		StoreOptions options = new StoreOptions().setCompactionStyle(CompactionStyle.LEVELED)
+				.setTargetFileSize(32 * 1024);
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), options, versionSet);
+
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = round; i < 8000; i += 4) {
+				mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+			}
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+		}
+
+		assertTrue(compactor.compactOnce());
+
+		List<SSTable> sstables = versionSet.getSSTablesAtLevel(1);
+		assertTrue(sstables.size() > 1);
+		for (SSTable sstable : sstables) {
+			int falsePositives = 0;
+			for (int i = 0; i < 2000; i++) {
+				if (sstable.mightContain(key(100000 + i))) {
+					falsePositives++;
+				}
+			}
+			assertTrue(falsePositives + " false positives out of 2000", falsePositives < 100);
+		}
+		for (int i = 0; i < 8000; i += 97) {
+			assertEquals("value-" + (i % 4) + "-" + i, new String(versionSet.find(key(i)).getData()));
+		}
+	}
+
+	@Test
+	public void testLeveledTombstonesAreDropped() throws IOException, InterruptedException {
+		StoreOptions options = new StoreOptions().setCompactionStyle(CompactionStyle.LEVELED);
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), options, versionSet);
+
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = 0; i < 500; i++) {
+				if (round == 3 && i % 2 == 0) {
+					mem.delete(key(i), true);
+				} else {
+					mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+				}
+			}
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			Thread.sleep(1000);
+		}
+
+		assertTrue(compactor.compactOnce());
+
+		List<SSTable> sstables = versionSet.getSSTablesAtLevel(1);
+		assertEquals(1, sstables.size());
+		assertEquals(250, sstables.get(0).numberOfItems());
+		assertNull(versionSet.find(key(0)));
+		assertEquals("value-3-1", new String(versionSet.find(key(1)).getData()));
+	}
+
+	@Test
+	public void testLeveledRangeTombstones() throws IOException, InterruptedException {
+		StoreOptions options = new StoreOptions().setCompactionStyle(CompactionStyle.LEVELED)
+				.setLevel1TargetBytes(16 * 1024).setTargetFileSize(8 * 1024);
+		Compactor compactor = new Compactor(dataDir.getAbsolutePath(), options, versionSet);
+
+		for (int round = 0; round < 4; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = round * 250; i < round * 250 + 500; i++) {
+				mem.put(key(i), new DataItem(("value-" + round + "-" + i).getBytes()));
+			}
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			Thread.sleep(1000);
+		}
+		while (compactor.compactOnce()) {
+		}
+
+		// Keys put after the range delete in the same memtable are newer than it
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		assertTrue(mem.deleteRange(new RangeTombstone(key(300), key(900), 0, 1)));
+		mem.put(key(500), new DataItem("value-4-500".getBytes()));
+		for (int round = 4; round < 8; round++) {
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE));
+			Thread.sleep(1000);
+			mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			mem.put(key(2000 + round), new DataItem(("value-" + round).getBytes()));
+		}
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < 1250; i++) {
+				DataItem value = versionSet.find(key(i));
+				if (i == 500) {
+					assertEquals("value-4-500", new String(value.getData()));
+				} else if (i >= 300 && i < 900) {
+					assertTrue(isDeleted(value));
+				} else {
+					assertEquals("value-" + Math.min(3, i / 250) + "-" + i, new String(value.getData()));
+				}
+			}
+
+			while (compactor.compactOnce()) {
+			}
+		}
+
+		// Covered entries the tombstones met on their way down are gone, and no level overlaps itself
+		int itemCount = 0;
+		for (int level = 0; level < SSTable.MAX_LEVELS; level++) {
+			List<SSTable> sstables = versionSet.getSSTablesAtLevel(level);
+			for (int j = 0; j < sstables.size(); j++) {
+				itemCount += sstables.get(j).numberOfItems();
+				if (level > 0 && j > 0) {
+					assertTrue(sstables.get(j - 1).getLastKey().compareTo(sstables.get(j).getFirstKey()) <= 0);
+				}
+			}
+		}
+		assertTrue(itemCount < 1250);
+	}
+
+	private static boolean isDeleted(DataItem value) {
+		return value == null || value.equals(new DataItem(new byte[] { Memtable.TOMBSTONE }));
+	}
+
+	private static DataItem key(int i) {
+		return new DataItem(("key-" + String.format("%04d", i)).getBytes());
+	}
+}
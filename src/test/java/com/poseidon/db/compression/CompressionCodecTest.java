@@ -0,0 +1,51 @@
+package com.poseidon.db.compression;
+
+import static org.junit.Assert.*;
+import java.util.Random;
+import org.junit.Test;
+
+public class CompressionCodecTest {
+
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(7);
+		byte[] noise = new byte[5000];
+		random.nextBytes(noise);
+
+		StringBuilder json = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			json.append("{\"id\":").append(i).append(",\"name\":\"user-").append(random.nextInt(1000))
+					.append("\",\"active\":true,\"tags\":[\"a\",\"b\"]}");
+		}
+
+		byte[][] inputs = { new byte[0], "a".getBytes(), "abcdabcdabcdabcdabcd".getBytes(), new byte[100000],
+				noise, json.toString().getBytes() };
+
+		for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+			CompressionCodec codec = compression.getCodec();
+			for (byte[] input : inputs) {
+				byte[] compressed = codec.compress(input, 0, input.length);
+				assertArrayEquals(input, codec.decompress(compressed, 0, compressed.length, input.length));
+			}
+
+			byte[] text = json.toString().getBytes();
+			assertTrue(compression + " did not compress", codec.compress(text, 0, text.length).length * 3 < text.length);
+		}
+	}
+
+	@Test
+	public void testOffsets() {
+		byte[] input = "xxxxhello hello hello hello hello hello hello helloyyyy".getBytes();
+		byte[] framed = new byte[100];
+
+		for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+			CompressionCodec codec = compression.getCodec();
+			byte[] compressed = codec.compress(input, 4, input.length - 8);
+			System.arraycopy(compressed, 0, framed, 10, compressed.length);
+
+			assertEquals("hello hello hello hello hello hello hello hello",
+					new String(codec.decompress(framed, 10, compressed.length, input.length - 8)));
+		}
+		assertEquals(Compression.LZ, Compression.fromId(Compression.LZ.getId()));
+	}
+}
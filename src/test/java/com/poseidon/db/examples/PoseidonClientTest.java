@@ -3,14 +3,22 @@ package com.poseidon.db.examples;
 import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import com.poseidon.db.KeyValueStore;
 import com.poseidon.db.TestUtils;
+import com.poseidon.db.client.PoseidonPipelinedClient;
 import com.poseidon.db.client.PoseidonRESTClient;
 import com.poseidon.db.client.PoseidonSocketClient;
 import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.services.NioSocketServer;
 import com.poseidon.db.services.RESTServer;
 import com.poseidon.db.services.RequestHandler;
 
@@ -76,7 +84,38 @@ public class PoseidonClientTest {
 
 		client.delete(keywords[10].getBytes());
 		assertEquals(client.get(keywords[10].getBytes()), null);
-		
+
+		List<byte[]> batchKeys = new ArrayList<byte[]>();
+		List<byte[]> batchValues = new ArrayList<byte[]>();
+		for (int i = 0; i < 300; i++) {
+			batchKeys.add(("batch-" + i).getBytes());
+			batchValues.add(("batch-value-" + i).getBytes());
+		}
+		assertTrue(client.multiPut(batchKeys, batchValues));
+		batchKeys.add(keywords[10].getBytes());
+
+		List<byte[]> batchResults = client.multiGet(batchKeys);
+		for (int i = 0; i < 300; i++) {
+			assertEquals("batch-value-" + i, new String(batchResults.get(i)));
+		}
+		assertNull(batchResults.get(300));
+
+		// Large enough to come back in several chunks
+		byte[] largeValue = new byte[2048];
+		for (int i = 0; i < 100; i++) {
+			client.put(String.format("scan-%03d", i).getBytes(), largeValue);
+		}
+		int scanned = 0;
+		try (PoseidonSocketClient.ScanStream scan = client.scan("scan-".getBytes(), "scan.".getBytes())) {
+			while (scan.hasNext()) {
+				KeyValuePair kvp = scan.next();
+				assertEquals(String.format("scan-%03d", scanned), new String(kvp.getKey().getData()));
+				assertEquals(2048, kvp.getValue().length());
+				scanned++;
+			}
+		}
+		assertEquals(100, scanned);
+
 		// REST Client
 		
 		String baseUrl = "http://" + RESTServer.HOSTNAME + ":" + RESTServer.PORT + "/" + RESTServer.DATA_ACCESS_PATH;
@@ -101,4 +140,84 @@ public class PoseidonClientTest {
 		
 		requestHandler.stop(false);
 	}
+
+	@Test
+	public void testPipelinedClient() throws Exception {
+		KeyValueStore store = KeyValueStore.getNewInstance(dataDir.getAbsolutePath(), FileAccessChoice.CHANNEL);
+		NioSocketServer server = new NioSocketServer(store, 5001);
+		server.start();
+
+		try (PoseidonPipelinedClient client = new PoseidonPipelinedClient("localhost", 5001)) {
+			// Many requests on one connection without waiting for each answer
+			List<CompletableFuture<Boolean>> puts = new ArrayList<CompletableFuture<Boolean>>();
+			for (int i = 0; i < 5000; i++) {
+				puts.add(client.putAsync(("key-" + i).getBytes(), ("value-" + i).getBytes()));
+			}
+			for (CompletableFuture<Boolean> put : puts) {
+				assertTrue(put.get());
+			}
+
+			List<CompletableFuture<byte[]>> gets = new ArrayList<CompletableFuture<byte[]>>();
+			for (int i = 0; i < 5000; i++) {
+				gets.add(client.getAsync(("key-" + i).getBytes()));
+			}
+			for (int i = 0; i < 5000; i++) {
+				assertEquals("value-" + i, new String(gets.get(i).get()));
+			}
+
+			// A value bigger than a pooled buffer
+			byte[] largeValue = new byte[200 * 1024];
+			Arrays.fill(largeValue, (byte) 7);
+			assertTrue(client.put("large".getBytes(), largeValue));
+			assertTrue(Arrays.equals(largeValue, client.get("large".getBytes())));
+
+			List<byte[]> batchKeys = new ArrayList<byte[]>();
+			List<byte[]> batchValues = new ArrayList<byte[]>();
+			for (int i = 0; i < 300; i++) {
+				batchKeys.add(("batch-" + i).getBytes());
+				batchValues.add(("batch-value-" + i).getBytes());
+			}
+			assertTrue(client.multiPut(batchKeys, batchValues));
+			batchKeys.add("missing".getBytes());
+
+			List<byte[]> batchResults = client.multiGet(batchKeys);
+			for (int i = 0; i < 300; i++) {
+				assertEquals("batch-value-" + i, new String(batchResults.get(i)));
+			}
+			assertNull(batchResults.get(300));
+
+			assertTrue(client.delete("key-10".getBytes()));
+			assertNull(client.get("key-10".getBytes()));
+			assertNull(client.get("missing".getBytes()));
+			assertEquals(0, client.getPendingCount());
+		}
+
+		// Several clients, each with its own persistent connection
+		AtomicInteger failures = new AtomicInteger(0);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int id = t;
+			threads[t] = new Thread(() -> {
+				try (PoseidonPipelinedClient client = new PoseidonPipelinedClient("localhost", 5001)) {
+					for (int i = 0; i < 1000; i++) {
+						byte[] key = ("client-" + id + "-" + i).getBytes();
+						client.put(key, key);
+						if (!Arrays.equals(key, client.get(key))) {
+							failures.incrementAndGet();
+						}
+					}
+				} catch (IOException e) {
+					failures.incrementAndGet();
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failures.get());
+
+		server.stop(false);
+		store.stop(false);
+	}
 }
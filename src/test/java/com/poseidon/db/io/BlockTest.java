@@ -0,0 +1,98 @@
+package com.poseidon.db.io;
+
+import static org.junit.Assert.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+
+public class BlockTest {
+
+	@Test
+	public void testGetAroundRestartPoints() {
+		BlockBuilder builder = new BlockBuilder(4096);
+		for (int i = 0; i < 100; i++) {
+			builder.add(("key-" + String.format("%03d", i * 2)).getBytes(), ("value-" + i).getBytes());
+		}
+		assertEquals(100, builder.getEntryCount());
+
+		byte[] data = builder.finish();
+		assertEquals(builder.currentSize(), data.length);
+		Block block = new Block(data);
+
+		for (int i = 0; i < 100; i++) {
+			DataItem v = block.get(new DataItem(("key-" + String.format("%03d", i * 2)).getBytes()));
+			assertEquals("value-" + i, new String(v.getData()));
+
+			// Odd keys fall between two entries, some of them right before a restart point
+			assertNull(block.get(new DataItem(("key-" + String.format("%03d", i * 2 + 1)).getBytes())));
+		}
+		assertNull(block.get(new DataItem("key".getBytes())));
+		assertNull(block.get(new DataItem("key-999".getBytes())));
+		assertEquals("key-198", new String(block.getLastKey().getData()));
+	}
+
+	@Test
+	public void testIteratorRebuildsKeys() {
+		BlockBuilder builder = new BlockBuilder(64);
+		String[] keys = { "a", "ab", "abc", "abd", "b", "ba", "bab", "c" };
+		for (int round = 0; round < 2; round++) {
+			builder.reset();
+			for (String key : keys) {
+				builder.add(key.getBytes(), key.toUpperCase().getBytes());
+			}
+
+			Iterator<KeyValuePair> iterator = new Block(builder.finish()).iterator();
+			for (String key : keys) {
+				KeyValuePair kvp = iterator.next();
+				assertEquals(key, new String(kvp.getKey().getData()));
+				assertEquals(key.toUpperCase(), new String(kvp.getValue().getData()));
+			}
+			assertFalse(iterator.hasNext());
+		}
+	}
+
+	@Test
+	public void testFindComparesKeysInPlace() {
+		// Short keys over a small alphabet with negative bytes share many prefixes
+		Random random = new Random(42);
+		TreeMap<DataItem, DataItem> entries = new TreeMap<DataItem, DataItem>();
+		byte[] alphabet = { 'a', 'b', (byte) 0x80, (byte) 0xFF };
+		while (entries.size() < 500) {
+			byte[] key = new byte[1 + random.nextInt(6)];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+			entries.put(new DataItem(key), new DataItem(("value-" + entries.size()).getBytes()));
+		}
+
+		BlockBuilder builder = new BlockBuilder(4096);
+		for (Map.Entry<DataItem, DataItem> entry : entries.entrySet()) {
+			builder.add(entry.getKey().getData(), entry.getValue().getData());
+		}
+		byte[] data = builder.finish();
+
+		// Found in a direct buffer that holds more than the block
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 16);
+		direct.put(data);
+		direct.clear();
+		Block block = new Block(data);
+
+		for (int round = 0; round < 5000; round++) {
+			byte[] key = new byte[1 + random.nextInt(7)];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+			DataItem keyDt = new DataItem(key);
+			assertEquals(entries.get(keyDt), block.get(keyDt));
+			assertEquals(entries.get(keyDt), Block.find(direct, data.length, keyDt));
+		}
+		for (Map.Entry<DataItem, DataItem> entry : entries.entrySet()) {
+			assertEquals(entry.getValue(), Block.find(direct, data.length, entry.getKey()));
+		}
+	}
+}
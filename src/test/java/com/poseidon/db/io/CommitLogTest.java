@@ -1,16 +1,26 @@
 package com.poseidon.db.io;
 
 import static org.junit.Assert.*;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
+import com.poseidon.db.Memtable;
 import com.poseidon.db.TestUtils;
+import com.poseidon.db.WriteBatch;
 import com.poseidon.db.io.CommitLog;
+import com.poseidon.db.io.CommitLog.Durability;
 import com.poseidon.db.representation.DataItem;
 import com.poseidon.db.representation.KeyValuePair;
 import com.poseidon.db.utils.Pair;
@@ -112,4 +122,206 @@ public class CommitLogTest {
 		assertEquals(kvps1.size()/2, kvps2.size());
 	}
 
+	@Test
+	public void testGroupCommitDurabilityModes() throws IOException, InterruptedException {
+		for (Durability durability : Durability.values()) {
+			String commitLogPath = dataDir.getAbsolutePath() + File.separator + CommitLog.LOG_FILE_NAME_PREFIX
+					+ durability;
+			CommitLog log = new CommitLog(commitLogPath, new ReentrantReadWriteLock(), durability, 10);
+
+			writeConcurrently(log, 4, 500);
+
+			HashSet<KeyValuePair> kvps = new HashSet<KeyValuePair>();
+			for (Pair<Byte, KeyValuePair> pair : log.getAllUnsavedOperations()) {
+				kvps.add(pair.getRight());
+			}
+
+			assertEquals(2000, kvps.size());
+			assertEquals(2000, log.getRecordCount());
+			if (durability == Durability.NONE) {
+				assertEquals(0, log.getSyncCount());
+			} else {
+				assertTrue(log.getSyncCount() > 0);
+			}
+
+			log.closeLogFile();
+		}
+	}
+
+	@Test
+	public void testSyncListenerRunsBeforeEveryForce() throws IOException, InterruptedException {
+		for (Durability durability : Durability.values()) {
+			String commitLogPath = dataDir.getAbsolutePath() + File.separator + CommitLog.LOG_FILE_NAME_PREFIX
+					+ durability;
+			CommitLog log = new CommitLog(commitLogPath, new ReentrantReadWriteLock(), durability, 10);
+			final AtomicLong listenerCalls = new AtomicLong(0);
+			log.setSyncListener(() -> {
+				// Every force so far has already counted
+				assertEquals(listenerCalls.getAndIncrement(), log.getSyncCount());
+			});
+
+			writeConcurrently(log, 4, 200);
+			log.flush();
+
+			assertEquals(log.getSyncCount(), listenerCalls.get());
+			if (durability != Durability.NONE) {
+				assertTrue(listenerCalls.get() > 0);
+			}
+			log.closeLogFile();
+		}
+	}
+
+	@Test
+	public void testBatchIsReplayedAllOrNothing() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		for (int i = 0; i < 10; i++) {
+			mem.put(new DataItem(("single-" + i).getBytes()), new DataItem(("value-" + i).getBytes()));
+		}
+
+		WriteBatch batch = new WriteBatch();
+		for (int i = 0; i < 100; i++) {
+			batch.put(("batch-" + i).getBytes(), ("value-" + i).getBytes());
+		}
+		batch.delete("single-0".getBytes());
+		assertTrue(mem.apply(batch));
+		assertEquals(1, mem.getCommitLog().getRecordCount() - 10);
+
+		String logFilePath = mem.getLogFilePath();
+		mem.cleanUp();
+
+		CommitLog log = new CommitLog(logFilePath, new ReentrantReadWriteLock());
+		List<Pair<Byte, KeyValuePair>> operations = log.getAllUnsavedOperations();
+		assertEquals(111, operations.size());
+		assertEquals(new DataItem(new byte[] { Memtable.TOMBSTONE }), operations.get(110).getRight().getValue());
+		log.closeLogFile();
+
+		// Lose the last few bytes as if the process died in the middle of the write
+		try (RandomAccessFile file = new RandomAccessFile(logFilePath, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		log = new CommitLog(logFilePath, new ReentrantReadWriteLock());
+		operations = log.getAllUnsavedOperations();
+		assertEquals(10, operations.size());
+		for (Pair<Byte, KeyValuePair> pair : operations) {
+			assertTrue(new String(pair.getRight().getKey().getData()).startsWith("single-"));
+		}
+		log.closeLogFile();
+	}
+
+	@Test
+	public void testCorruptRecordTruncatesLog() throws IOException {
+		String commitLogPath = dataDir.getAbsolutePath() + File.separator + CommitLog.LOG_FILE_NAME_PREFIX + 111;
+		CommitLog log = new CommitLog(commitLogPath, new ReentrantReadWriteLock());
+		writeRecords(log, 0, 50);
+		long goodLength = new File(commitLogPath).length();
+		writeRecords(log, 50, 100);
+		log.closeLogFile();
+
+		// Flip a byte in the key of the 51st record
+		try (RandomAccessFile file = new RandomAccessFile(commitLogPath, "rw")) {
+			file.seek(goodLength + 20);
+			byte b = file.readByte();
+			file.seek(goodLength + 20);
+			file.writeByte(b ^ 0x1);
+		}
+
+		log = new CommitLog(commitLogPath, new ReentrantReadWriteLock());
+		final List<String> keys = new ArrayList<String>();
+		assertEquals(50, log.replay((op, key, value) -> keys.add(new String(key.getData()))));
+		assertEquals("test-key-0", keys.get(0));
+		assertEquals("test-key-49", keys.get(49));
+		assertEquals(goodLength, new File(commitLogPath).length());
+
+		// Appends go after the last good record
+		writeRecords(log, 100, 101);
+		assertEquals(51, log.getAllUnsavedOperations().size());
+		log.closeLogFile();
+	}
+
+	@Test
+	public void testLogWithoutHeaderIsReplayed() throws IOException {
+		String commitLogPath = dataDir.getAbsolutePath() + File.separator + CommitLog.LOG_FILE_NAME_PREFIX + 111;
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(commitLogPath))) {
+			for (int i = 0; i < 10; i++) {
+				out.write(CommitLog.LogOperation.PUT.getnumericValue());
+				new KeyValuePair(new DataItem(("test-key-" + i).getBytes()),
+						new DataItem(("test-value-" + i).getBytes())).writeToFile(out);
+			}
+			// Cut short in the middle of the key
+			out.write(CommitLog.LogOperation.PUT.getnumericValue());
+			out.writeInt(20);
+			out.writeInt(10);
+			out.write("test".getBytes());
+		}
+
+		CommitLog log = new CommitLog(commitLogPath, new ReentrantReadWriteLock());
+		List<Pair<Byte, KeyValuePair>> operations = log.getAllUnsavedOperations();
+		assertEquals(10, operations.size());
+		assertEquals(new DataItem("test-value-9".getBytes()), operations.get(9).getRight().getValue());
+
+		try {
+			writeRecords(log, 10, 11);
+			fail("Logs without a header are only replayed");
+		} catch (IOException e) {
+			// Expected
+		}
+		log.closeLogFile();
+	}
+
+	@Ignore
+	@Test
+	public void testDurabilityModeThroughput() throws IOException, InterruptedException {
+		int threads = 8, recordsPerThread = 2000;
+
+		for (Durability durability : Durability.values()) {
+			String commitLogPath = dataDir.getAbsolutePath() + File.separator + CommitLog.LOG_FILE_NAME_PREFIX
+					+ durability;
+			CommitLog log = new CommitLog(commitLogPath, new ReentrantReadWriteLock(), durability,
+					CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+
+			long start = System.nanoTime();
+			writeConcurrently(log, threads, recordsPerThread);
+			log.flush();
+			long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+			System.out.println(durability + ": " + (log.getRecordCount() * 1000 / elapsedMillis) + " writes/s, "
+					+ log.getSyncCount() + " fsyncs, avg fsync " + log.getAverageSyncMicros() + " us, max fsync "
+					+ log.getMaxSyncMicros() + " us");
+
+			log.destroy();
+		}
+	}
+
+	private void writeRecords(CommitLog log, int from, int to) throws IOException {
+		for (int i = from; i < to; i++) {
+			log.writeToLog(CommitLog.LogOperation.PUT, new KeyValuePair(new DataItem(("test-key-" + i).getBytes()),
+					new DataItem(("test-value-" + i).getBytes())));
+		}
+	}
+
+	private void writeConcurrently(CommitLog log, int threads, int recordsPerThread) throws InterruptedException {
+		Thread[] writers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * recordsPerThread;
+			writers[t] = new Thread(() -> {
+				for (int i = offset; i < offset + recordsPerThread; i++) {
+					DataItem key = new DataItem(("test-key-" + i).getBytes());
+					DataItem value = new DataItem(("test-value-" + i).getBytes());
+					try {
+						log.writeToLog(CommitLog.LogOperation.PUT, new KeyValuePair(key, value));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			writers[t].start();
+		}
+
+		for (Thread writer : writers) {
+			writer.join();
+		}
+	}
+
 }
@@ -0,0 +1,201 @@
+package com.poseidon.db.io;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.poseidon.db.Memtable;
+import com.poseidon.db.TestUtils;
+import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.representation.DataItem;
+
+public class ManifestTest {
+
+	private File dataDir;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = new File("/tmp/geez");
+		dataDir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestUtils.deleteFolder(dataDir);
+	}
+
+	@Test
+	public void testReplayRestoresTablesAndCommitLogs() throws IOException {
+		Manifest manifest = Manifest.open(dataDir.getAbsolutePath());
+		assertFalse(manifest.existed());
+		manifest.writeSnapshot(Version.empty(), Collections.<File> emptyList(), Collections.<File> emptyList());
+
+		VersionSet versionSet = new VersionSet();
+		versionSet.setManifest(manifest);
+
+		SSTable a = createSSTable("a");
+		SSTable b = createSSTable("b");
+		SSTable c = createSSTable("c");
+		SSTable d = createSSTable("d");
+		versionSet.addSSTable(a);
+		versionSet.addSSTable(b);
+		versionSet.addSSTable(c);
+		SSTable merged = createSSTable("merged");
+		versionSet.replaceSSTables(Arrays.asList(a, b), Arrays.asList(merged));
+		versionSet.addSSTable(d);
+
+		// Logged, but the file is never renamed
+		String movedPath = dataDir.getAbsolutePath() + File.separator + SSTable.getSSTableFileName(1);
+		manifest.logMove(c, movedPath, 1);
+
+		manifest.addCommitLog(dataDir.getAbsolutePath() + File.separator + "commit-log-1");
+		manifest.addCommitLog(dataDir.getAbsolutePath() + File.separator + "commit-log-2");
+		manifest.removeCommitLog(dataDir.getAbsolutePath() + File.separator + "commit-log-1");
+		manifest.close();
+
+		List<String> expected = Arrays.asList(name(merged), name(d), new File(movedPath).getName());
+		versionSet.close();
+
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		assertTrue(manifest.existed());
+		List<String> names = new ArrayList<String>();
+		for (Manifest.TableEntry entry : manifest.getSSTables()) {
+			names.add(entry.getName());
+			assertEquals(100, entry.getItemCount());
+		}
+		assertEquals(expected, names);
+		assertEquals(Arrays.asList(new File(dataDir, "commit-log-2")), manifest.getCommitLogFiles());
+
+		VersionSet reloaded = new VersionSet();
+		reloaded.loadSSTables(manifest, FileAccessChoice.SIMPLE);
+		assertEquals(2, reloaded.getSSTablesAtLevel(0).size());
+		assertEquals(name(d), name(reloaded.getSSTablesAtLevel(0).get(1)));
+		assertEquals(1, reloaded.getSSTablesAtLevel(1).size());
+		assertTrue(new File(movedPath).exists());
+		assertEquals("d-1", new String(reloaded.find(key(1)).getData()));
+
+		manifest.deleteObsoleteFiles();
+		assertFalse(new File(a.getSSTableFilePath()).exists());
+		assertFalse(new File(b.getSSTableFilePath()).exists());
+		reloaded.close();
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws IOException {
+		Manifest manifest = Manifest.open(dataDir.getAbsolutePath());
+		manifest.writeSnapshot(Version.empty(), Collections.<File> emptyList(), Collections.<File> emptyList());
+		manifest.addCommitLog(dataDir.getAbsolutePath() + File.separator + "commit-log-1");
+		manifest.addCommitLog(dataDir.getAbsolutePath() + File.separator + "commit-log-2");
+		manifest.close();
+
+		File file = new File(dataDir, Manifest.FILE_NAME);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		assertEquals(Arrays.asList(new File(dataDir, "commit-log-1")), manifest.getCommitLogFiles());
+
+		// The snapshot drops the torn record for good
+		manifest.writeSnapshot(Version.empty(), manifest.getCommitLogFiles(), manifest.getValueLogFiles());
+		manifest.addCommitLog(dataDir.getAbsolutePath() + File.separator + "commit-log-3");
+		manifest.close();
+
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		assertEquals(Arrays.asList(new File(dataDir, "commit-log-1"), new File(dataDir, "commit-log-3")),
+				manifest.getCommitLogFiles());
+		manifest.close();
+	}
+
+	@Test
+	public void testValueLogsAreListed() throws IOException {
+		Manifest manifest = Manifest.open(dataDir.getAbsolutePath());
+		manifest.writeSnapshot(Version.empty(), Collections.<File> emptyList(), Collections.<File> emptyList());
+		File first = new File(dataDir, ValueLog.VALUE_LOG_FILENAME_PREFIX + "0000000000");
+		File second = new File(dataDir, ValueLog.VALUE_LOG_FILENAME_PREFIX + "0000000001");
+		manifest.addValueLog(first.getAbsolutePath());
+		assertTrue(first.createNewFile());
+		manifest.addValueLog(second.getAbsolutePath());
+		assertTrue(second.createNewFile());
+
+		// Crashed before the file was deleted
+		manifest.removeValueLog(first.getAbsolutePath());
+		manifest.close();
+
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		assertTrue(manifest.listsValueLogs());
+		assertEquals(Arrays.asList(second), manifest.getValueLogFiles());
+		manifest.deleteObsoleteFiles();
+		assertFalse(first.exists());
+		assertTrue(second.exists());
+
+		manifest.writeSnapshot(Version.empty(), manifest.getCommitLogFiles(), manifest.getValueLogFiles());
+		manifest.close();
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		assertEquals(Arrays.asList(second), manifest.getValueLogFiles());
+		manifest.close();
+	}
+
+	@Test
+	public void testUnreadableTableFailsLoad() throws IOException {
+		Manifest manifest = Manifest.open(dataDir.getAbsolutePath());
+		manifest.writeSnapshot(Version.empty(), Collections.<File> emptyList(), Collections.<File> emptyList());
+		VersionSet versionSet = new VersionSet();
+		versionSet.setManifest(manifest);
+		SSTable a = createSSTable("a");
+		SSTable b = createSSTable("b");
+		versionSet.addSSTable(a);
+		versionSet.addSSTable(b);
+		versionSet.close();
+		manifest.close();
+
+		File missing = new File(b.getSSTableFilePath());
+		File moved = new File(dataDir, "moved-away");
+		assertTrue(missing.renameTo(moved));
+
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		VersionSet reloaded = new VersionSet();
+		try {
+			reloaded.loadSSTables(manifest, FileAccessChoice.SIMPLE);
+			fail("Loading a manifest with a missing table should fail");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains(missing.getName()));
+		}
+		manifest.close();
+
+		// Once it is back nothing was lost
+		assertTrue(moved.renameTo(missing));
+		manifest = Manifest.open(dataDir.getAbsolutePath());
+		reloaded = new VersionSet();
+		reloaded.loadSSTables(manifest, FileAccessChoice.SIMPLE);
+		assertEquals(2, reloaded.getSSTablesAtLevel(0).size());
+		reloaded.close();
+		manifest.close();
+	}
+
+	private static String name(SSTable sstable) {
+		return new File(sstable.getSSTableFilePath()).getName();
+	}
+
+	private SSTable createSSTable(String prefix) throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		for (int i = 0; i < 100; i++) {
+			mem.put(key(i), new DataItem((prefix + "-" + i).getBytes()));
+		}
+		SSTable sstable = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
+		mem.destroyCommitLog();
+		return sstable;
+	}
+
+	private static DataItem key(int i) {
+		return new DataItem(String.format("key-%04d", i).getBytes());
+	}
+}
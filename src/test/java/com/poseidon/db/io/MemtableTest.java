@@ -3,15 +3,23 @@ package com.poseidon.db.io;
 import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import com.poseidon.db.Memtable;
+import com.poseidon.db.MemtableStorage;
 import com.poseidon.db.TestUtils;
+import com.poseidon.db.WriteBatch;
 import com.poseidon.db.io.CommitLog;
 import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
 
 public class MemtableTest {
 
@@ -40,7 +48,7 @@ public class MemtableTest {
 			assertTrue(putSuccess);
 		});
 
-		assertTrue((((double) mem.numberOfItems()) / mem.size()) < Memtable.LOAD_FACTOR);
+		assertEquals(10000, mem.numberOfItems());
 
 		IntStream.range(0, 10000).forEach((i) -> {
 			DataItem key = new DataItem(("test-key-" + i).getBytes());
@@ -175,4 +183,230 @@ public class MemtableTest {
 			assertEquals(mem2.get(keyDt), valueDt);
 		}
 	}
+
+	@Test
+	public void testSortedEntries() {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+
+		IntStream.range(0, 1000).forEach((i) -> {
+			DataItem key = new DataItem(("test-key-" + ((i * 7919) % 1000)).getBytes());
+			DataItem value = new DataItem(("test-value-" + i).getBytes());
+			mem.put(key, value);
+		});
+
+		DataItem previous = null;
+		int count = 0;
+		for (Map.Entry<DataItem, DataItem> entry : mem.getSortedEntries()) {
+			if (previous != null) {
+				assertTrue(previous.compareTo(entry.getKey()) < 0);
+			}
+			previous = entry.getKey();
+			count++;
+		}
+		assertEquals(1000, count);
+	}
+
+	@Test
+	public void testConcurrentPuts() throws InterruptedException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int offset = t * 5000;
+			writers[t] = new Thread(() -> {
+				for (int i = offset; i < offset + 5000; i++) {
+					assertTrue(mem.put(new DataItem(("test-key-" + i).getBytes()),
+							new DataItem(("test-value-" + i).getBytes())));
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		assertEquals(20000, mem.numberOfItems());
+		IntStream.range(0, 20000).forEach((i) -> {
+			DataItem key = new DataItem(("test-key-" + i).getBytes());
+			assertEquals(new DataItem(("test-value-" + i).getBytes()), mem.get(key));
+		});
+	}
+
+	@Test
+	public void testOffHeapMatchesHeap() {
+		Memtable heap = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath(),
+				CommitLog.Durability.NONE, CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS, MemtableStorage.HEAP);
+		Memtable offHeap = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath(),
+				CommitLog.Durability.NONE, CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS, MemtableStorage.OFF_HEAP);
+
+		// Negative bytes and prefixes must sort the same way in both
+		for (Memtable mem : new Memtable[] { heap, offHeap }) {
+			for (int i = 0; i < 3000; i++) {
+				byte[] key = ("key-" + ((i * 7919) % 3000)).getBytes();
+				mem.put(new DataItem(key), new DataItem(("value-" + i).getBytes()));
+			}
+			mem.put(new DataItem(new byte[] { (byte) 0xF0 }), new DataItem("negative".getBytes()));
+			mem.put(new DataItem("key".getBytes()), new DataItem("prefix".getBytes()));
+			mem.put(new DataItem("key-5".getBytes()), new DataItem("overwritten".getBytes()));
+			mem.put(new DataItem("big".getBytes()), new DataItem(new byte[2 * 1024 * 1024]));
+			mem.delete(new DataItem("key-6".getBytes()), false);
+			mem.delete(new DataItem("key-7".getBytes()), true);
+		}
+
+		assertEquals(heap.numberOfItems(), offHeap.numberOfItems());
+		assertEquals(heap.getTotalByteCount(), offHeap.getTotalByteCount());
+		assertTrue(offHeap.getArenaBytes() > 2 * 1024 * 1024);
+		assertNull(offHeap.get(new DataItem("key-6".getBytes())));
+		assertEquals(new DataItem("overwritten".getBytes()), offHeap.get(new DataItem("key-5".getBytes())));
+
+		Iterator<KeyValuePair> expected = heap.iterator();
+		Iterator<KeyValuePair> actual = offHeap.iterator();
+		while (expected.hasNext()) {
+			KeyValuePair kvp = expected.next();
+			KeyValuePair other = actual.next();
+			assertEquals(kvp.getKey(), other.getKey());
+			assertEquals(kvp.getValue(), other.getValue());
+		}
+		assertFalse(actual.hasNext());
+
+		DataItem start = new DataItem("key-10".getBytes());
+		DataItem end = new DataItem("key-20".getBytes());
+		expected = heap.iterator(start, end);
+		actual = offHeap.iterator(start, end);
+		int count = 0;
+		while (expected.hasNext()) {
+			assertEquals(expected.next().getKey(), actual.next().getKey());
+			count++;
+		}
+		assertFalse(actual.hasNext());
+		assertTrue(count > 0);
+	}
+
+	@Test
+	public void testGetDuringDeleteRangeSeesValueOrTombstone() throws InterruptedException {
+		// A miss would send the read on to older data, which may hold a stale value
+		for (int round = 0; round < 20; round++) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = 0; i < 20000; i++) {
+				mem.put(new DataItem(String.format("key-%05d", i).getBytes()), new DataItem("value".getBytes()));
+			}
+
+			DataItem first = new DataItem("key-00000".getBytes());
+			AtomicBoolean done = new AtomicBoolean(false);
+			AtomicInteger misses = new AtomicInteger(0);
+			Thread reader = new Thread(() -> {
+				while (!done.get()) {
+					if (mem.get(first) == null) {
+						misses.incrementAndGet();
+					}
+				}
+			});
+			reader.start();
+
+			mem.deleteRange(new RangeTombstone(new DataItem("key-".getBytes()), new DataItem("key-~".getBytes()),
+					0, 1));
+			done.set(true);
+			reader.join();
+			mem.cleanUp();
+
+			assertEquals(0, misses.get());
+			assertEquals(Memtable.TOMBSTONE, mem.get(first).getData()[0]);
+		}
+	}
+
+	@Test
+	public void testOffHeapArenaReleasedAfterLastReference() {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath(),
+				CommitLog.Durability.NONE, CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS, MemtableStorage.OFF_HEAP);
+		DataItem key = new DataItem("key".getBytes());
+		for (int i = 0; i < 1000; i++) {
+			mem.put(key, new DataItem(("value-" + i).getBytes()));
+		}
+		assertTrue(mem.getMemoryBytes() > 1000 * "value-0".length());
+		assertTrue(mem.getMemoryBytes() > mem.getTotalByteCount());
+
+		// A scan still holds it when the store lets go
+		assertTrue(mem.retain());
+		Iterator<KeyValuePair> scan = mem.iterator();
+		mem.release();
+		assertTrue(mem.getArenaBytes() > 0);
+		assertEquals(new DataItem("value-999".getBytes()), mem.get(key));
+
+		mem.release();
+		assertEquals(0, mem.getArenaBytes());
+		assertNull(mem.get(key));
+		assertFalse(scan.hasNext());
+		assertFalse(mem.retain());
+		mem.cleanUp();
+	}
+
+	@Test
+	public void testOffHeapConcurrentPutsAndRecovery() throws InterruptedException, IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath(),
+				CommitLog.Durability.NONE, CommitLog.DEFAULT_SYNC_INTERVAL_MILLIS, MemtableStorage.OFF_HEAP);
+
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			final int offset = t * 5000;
+			writers[t] = new Thread(() -> {
+				for (int i = offset; i < offset + 5000; i++) {
+					assertTrue(mem.put(new DataItem(("test-key-" + i).getBytes()),
+							new DataItem(("test-value-" + i).getBytes())));
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertEquals(20000, mem.numberOfItems());
+
+		Memtable mem2 = Memtable.createMemtableFromCommitLog(
+				new CommitLog(mem.getLogFilePath(), new ReentrantReadWriteLock()), MemtableStorage.OFF_HEAP);
+		assertEquals(20000, mem2.numberOfItems());
+		IntStream.range(0, 20000).forEach((i) -> {
+			DataItem key = new DataItem(("test-key-" + i).getBytes());
+			assertEquals(new DataItem(("test-value-" + i).getBytes()), mem2.get(key));
+		});
+	}
+
+	@Test
+	public void testConcurrentWritesToOneKeyMatchLog() throws InterruptedException, IOException {
+		// Writers wake up from a group commit in any order, which is where log and map could part
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath(),
+				CommitLog.Durability.BATCH, 1);
+
+		// Every writer writes every key once, so the last write of each key is a race.
+		// Single puts, deletes and batches are mixed.
+		Thread[] writers = new Thread[8];
+		for (int t = 0; t < writers.length; t++) {
+			final int writer = t;
+			writers[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					DataItem key = new DataItem(("test-key-" + i).getBytes());
+					DataItem value = new DataItem(("value-" + writer).getBytes());
+					if ((i + writer) % 7 == 0) {
+						assertTrue(mem.delete(key, false));
+					} else if ((i + writer) % 5 == 0) {
+						assertTrue(mem.apply(new WriteBatch().put(key.getData(), value.getData())));
+					} else {
+						assertTrue(mem.put(key, value));
+					}
+				}
+			});
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		mem.cleanUp();
+
+		Memtable replayed = Memtable.createMemtableFromCommitLog(
+				new CommitLog(mem.getLogFilePath(), new ReentrantReadWriteLock()));
+		assertEquals(mem.numberOfItems(), replayed.numberOfItems());
+		for (int i = 0; i < 1000; i++) {
+			DataItem key = new DataItem(("test-key-" + i).getBytes());
+			assertEquals(mem.get(key), replayed.get(key));
+		}
+	}
 }
@@ -3,31 +3,46 @@ package com.poseidon.db.io;
 import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import com.poseidon.db.Memtable;
+import com.poseidon.db.StoreOptions;
 import com.poseidon.db.TestUtils;
 import com.poseidon.db.io.SSTable;
+import com.poseidon.db.compression.Compression;
 import com.poseidon.db.io.SSTable.IndexData;
 import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.io.access.SegmentedMappedAccess;
 import com.poseidon.db.representation.DataItem;
+import com.poseidon.db.representation.KeyValuePair;
+import com.poseidon.db.representation.RangeTombstone;
+import com.poseidon.db.utils.BlockCache;
+import com.poseidon.db.utils.BloomFilter;
 
 public class SSTableTest {
 
 	private File dataDir;
+	private VersionSet versionSet;
 
 	@Before
 	public void setUp() throws Exception {
 		dataDir = new File("/tmp/geez");
 		dataDir.mkdir();
+		versionSet = new VersionSet();
 	}
 
 	@After
 	public void tearDown() throws Exception {
+		versionSet.close();
 		TestUtils.deleteFolder(dataDir);
-		SSTable.sstables.clear();
 	}
 
 	@Test
@@ -35,7 +50,7 @@ public class SSTableTest {
 		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
 
 		for (FileAccessChoice fileAccess : new FileAccessChoice[] { FileAccessChoice.SIMPLE,
-				FileAccessChoice.MEM_MAP }) {
+				FileAccessChoice.MEM_MAP, FileAccessChoice.CHANNEL }) {
 
 			for (int i = 0; i < 1000; i++) {
 				String keyStr = "key-" + String.format("%03d", i);
@@ -44,13 +59,13 @@ public class SSTableTest {
 				mem.put(new DataItem(keyStr.getBytes()), new DataItem(valueStr.getBytes()));
 			}
 
-			SSTable.createAndRegisterNewSSTable(mem, dataDir.getAbsolutePath(), fileAccess);
+			versionSet.addSSTable(SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), fileAccess));
 
 			for (int i = 0; i < 1000; i++) {
 				String keyStr = "key-" + String.format("%03d", i);
 				String valueStr = "value-" + String.format("%03d", i);
 
-				DataItem v = SSTable.find(new DataItem(keyStr.getBytes()));
+				DataItem v = versionSet.find(new DataItem(keyStr.getBytes()));
 
 				assertEquals(valueStr, new String(v.getData()));
 			}
@@ -71,7 +86,7 @@ public class SSTableTest {
 				mem1.put(new DataItem(keyStr.getBytes()), new DataItem(valueStr.getBytes()));
 			}
 
-			SSTable.createAndRegisterNewSSTable(mem1, dataDir.getAbsolutePath(), fileAccess);
+			versionSet.addSSTable(SSTable.createNewSSTable(mem1, dataDir.getAbsolutePath(), fileAccess));
 
 			Thread.sleep(1000);
 
@@ -83,19 +98,159 @@ public class SSTableTest {
 				mem2.put(new DataItem(keyStr.getBytes()), new DataItem(valueStr.getBytes()));
 			}
 
-			SSTable.createAndRegisterNewSSTable(mem2, dataDir.getAbsolutePath(), fileAccess);
+			versionSet.addSSTable(SSTable.createNewSSTable(mem2, dataDir.getAbsolutePath(), fileAccess));
 
 			for (int i = 0; i < 1000; i++) {
 				String keyStr = "key-" + String.format("%03d", i);
 				String valueStr = "value-value-xxxx-" + String.format("%03d", i);
 
-				DataItem v = SSTable.find(new DataItem(keyStr.getBytes()));
+				DataItem v = versionSet.find(new DataItem(keyStr.getBytes()));
 
 				assertEquals(valueStr, new String(v.getData()));
 			}
 		}
 	}
 
+	@Test
+	public void testConcurrentReadsFromSSTable() throws IOException, InterruptedException {
+		for (FileAccessChoice fileAccess : new FileAccessChoice[] { FileAccessChoice.SIMPLE,
+				FileAccessChoice.MEM_MAP, FileAccessChoice.CHANNEL }) {
+			Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+			for (int i = 0; i < 5000; i++) {
+				mem.put(new DataItem(("key-" + String.format("%04d", i)).getBytes()),
+						new DataItem(("value-" + String.format("%04d", i)).getBytes()));
+			}
+			SSTable sstable = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), fileAccess);
+
+			AtomicInteger failures = new AtomicInteger(0);
+			Thread[] readers = new Thread[8];
+
+			for (int t = 0; t < readers.length; t++) {
+				int seed = t;
+				readers[t] = new Thread(() -> {
+					Random random = new Random(seed);
+					for (int n = 0; n < 5000; n++) {
+						int i = random.nextInt(5000);
+						try {
+							DataItem v = sstable.get(new DataItem(("key-" + String.format("%04d", i)).getBytes()));
+							if (v == null || !new String(v.getData()).equals("value-" + String.format("%04d", i))) {
+								failures.incrementAndGet();
+							}
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+					}
+				});
+				readers[t].start();
+			}
+
+			for (Thread reader : readers) {
+				reader.join();
+			}
+			sstable.closeSSTableFile();
+
+			assertEquals(0, failures.get());
+		}
+	}
+
+	@Test
+	public void testMappedSegmentBoundaries() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		for (int i = 0; i < 3000; i++) {
+			mem.put(new DataItem(("key-" + String.format("%04d", i)).getBytes()),
+					new DataItem(("value-" + String.format("%04d", i) + "-" + i % 13).getBytes()));
+		}
+		SSTable sstable = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE,
+				BloomFilter.DEFAULT_BITS_PER_KEY, 300);
+		IndexData[] indexes = sstable.getIndexes();
+
+		// Small segments so that plenty of blocks straddle two of them
+		try (RandomAccessFile file = new RandomAccessFile(sstable.getSSTableFilePath(), "r")) {
+			SegmentedMappedAccess access = new SegmentedMappedAccess(file, 1024);
+			int key = 0;
+
+			for (IndexData index : indexes) {
+				Block block = sstable
+						.decodeBlock(access.readBlock(index.getOffset(), index.getOffset() + index.getByteCount()));
+				Iterator<KeyValuePair> entries = block.iterator();
+
+				while (entries.hasNext()) {
+					String k = "key-" + String.format("%04d", key);
+					assertEquals(k, new String(entries.next().getKey().getData()));
+					assertEquals("value-" + String.format("%04d", key) + "-" + key % 13,
+							new String(block.get(new DataItem(k.getBytes())).getData()));
+					key++;
+				}
+			}
+			assertEquals(3000, key);
+
+			IndexData index = indexes[0];
+			assertNull(sstable.decodeBlock(access.readBlock(index.getOffset(), index.getOffset() + index.getByteCount()))
+					.get(new DataItem("key-0000a".getBytes())));
+		}
+		sstable.closeSSTableFile();
+	}
+
+	@Test
+	public void testMappedSegmentBoundariesFormatV1() throws IOException {
+		String path = writeFormatV1SSTable(3000);
+		SSTable sstable = SSTable.openSSTable(path, FileAccessChoice.SIMPLE);
+		IndexData[] indexes = sstable.getIndexes();
+
+		// Small segments so that plenty of records straddle two of them
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			SegmentedMappedAccess access = new SegmentedMappedAccess(file, 1024);
+
+			for (int i = 0; i < 3000; i++) {
+				IndexData index = indexes[i / SSTable.INDEX_INTERVAL];
+				DataItem v = access.getValue(new DataItem(("key-" + String.format("%04d", i)).getBytes()),
+						index.getOffset(), index.getOffset() + index.getByteCount());
+
+				assertEquals("value-" + String.format("%04d", i) + "-" + i % 13, new String(v.getData()));
+			}
+
+			IndexData index = indexes[0];
+			assertNull(access.getValue(new DataItem("key-0000a".getBytes()), index.getOffset(),
+					index.getOffset() + index.getByteCount()));
+		}
+		sstable.closeSSTableFile();
+	}
+
+	@Test
+	public void testReadsFormatV1() throws IOException {
+		String path = writeFormatV1SSTable(3000);
+
+		for (FileAccessChoice fileAccess : FileAccessChoice.values()) {
+			for (boolean cached : new boolean[] { false, true }) {
+				SSTable sstable = SSTable.openSSTable(path, fileAccess);
+				if (cached) {
+					sstable.setBlockCache(new BlockCache<Block>(1024 * 1024, 1));
+				}
+
+				assertEquals(SSTable.FORMAT_V1, sstable.getFormatVersion());
+				assertEquals(3000, sstable.numberOfItems());
+				assertEquals("key-2999", new String(sstable.getLastKey().getData()));
+
+				for (int i = 0; i < 3000; i += 7) {
+					DataItem v = sstable.get(new DataItem(("key-" + String.format("%04d", i)).getBytes()));
+					assertEquals("value-" + String.format("%04d", i) + "-" + i % 13, new String(v.getData()));
+				}
+				assertNull(sstable.get(new DataItem("key-0000a".getBytes())));
+
+				try (SSTableIterator iterator = sstable.iterator(new DataItem("key-1500".getBytes()))) {
+					int count = 0;
+					while (iterator.hasNext()) {
+						iterator.next();
+						count++;
+					}
+					// Starts at the block holding the key
+					assertEquals(3000 - (1500 / SSTable.INDEX_INTERVAL) * SSTable.INDEX_INTERVAL, count);
+				}
+				sstable.closeSSTableFile();
+			}
+		}
+	}
+
 	@Test
 	public void testIndexByteCount() throws IOException {
 		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
@@ -106,14 +261,254 @@ public class SSTableTest {
 			mem.put(key, val);
 		}
 
-		SSTable.createAndRegisterNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
-		SSTable s = SSTable.sstables.get(SSTable.sstables.lastKey());
+		SSTable s = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE,
+				BloomFilter.DEFAULT_BITS_PER_KEY, 256);
 
 		IndexData[] indexes = s.getIndexes();
+		assertEquals(SSTable.FORMAT_V5, s.getFormatVersion());
+		assertTrue(indexes.length > 4);
+
+		// Blocks sit back to back, every one but the last is cut right after reaching the target
+		long offset = SSTable.DATA_POSITION;
+		for (int i = 0; i < indexes.length; i++) {
+			assertEquals(offset, indexes[i].getOffset());
+			if (i < indexes.length - 1) {
+				assertTrue(indexes[i].getByteCount() >= 256);
+				assertTrue(indexes[i].getByteCount() < 256 + 32);
+			}
+			offset += indexes[i].getByteCount();
+		}
+
+		for (int i = 0; i < 300; i++) {
+			DataItem v = s.get(new DataItem(("key-" + String.format("%03d", i)).getBytes()));
+			assertEquals("val-" + String.format("%03d", i), new String(v.getData()));
+		}
+		s.closeSSTableFile();
+	}
+
+	@Test
+	public void testSharedPrefixesAreNotRepeated() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		long plainBytes = 0;
+
+		for (int i = 0; i < 5000; i++) {
+			DataItem key = new DataItem(("tenant-00042/orders/2024/" + String.format("%06d", i)).getBytes());
+			DataItem val = new DataItem(String.valueOf(i).getBytes());
+			mem.put(key, val);
+			plainBytes += 4 + 4 + key.length() + val.length();
+		}
+
+		SSTable s = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
+		long dataBytes = 0;
+		for (IndexData index : s.getIndexes()) {
+			dataBytes += index.getByteCount();
+		}
+
+		assertTrue("v2 data takes " + dataBytes + " bytes against " + plainBytes, dataBytes * 2 < plainBytes);
+		s.closeSSTableFile();
+
+		SSTable reopened = SSTable.openSSTable(s.getSSTableFilePath(), FileAccessChoice.CHANNEL);
+		assertEquals(SSTable.FORMAT_V5, reopened.getFormatVersion());
+		assertEquals("tenant-00042/orders/2024/004999", new String(reopened.getLastKey().getData()));
+		assertEquals("1234", new String(reopened.get(new DataItem("tenant-00042/orders/2024/001234".getBytes()))
+				.getData()));
+		reopened.closeSSTableFile();
+	}
+
+	@Test
+	public void testCompressedBlocks() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		for (int i = 0; i < 3000; i++) {
+			mem.put(new DataItem(("key-" + String.format("%04d", i)).getBytes()),
+					new DataItem(("{\"id\":" + i + ",\"status\":\"active\",\"roles\":[\"reader\",\"writer\"],"
+							+ "\"address\":{\"city\":\"Yangon\",\"zip\":\"" + (11000 + i % 50) + "\"}}").getBytes()));
+		}
+
+		SSTable plain = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), new StoreOptions());
+		long plainSize = plain.getFileSize();
+		plain.closeSSTableFile();
+
+		for (Compression compression : new Compression[] { Compression.DEFLATE, Compression.LZ }) {
+			SSTable written = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(),
+					new StoreOptions().setCompression(compression));
+			assertTrue(compression + " took " + written.getFileSize() + " bytes", written.getFileSize() * 3 < plainSize);
+			written.closeSSTableFile();
+
+			for (FileAccessChoice fileAccess : FileAccessChoice.values()) {
+				SSTable sstable = SSTable.openSSTable(written.getSSTableFilePath(), fileAccess);
+				BlockCache<Block> cache = new BlockCache<Block>(1024 * 1024, 1);
+				sstable.setBlockCache(cache);
+				assertEquals(SSTable.FORMAT_V5, sstable.getFormatVersion());
+				assertEquals("key-2999", new String(sstable.getLastKey().getData()));
+
+				// Twice, the second round is served by decompressed blocks from the cache
+				for (int round = 0; round < 2; round++) {
+					for (int i = 0; i < 3000; i += 11) {
+						DataItem v = sstable.get(new DataItem(("key-" + String.format("%04d", i)).getBytes()));
+						assertTrue(new String(v.getData()).startsWith("{\"id\":" + i + ","));
+					}
+				}
+				assertTrue(cache.size() > 0);
+
+				try (SSTableIterator iterator = sstable.iterator()) {
+					int count = 0;
+					while (iterator.hasNext()) {
+						assertEquals("key-" + String.format("%04d", count), new String(iterator.next().getKey().getData()));
+						count++;
+					}
+					assertEquals(3000, count);
+				}
+				sstable.closeSSTableFile();
+			}
+		}
+	}
+
+	@Test
+	public void testIncompressibleBlocksAreStoredPlain() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		Random random = new Random(3);
+		for (int i = 0; i < 500; i++) {
+			byte[] value = new byte[200];
+			random.nextBytes(value);
+			mem.put(new DataItem(("key-" + String.format("%04d", i)).getBytes()), new DataItem(value));
+		}
+
+		SSTable sstable = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(),
+				new StoreOptions().setCompression(Compression.DEFLATE));
+
+		try (RandomAccessFile file = new RandomAccessFile(sstable.getSSTableFilePath(), "r")) {
+			for (IndexData index : sstable.getIndexes()) {
+				file.seek(index.getOffset() + index.getByteCount() - 1);
+				assertEquals(Compression.NONE.getId(), file.readByte());
+			}
+		}
+		assertNotNull(sstable.get(new DataItem("key-0250".getBytes())));
+		sstable.closeSSTableFile();
+	}
+
+	@Test
+	public void testDictionaryCompression() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		Random random = new Random(11);
+		String[] plans = { "free", "pro", "enterprise" };
+
+		for (int i = 0; i < 3000; i++) {
+			String value = "{\"userId\":" + random.nextInt(1000000) + ",\"plan\":\"" + plans[random.nextInt(3)]
+					+ "\",\"settings\":{\"theme\":\"dark\",\"notifications\":{\"email\":true,\"sms\":false}},"
+					+ "\"lastLogin\":\"2024-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10) + "T0"
+					+ random.nextInt(10) + ":00:00Z\"}";
+			mem.put(new DataItem(("key-" + String.format("%04d", i)).getBytes()), new DataItem(value.getBytes()));
+		}
+
+		StoreOptions options = new StoreOptions().setBlockSize(1024);
+		SSTable deflated = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(),
+				options.setCompression(Compression.DEFLATE));
+		SSTable trained = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(),
+				options.setCompression(Compression.DEFLATE_DICTIONARY));
+
+		assertNull(deflated.getDictionary());
+		assertNotNull(trained.getDictionary());
+		assertTrue("ratio " + trained.getCompressionRatio() + " against " + deflated.getCompressionRatio(),
+				trained.getCompressionRatio() > deflated.getCompressionRatio());
+		deflated.closeSSTableFile();
+		trained.closeSSTableFile();
+
+		// The dictionary is read back from the file
+		SSTable reopened = SSTable.openSSTable(trained.getSSTableFilePath(), FileAccessChoice.CHANNEL);
+		assertArrayEquals(trained.getDictionary(), reopened.getDictionary());
+		assertEquals(trained.getCompressionRatio(), reopened.getCompressionRatio(), 0.0001);
+		assertEquals("key-2999", new String(reopened.getLastKey().getData()));
+		for (int i = 0; i < 3000; i += 13) {
+			DataItem key = new DataItem(("key-" + String.format("%04d", i)).getBytes());
+			assertEquals(mem.get(key), reopened.get(key));
+		}
+		reopened.closeSSTableFile();
+
+		// Written from an iterator, as compaction does, the sampled entries are not lost
+		// when the table is cut short
+		Iterator<KeyValuePair> entries = mem.iterator();
+		int written = 0;
+		while (entries.hasNext()) {
+			SSTable part = SSTable.writeSSTable(dataDir.getAbsolutePath() + File.separator + "part-" + written,
+					entries, 3000, options, 16 * 1024);
+			written += part.numberOfItems();
+			part.closeSSTableFile();
+		}
+		assertEquals(3000, written);
+	}
+
+	// The layout every table had before format v2, with nothing in the header to say so
+	private String writeFormatV1SSTable(int itemCount) throws IOException {
+		String path = dataDir.getAbsolutePath() + File.separator + SSTable.getSSTableFileName(0);
+		BloomFilter bloomFilter = new BloomFilter(itemCount, BloomFilter.DEFAULT_BITS_PER_KEY);
+		List<IndexData> indexes = new ArrayList<IndexData>();
+
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+			file.seek(SSTable.DATA_POSITION_V1);
+			int totalByteCount = 0;
+
+			for (int i = 0; i < itemCount; i++) {
+				byte[] key = ("key-" + String.format("%04d", i)).getBytes();
+				byte[] value = ("value-" + String.format("%04d", i) + "-" + i % 13).getBytes();
+
+				if (i % SSTable.INDEX_INTERVAL == 0) {
+					indexes.add(new IndexData(new DataItem(key), file.getFilePointer()));
+				}
+				IndexData last = indexes.get(indexes.size() - 1);
+				last.setByteCount(last.getByteCount() + 8 + key.length + value.length);
+				totalByteCount += 8 + key.length + value.length;
+
+				bloomFilter.add(key);
+				file.writeInt(key.length + value.length);
+				file.writeInt(key.length);
+				file.write(key);
+				file.write(value);
+			}
+
+			long indexPosition = file.getFilePointer();
+			for (IndexData index : indexes) {
+				file.writeInt(index.getKey().length());
+				file.write(index.getKey().getData());
+				file.writeInt(index.getByteCount());
+				file.writeLong(index.getOffset());
+			}
+
+			long filterPosition = file.getFilePointer();
+			file.write(bloomFilter.getByteArray());
+
+			file.seek(0);
+			file.writeInt(itemCount);
+			file.writeInt(totalByteCount);
+			file.writeLong(indexPosition);
+			file.writeLong(filterPosition);
+		}
+		return path;
+	}
+
+	@Test
+	public void testRangeTombstoneSection() throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		assertTrue(mem.deleteRange(new RangeTombstone(new DataItem("key-100".getBytes()),
+				new DataItem("key-200".getBytes()), 0, 1)));
+		assertFalse(mem.empty());
+
+		// A table may hold nothing but its tombstones
+		SSTable s = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
+		assertNotNull(s);
+		s.closeSSTableFile();
+
+		SSTable reopened = SSTable.openSSTable(s.getSSTableFilePath(), FileAccessChoice.CHANNEL);
+		assertEquals(SSTable.FORMAT_V5, reopened.getFormatVersion());
+		assertEquals(0, reopened.numberOfItems());
+		assertEquals(1, reopened.getRangeTombstones().size());
+		assertEquals("key-100", new String(reopened.getFirstKey().getData()));
+		assertEquals("key-200", new String(reopened.getLastKey().getData()));
+		assertFalse(reopened.iterator().hasNext());
 
-		assertEquals(indexes.length, 3);
-		assertEquals(indexes[0].getByteCount(), ((7 * 2 + 4 + 4) * 128));
-		assertEquals(indexes[1].getByteCount(), ((7 * 2 + 4 + 4) * 128));
-		assertEquals(indexes[2].getByteCount(), ((7 * 2 + 4 + 4) * (300 - 256)));
+		DataItem tombstone = new DataItem(new byte[] { Memtable.TOMBSTONE });
+		assertEquals(tombstone, reopened.get(new DataItem("key-150".getBytes())));
+		assertNull(reopened.get(new DataItem("key-200".getBytes())));
+		assertNull(reopened.get(new DataItem("key-099".getBytes())));
+		reopened.closeSSTableFile();
 	}
 }
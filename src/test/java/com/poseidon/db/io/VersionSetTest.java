@@ -0,0 +1,119 @@
+package com.poseidon.db.io;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.poseidon.db.Memtable;
+import com.poseidon.db.TestUtils;
+import com.poseidon.db.io.access.FileAccessChoice;
+import com.poseidon.db.representation.DataItem;
+
+public class VersionSetTest {
+
+	private File dataDir;
+
+	@Before
+	public void setUp() throws Exception {
+		dataDir = new File("/tmp/geez");
+		dataDir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestUtils.deleteFolder(dataDir);
+	}
+
+	@Test
+	public void testRetiredFileOutlivesReaders() throws IOException {
+		VersionSet versionSet = new VersionSet();
+		SSTable oldSSTable = createSSTable("old");
+		versionSet.addSSTable(oldSSTable);
+
+		Version reader = versionSet.acquire();
+
+		SSTable newSSTable = createSSTable("new");
+		versionSet.replaceSSTables(Arrays.asList(oldSSTable), Arrays.asList(newSSTable));
+
+		// The reader still sees the old table and its file is still there
+		assertTrue(new File(oldSSTable.getSSTableFilePath()).exists());
+		assertEquals("old-1", new String(reader.find(key(1), new VersionSet.LookupStats()).getData()));
+		assertEquals("new-1", new String(versionSet.find(key(1)).getData()));
+
+		versionSet.release(reader);
+		assertFalse(new File(oldSSTable.getSSTableFilePath()).exists());
+		assertEquals(1, newSSTable.getRefCount());
+
+		versionSet.close();
+		assertEquals(0, newSSTable.getRefCount());
+		assertTrue(new File(newSSTable.getSSTableFilePath()).exists());
+	}
+
+	@Test
+	public void testStoresAreIndependent() throws IOException {
+		VersionSet first = new VersionSet();
+		VersionSet second = new VersionSet();
+
+		first.addSSTable(createSSTable("first"));
+		second.addSSTable(createSSTable("second"));
+
+		assertEquals("first-1", new String(first.find(key(1)).getData()));
+		assertEquals("second-1", new String(second.find(key(1)).getData()));
+
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testReadsDuringReplace() throws IOException, InterruptedException {
+		VersionSet versionSet = new VersionSet();
+		versionSet.addSSTable(createSSTable("v0"));
+
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicInteger failures = new AtomicInteger(0);
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				for (int i = 0; i < 100; i++) {
+					if (versionSet.find(key(i)) == null) {
+						failures.incrementAndGet();
+					}
+				}
+			}
+		});
+		reader.start();
+
+		for (int round = 1; round <= 20; round++) {
+			List<SSTable> current = versionSet.getSSTablesAtLevel(0);
+			versionSet.replaceSSTables(current, Arrays.asList(createSSTable("v" + round)));
+		}
+
+		done.set(true);
+		reader.join();
+
+		assertEquals(0, failures.get());
+		assertEquals("v20-1", new String(versionSet.find(key(1)).getData()));
+		assertEquals(1, dataDir.listFiles((dir, name) -> name.startsWith(SSTable.SSTABLE_FILENAME_PREFIX)).length);
+		versionSet.close();
+	}
+
+	private SSTable createSSTable(String prefix) throws IOException {
+		Memtable mem = Memtable.createNewMemtable(new ReentrantReadWriteLock(), dataDir.getAbsolutePath());
+		for (int i = 0; i < 100; i++) {
+			mem.put(key(i), new DataItem((prefix + "-" + i).getBytes()));
+		}
+		SSTable sstable = SSTable.createNewSSTable(mem, dataDir.getAbsolutePath(), FileAccessChoice.SIMPLE);
+		mem.destroyCommitLog();
+		return sstable;
+	}
+
+	private static DataItem key(int i) {
+		return new DataItem(("key-" + String.format("%03d", i)).getBytes());
+	}
+}
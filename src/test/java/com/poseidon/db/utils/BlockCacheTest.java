@@ -0,0 +1,148 @@
+package com.poseidon.db.utils;
+
+import static org.junit.Assert.*;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+	@Test
+	public void testHitsAndMisses() {
+		BlockCache<String> cache = new BlockCache<String>(1024 * 1024, 4);
+
+		assertNull(cache.get(1, 0));
+		cache.put(1, 0, "block-1-0", 100);
+		assertEquals("block-1-0", cache.get(1, 0));
+		assertNull(cache.get(2, 0));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testByteBudget() {
+		BlockCache<String> cache = new BlockCache<String>(64 * 1024, 4);
+
+		for (int round = 0; round < 3; round++) {
+			for (long offset = 0; offset < 1000; offset++) {
+				if (cache.get(1, offset) == null) {
+					cache.put(1, offset, "block", 1000);
+				}
+			}
+		}
+
+		assertTrue(cache.getUsedBytes() <= cache.getCapacityBytes());
+		assertTrue(cache.getEvictionCount() > 0);
+		assertTrue(cache.getRejectionCount() > 0);
+	}
+
+	@Test
+	public void testRejectedBlockEvictsNothing() {
+		BlockCache<String> cache = new BlockCache<String>(1000, 1);
+		cache.put(1, 0, "cold", 400 - BlockCache.ENTRY_OVERHEAD);
+		cache.put(1, 1, "hot", 400 - BlockCache.ENTRY_OVERHEAD);
+		for (int i = 0; i < 10; i++) {
+			cache.get(1, 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			cache.get(2, 0);
+		}
+
+		// Would need both out, and loses against the hot one
+		cache.put(2, 0, "large", 900 - BlockCache.ENTRY_OVERHEAD);
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals(0, cache.getEvictionCount());
+		assertEquals(2, cache.size());
+		assertEquals("cold", cache.get(1, 0));
+	}
+
+	@Test
+	public void testRejectedReplacementKeepsOldBlock() {
+		BlockCache<String> cache = new BlockCache<String>(1000, 1);
+		cache.put(1, 0, "old", 400 - BlockCache.ENTRY_OVERHEAD);
+		cache.put(1, 1, "hot", 400 - BlockCache.ENTRY_OVERHEAD);
+		for (int i = 0; i < 10; i++) {
+			cache.get(1, 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			cache.get(1, 0);
+		}
+
+		cache.put(1, 0, "new", 900 - BlockCache.ENTRY_OVERHEAD);
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals("old", cache.get(1, 0));
+		assertEquals("hot", cache.get(1, 1));
+		assertEquals(800, cache.getUsedBytes());
+	}
+
+	@Test
+	public void testScanResistance() {
+		BlockCache<String> cache = new BlockCache<String>(64 * 1024, 1);
+
+		// A hot set that fits comfortably, read a few times over
+		for (int round = 0; round < 5; round++) {
+			for (long offset = 0; offset < 30; offset++) {
+				if (cache.get(1, offset) == null) {
+					cache.put(1, offset, "hot", 1000);
+				}
+			}
+		}
+
+		// One pass over many blocks that are never read again, while the hot set
+		// keeps being used. Plain LRU would lose the hot set between two rounds.
+		for (long offset = 0; offset < 10000; offset++) {
+			if (cache.get(2, offset) == null) {
+				cache.put(2, offset, "cold", 1000);
+			}
+			if (offset % 100 == 0) {
+				for (long hot = 0; hot < 30; hot++) {
+					if (cache.get(1, hot) == null) {
+						cache.put(1, hot, "hot", 1000);
+					}
+				}
+			}
+		}
+
+		int survivors = 0;
+		for (long offset = 0; offset < 30; offset++) {
+			if (cache.get(1, offset) != null) {
+				survivors++;
+			}
+		}
+		assertEquals(30, survivors);
+	}
+
+	@Test
+	public void testConcurrentAccess() throws InterruptedException {
+		BlockCache<Long> cache = new BlockCache<Long>(256 * 1024, 8);
+		AtomicInteger failures = new AtomicInteger(0);
+		Thread[] threads = new Thread[8];
+
+		for (int t = 0; t < threads.length; t++) {
+			int seed = t;
+			threads[t] = new Thread(() -> {
+				Random random = new Random(seed);
+				for (int n = 0; n < 50000; n++) {
+					long offset = random.nextInt(2000);
+					Long block = cache.get(7, offset);
+					if (block == null) {
+						cache.put(7, offset, offset, 500);
+					} else if (block != offset) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			threads[t].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, failures.get());
+		assertTrue(cache.getUsedBytes() <= cache.getCapacityBytes());
+		assertEquals(8 * 50000, cache.getHitCount() + cache.getMissCount());
+	}
+}
@@ -1,6 +1,7 @@
 package com.poseidon.db.utils;
 
 import static org.junit.Assert.*;
+import java.util.BitSet;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -30,4 +31,50 @@ public class BloomFilterTest {
 		}
 	}
 
+	@Test
+	public void testFalsePositiveRate() {
+		BloomFilter b = new BloomFilter(100000, 10);
+		for (int i = 0; i < 100000; i++) {
+			b.add(("key-" + i).getBytes());
+		}
+
+		int falsePositives = 0;
+		for (int i = 100000; i < 200000; i++) {
+			if (b.contains(("key-" + i).getBytes())) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 2000);
+	}
+
+	@Test
+	public void testSerialization() {
+		BloomFilter b = BloomFilter.withFalsePositiveRate(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			b.add(("key-" + i).getBytes());
+		}
+
+		BloomFilter reloaded = new BloomFilter(b.getByteArray());
+		assertFalse(reloaded.isLegacyFormat());
+		assertEquals(b.getNumProbes(), reloaded.getNumProbes());
+		for (int i = 0; i < 20000; i++) {
+			byte[] key = ("key-" + i).getBytes();
+			assertEquals(b.contains(key), reloaded.contains(key));
+		}
+	}
+
+	@Test
+	public void testLegacyFormat() {
+		BitSet legacy = new BitSet();
+		for (int i = 0; i < 100; i++) {
+			legacy.or(BitSet.valueOf(("key-" + i).getBytes()));
+		}
+
+		BloomFilter b = new BloomFilter(legacy.toByteArray());
+		assertTrue(b.isLegacyFormat());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(b.contains(("key-" + i).getBytes()));
+		}
+	}
+
 }
@@ -28,4 +28,14 @@ public class DataConversionTest {
 		}
 	}
 
+	@Test
+	public void testLargeLongConversions() {
+		long[] values = { 1L << 31, 3L * 1024 * 1024 * 1024, 1L << 40, Long.MAX_VALUE, Long.MIN_VALUE, -1L };
+
+		for (long value : values) {
+			byte[] b = DataConversion.longToByteArray(value);
+			assertEquals(value, DataConversion.byteArrayToLong(b));
+		}
+	}
+
 }